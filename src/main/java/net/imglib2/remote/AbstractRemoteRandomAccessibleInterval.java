@@ -16,6 +16,9 @@
  */
 package net.imglib2.remote;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
 import net.imglib2.AbstractInterval;
 import net.imglib2.Interval;
 import net.imglib2.RandomAccessibleInterval;
@@ -68,4 +71,387 @@ abstract public class AbstractRemoteRandomAccessibleInterval< T, K, E > extends
 	}
 
 	final protected Cache< K, E > cache;
+	
+	/**
+	 * Pin the tiles that are used in each frame such that they are not
+	 * collected before they are painted.  Enable only if
+	 * {@link #releasePins()} is called for each frame.
+	 * 
+	 * @param pinning
+	 */
+	public void setPinning( final boolean pinning )
+	{
+		synchronized ( cache )
+		{
+			cache.setPinning( pinning );
+		}
+	}
+	
+	/**
+	 * Set the number of renderers that render from this source and each
+	 * call {@link #releasePins()} once per frame, see
+	 * {@link Cache#setNumRenderers(int)}.
+	 * 
+	 * @param numRenderers
+	 */
+	public void setNumRenderers( final int numRenderers )
+	{
+		synchronized ( cache )
+		{
+			cache.setNumRenderers( numRenderers );
+		}
+	}
+	
+	/**
+	 * Set the policy that decides which tiles are retained in memory, see
+	 * {@link Cache#setPolicy(CachePolicy)}.
+	 * 
+	 * @param policy null to retain nothing
+	 */
+	public void setCachePolicy( final CachePolicy< K > policy )
+	{
+		synchronized ( cache )
+		{
+			cache.setPolicy( policy );
+			allocatorPolicy = false;
+		}
+	}
+	
+	/* true if the policy was set by setAllocator only to evict off-heap tiles */
+	protected boolean allocatorPolicy = false;
+	
+	/**
+	 * Retain the most frequently and recently used tiles by a
+	 * {@link TinyLfuPolicy}.  If a policy is set already, its capacity is
+	 * changed, such that its history is kept.  The {@link LruPolicy} that
+	 * {@link #setAllocator(SlabAllocator)} sets is replaced.  Tiles that are
+	 * stored off-heap are always evicted by a policy, so with an allocator,
+	 * at least one tile is retained.
+	 * 
+	 * @param capacity number of retained tiles, 0 retains nothing
+	 */
+	public void setRetainedTiles( final int capacity )
+	{
+		synchronized ( cache )
+		{
+			if ( capacity <= 0 && allocator == null )
+			{
+				cache.setPolicy( null );
+				allocatorPolicy = false;
+			}
+			else if ( cache.getPolicy() == null || allocatorPolicy )
+			{
+				cache.setPolicy( new TinyLfuPolicy< K >( Math.max( 1, capacity ) ) );
+				allocatorPolicy = false;
+			}
+			else
+				cache.setCapacity( Math.max( 1, capacity ) );
+		}
+	}
+	
+	/**
+	 * @return the number of tile requests since the last call, see
+	 * 		{@link Cache#takeRequests()}
+	 */
+	public long takeRequests()
+	{
+		synchronized ( cache )
+		{
+			return cache.takeRequests();
+		}
+	}
+	
+	/**
+	 * Start a new frame: tiles used in the previous frame stay pinned, older
+	 * pins are released, see {@link Cache#releasePins()}.
+	 */
+	public void releasePins()
+	{
+		synchronized ( cache )
+		{
+			cache.releasePins();
+		}
+	}
+	
+	/* tiles that failed to load, retried with backoff or presented as empty if missing */
+	final protected FailureTracker< K > failures = new FailureTracker< K >();
+	
+	public FailureTracker< K > getFailureTracker()
+	{
+		return failures;
+	}
+	
+	/* optional second level cache for raw tile bytes, null if not used */
+	protected DiskCache diskCache = null;
+	
+	public DiskCache getDiskCache()
+	{
+		return diskCache;
+	}
+	
+	public void setDiskCache( final DiskCache diskCache )
+	{
+		this.diskCache = diskCache;
+	}
+	
+	/* optional cold tier for compressed tiles evicted from the cache, null if not used */
+	protected CompressedTileCache< K > compressedCache = null;
+	
+	public CompressedTileCache< K > getCompressedCache()
+	{
+		return compressedCache;
+	}
+	
+	public void setCompressedCache( final CompressedTileCache< K > compressedCache )
+	{
+		this.compressedCache = compressedCache;
+	}
+	
+	/**
+	 * Use a new {@link CompressedTileCache} of the given size.
+	 * 
+	 * @param maxBytes 0 disables the compressed cache
+	 */
+	public void setCompressedCacheBytes( final long maxBytes )
+	{
+		setCompressedCache( maxBytes > 0 ? new CompressedTileCache< K >( maxBytes ) : null );
+	}
+	
+	/* optional non-blocking loader for tiles that are not cached, null to load them in the fetcher thread */
+	protected TileLoader asyncLoader = null;
+	
+	public TileLoader getAsyncLoader()
+	{
+		return asyncLoader;
+	}
+	
+	/**
+	 * Load tiles that are not cached by a {@link TileLoader}, e.g. an
+	 * {@link AsyncTileLoader}, such that many requests can be in flight at a
+	 * time.  The loader can be shared by
+	 * several sources, e.g. all levels of a pyramid.  Only sources that load
+	 * in the background use it.
+	 * 
+	 * @param asyncLoader null to load tiles one by one
+	 */
+	public void setAsyncLoader( final TileLoader asyncLoader )
+	{
+		this.asyncLoader = asyncLoader;
+	}
+	
+	/* milliseconds that a RandomAccess waits for a pending tile, 0 to never wait */
+	protected long blockingTimeout = 0;
+	
+	public long getBlockingTimeout()
+	{
+		return blockingTimeout;
+	}
+	
+	/**
+	 * Let RandomAccesses wait for tiles that are not loaded yet, up to the
+	 * given timeout per tile, instead of returning them invalid.  Tiles that
+	 * are not valid after the timeout are returned invalid as usual.  With
+	 * this, analysis code can read complete data while tiles are loaded in
+	 * parallel by the background fetcher and an {@link AsyncTileLoader}.
+	 * Only sources that load in the background use it.
+	 * 
+	 * @param blockingTimeout 0 to never wait
+	 */
+	public void setBlockingTimeout( final long blockingTimeout )
+	{
+		this.blockingTimeout = blockingTimeout;
+	}
+	
+	/* number of tiles that a waiting RandomAccess queues ahead of the tile it waits for */
+	protected int blockingLookAhead = 16;
+	
+	public int getBlockingLookAhead()
+	{
+		return blockingLookAhead;
+	}
+	
+	/**
+	 * Let a RandomAccess that waits for a tile, see
+	 * {@link #setBlockingTimeout(long)}, queue the next tiles of its region
+	 * in raster order first, such that they are loaded in parallel instead
+	 * of one after the other.  The region is the interval that the
+	 * RandomAccess was created for or the whole source.
+	 * 
+	 * @param blockingLookAhead 0 to queue only the tile that is waited for
+	 */
+	public void setBlockingLookAhead( final int blockingLookAhead )
+	{
+		this.blockingLookAhead = blockingLookAhead;
+	}
+	
+	/* optional off-heap storage for tile payloads, null if tiles are on the heap */
+	protected SlabAllocator allocator = null;
+	
+	public SlabAllocator getAllocator()
+	{
+		return allocator;
+	}
+	
+	/**
+	 * Store the payload of new tiles in blocks of an off-heap
+	 * {@link SlabAllocator}.  The block size must match the payload size.
+	 * Off-heap tiles put no pressure on the heap, so they are not released
+	 * by the garbage collector but by the {@link CachePolicy}.  If no policy
+	 * is set, a {@link LruPolicy} that retains as many tiles as the
+	 * allocator has blocks is set until
+	 * {@link #setRetainedTiles(int)} sets a retention policy.
+	 * 
+	 * @param allocator null to store tiles on the heap
+	 */
+	public void setAllocator( final SlabAllocator allocator )
+	{
+		this.allocator = allocator;
+		if ( allocator != null )
+		{
+			synchronized ( cache )
+			{
+				if ( cache.getPolicy() == null )
+				{
+					cache.setPolicy( new LruPolicy< K >( ( int )Math.min( Integer.MAX_VALUE, allocator.getMaxBlocks() ) ) );
+					allocatorPolicy = true;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Get an off-heap block for a new tile.  If the allocator is exhausted,
+	 * retained tiles are evicted in the order of the {@link CachePolicy}
+	 * until one of them returns its block.  Tiles that are pinned keep their
+	 * blocks.
+	 * 
+	 * @return the block or null if tiles are on the heap or no block could
+	 * 		be freed, the tile is then stored on the heap
+	 */
+	protected ByteBuffer allocateBlock()
+	{
+		final SlabAllocator allocator = this.allocator;
+		if ( allocator == null )
+			return null;
+		
+		ByteBuffer block = allocator.allocate();
+		while ( block == null )
+		{
+			synchronized ( cache )
+			{
+				if ( cache.evict( 1 ) == 0 )
+					return null;
+			}
+			block = allocator.allocate();
+		}
+		return block;
+	}
+	
+	/**
+	 * Read all bytes served at a URL by the default {@link HttpTileClient},
+	 * i.e. over persistent connections with timeouts.
+	 * 
+	 * @param urlString
+	 * @return
+	 * @throws IOException
+	 */
+	static public byte[] readBytes( final String urlString ) throws IOException
+	{
+		return HttpTileClient.getDefault().get( urlString );
+	}
+	
+	/**
+	 * Read all bytes served at a URL by the default {@link HttpTileClient}
+	 * at the given {@link RateLimiter} priority.
+	 * 
+	 * @param urlString
+	 * @param priority
+	 * @return
+	 * @throws IOException
+	 */
+	static public byte[] readBytes( final String urlString, final int priority ) throws IOException
+	{
+		return HttpTileClient.getDefault().get( urlString, priority );
+	}
+	
+	/**
+	 * Get the raw bytes of a tile from the {@link DiskCache} or, if it is not
+	 * there, from the network.  Tiles loaded from the network are written to
+	 * the {@link DiskCache}.
+	 * 
+	 * @param diskCache may be null
+	 * @param dataset
+	 * @param level
+	 * @param tile
+	 * @param urlString
+	 * @return
+	 * @throws IOException
+	 */
+	static public byte[] fetchBytes(
+			final DiskCache diskCache,
+			final String dataset,
+			final long level,
+			final String tile,
+			final String urlString ) throws IOException
+	{
+		return fetchBytes( diskCache, dataset, level, tile, urlString, RateLimiter.VISIBLE );
+	}
+	
+	/**
+	 * Get the raw bytes of a tile like
+	 * {@link #fetchBytes(DiskCache, String, long, String, String)} at the
+	 * given {@link RateLimiter} priority.
+	 */
+	static public byte[] fetchBytes(
+			final DiskCache diskCache,
+			final String dataset,
+			final long level,
+			final String tile,
+			final String urlString,
+			final int priority ) throws IOException
+	{
+		if ( diskCache != null )
+		{
+			final byte[] cachedBytes = diskCache.get( dataset, level, tile );
+			if ( cachedBytes != null )
+				return cachedBytes;
+		}
+		final byte[] bytes = readBytes( urlString, priority );
+		if ( diskCache != null )
+			diskCache.put( dataset, level, tile, bytes );
+		return bytes;
+	}
+	
+	/**
+	 * Get the raw bytes of a tile from the {@link DiskCache} or, if it is not
+	 * there, from its {@link TileSource}.  Tiles read from the
+	 * {@link TileSource} are written to the {@link DiskCache}.
+	 * 
+	 * @param diskCache may be null
+	 * @param tileSource
+	 * @param level
+	 * @param cell
+	 * @param priority see {@link RateLimiter}
+	 * @return
+	 * @throws IOException
+	 */
+	static public byte[] fetchBytes(
+			final DiskCache diskCache,
+			final TileSource< ? > tileSource,
+			final long level,
+			final long[] cell,
+			final int priority ) throws IOException
+	{
+		if ( diskCache == null )
+			return tileSource.read( level, cell, priority );
+		
+		final String dataset = tileSource.getDataset();
+		final String tile = tileSource.tileName( level, cell );
+		final byte[] cachedBytes = diskCache.get( dataset, level, tile );
+		if ( cachedBytes != null )
+			return cachedBytes;
+		final byte[] bytes = tileSource.read( level, cell, priority );
+		diskCache.put( dataset, level, tile, bytes );
+		return bytes;
+	}
 }
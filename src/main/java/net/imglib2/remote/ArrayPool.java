@@ -0,0 +1,170 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * <p>A pool of recycled arrays of one length.  Cache entries return their
+ * arrays when they are finalized and new entries take them from the pool
+ * instead of allocating, which keeps the allocation rate low while
+ * browsing.  Arrays are cleared when they are taken from the pool, i.e.
+ * they look exactly like new arrays.</p>
+ *
+ * <p>There is one shared pool per array type and length, see
+ * {@link #intArrays(int)} and {@link #byteArrays(int)}.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+abstract public class ArrayPool< A >
+{
+	static public class IntArrays extends ArrayPool< int[] >
+	{
+		public IntArrays( final int length, final int maxSize )
+		{
+			super( length, maxSize );
+		}
+		
+		@Override
+		protected int[] create()
+		{
+			return new int[ length ];
+		}
+		
+		@Override
+		protected void clear( final int[] array )
+		{
+			Arrays.fill( array, 0 );
+		}
+	}
+	
+	static public class ByteArrays extends ArrayPool< byte[] >
+	{
+		public ByteArrays( final int length, final int maxSize )
+		{
+			super( length, maxSize );
+		}
+		
+		@Override
+		protected byte[] create()
+		{
+			return new byte[ length ];
+		}
+		
+		@Override
+		protected void clear( final byte[] array )
+		{
+			Arrays.fill( array, ( byte )0 );
+		}
+	}
+	
+	/* default number of arrays kept in a shared pool */
+	final static public int defaultMaxSize = 64;
+	
+	final static protected HashMap< Integer, IntArrays > intArrays = new HashMap< Integer, IntArrays >();
+	final static protected HashMap< Integer, ByteArrays > byteArrays = new HashMap< Integer, ByteArrays >();
+	
+	final protected int length;
+	final protected int maxSize;
+	final protected ArrayList< A > free = new ArrayList< A >();
+	
+	/**
+	 * @param length length of the arrays
+	 * @param maxSize maximum number of arrays kept for reuse, arrays
+	 * 		recycled beyond that are left to the garbage collector
+	 */
+	public ArrayPool( final int length, final int maxSize )
+	{
+		this.length = length;
+		this.maxSize = maxSize;
+	}
+	
+	abstract protected A create();
+	
+	abstract protected void clear( final A array );
+	
+	public int getLength()
+	{
+		return length;
+	}
+	
+	/**
+	 * @return a recycled and cleared or a new array
+	 */
+	public A get()
+	{
+		final A array;
+		synchronized ( this )
+		{
+			if ( free.isEmpty() )
+				return create();
+			array = free.remove( free.size() - 1 );
+		}
+		clear( array );
+		return array;
+	}
+	
+	/**
+	 * Return an array to the pool.  The array must not be used after.
+	 */
+	synchronized public void recycle( final A array )
+	{
+		if ( free.size() < maxSize )
+			free.add( array );
+	}
+	
+	synchronized public int size()
+	{
+		return free.size();
+	}
+	
+	/**
+	 * The shared pool of int[] arrays of the given length.
+	 */
+	static public IntArrays intArrays( final int length )
+	{
+		synchronized ( intArrays )
+		{
+			IntArrays pool = intArrays.get( length );
+			if ( pool == null )
+			{
+				pool = new IntArrays( length, defaultMaxSize );
+				intArrays.put( length, pool );
+			}
+			return pool;
+		}
+	}
+	
+	/**
+	 * The shared pool of byte[] arrays of the given length.
+	 */
+	static public ByteArrays byteArrays( final int length )
+	{
+		synchronized ( byteArrays )
+		{
+			ByteArrays pool = byteArrays.get( length );
+			if ( pool == null )
+			{
+				pool = new ByteArrays( length, defaultMaxSize );
+				byteArrays.put( length, pool );
+			}
+			return pool;
+		}
+	}
+}
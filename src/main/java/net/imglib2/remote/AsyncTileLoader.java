@@ -0,0 +1,881 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+
+/**
+ * <p>Loads tiles over HTTP without blocking a thread per request.  One
+ * thread multiplexes all connections with a {@link Selector}, so hundreds
+ * of requests can be in flight on high latency links.  Responses are
+ * handed to a small pool of decoder threads that run the
+ * {@link Callback callbacks}, i.e. decode the tiles.</p>
+ *
+ * <p>The number of requests in flight, including those being decoded, is
+ * bounded by a {@link CongestionWindow} that adapts to the measured
+ * latency and to throttling by the server:
+ * {@link #submit(String, Callback)} blocks while the window is full.  Connections are kept alive and reused, at most
+ * maxConnectionsPerHost per host, each with up to pipelineDepth requests
+ * sent ahead of their responses.  Requests of a connection that is closed
+ * before they are answered are sent again on another connection.</p>
+ *
+ * <p>Requests wait for the {@link RateLimiter} of their host, visible tiles
+ * are sent before prefetched tiles.</p>
+ *
+ * <p>Only plain http is multiplexed, URLs of other protocols, e.g. https
+ * or file:, are loaded by the decoder threads through
+ * {@link HttpTileClient#getDefault()}.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class AsyncTileLoader implements TileLoader
+{
+	static protected class Request
+	{
+		final public String urlString;
+		final public String hostKey;
+		final public String host;
+		final public int port;
+		final public byte[] head;
+		final public Callback callback;
+		final public int priority;
+		public int attempts = 0;
+		public long sentTime;
+		
+		public Request( final String urlString, final URL url, final int priority, final Callback callback ) throws UnsupportedEncodingException
+		{
+			this.urlString = urlString;
+			this.priority = priority;
+			this.callback = callback;
+			host = url.getHost();
+			port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+			hostKey = host + ":" + port;
+			final String path = url.getFile().length() == 0 ? "/" : url.getFile();
+			head = new StringBuffer( "GET " ).
+					append( path ).
+					append( " HTTP/1.1\r\nHost: " ).
+					append( port == 80 ? host : hostKey ).
+					append( "\r\nAccept-Encoding: identity\r\n\r\n" ).
+					toString().getBytes( "ISO-8859-1" );
+		}
+		
+		/**
+		 * A request that cannot be sent, it only delivers its failure.
+		 */
+		public Request( final String urlString, final Callback callback )
+		{
+			this.urlString = urlString;
+			this.callback = callback;
+			priority = RateLimiter.VISIBLE;
+			host = null;
+			port = -1;
+			hostKey = null;
+			head = null;
+		}
+	}
+	
+	/* response parser states */
+	final static protected int HEAD = 0;
+	final static protected int BODY = 1;
+	final static protected int CHUNK_SIZE = 2;
+	final static protected int CHUNK = 3;
+	final static protected int TRAILER = 4;
+	final static protected int UNTIL_CLOSE = 5;
+	
+	final static protected Comparator< Request > byPriority = new Comparator< Request >()
+	{
+		@Override
+		public int compare( final Request a, final Request b )
+		{
+			return a.priority > b.priority ? -1 : a.priority == b.priority ? 0 : 1;
+		}
+	};
+	
+	final static protected byte[] CRLF = new byte[]{ '\r', '\n' };
+	final static protected byte[] CRLFCRLF = new byte[]{ '\r', '\n', '\r', '\n' };
+	
+	static protected class Connection
+	{
+		final public String hostKey;
+		final public SocketChannel channel;
+		public SelectionKey selectionKey;
+		
+		/* requests sent or being sent, answered in this order */
+		final public LinkedList< Request > sent = new LinkedList< Request >();
+		final public LinkedList< ByteBuffer > out = new LinkedList< ByteBuffer >();
+		
+		public byte[] in = new byte[ 64 * 1024 ];
+		public int inLength = 0;
+		public long lastActivity = System.currentTimeMillis();
+		
+		public int state = HEAD;
+		public int status;
+		public int contentLength;
+		public int chunkRemaining;
+		public ByteArrayOutputStream chunks;
+		
+		/* the server closes the connection after the current response */
+		public boolean closing = false;
+		
+		public Connection( final String hostKey, final SocketChannel channel )
+		{
+			this.hostKey = hostKey;
+			this.channel = channel;
+		}
+	}
+	
+	protected class IOThread extends Thread
+	{
+		@Override
+		final public void run()
+		{
+			while ( !isInterrupted() )
+			{
+				try
+				{
+					final long rateDelay = dispatch();
+					selector.select( rateDelay > 0 ? Math.min( 250, rateDelay ) : 250 );
+					final Iterator< SelectionKey > i = selector.selectedKeys().iterator();
+					while ( i.hasNext() )
+					{
+						final SelectionKey key = i.next();
+						i.remove();
+						final Connection connection = ( Connection )key.attachment();
+						try
+						{
+							if ( key.isValid() && key.isConnectable() )
+							{
+								connection.channel.finishConnect();
+								connection.lastActivity = System.currentTimeMillis();
+								updateInterest( connection );
+							}
+							if ( key.isValid() && key.isWritable() )
+								write( connection );
+							if ( key.isValid() && key.isReadable() )
+								read( connection );
+						}
+						catch ( final IOException e )
+						{
+							close( connection, e );
+						}
+					}
+					closeTimedOut();
+				}
+				catch ( final IOException e )
+				{
+					System.out.println( "failed selecting connections" );
+				}
+			}
+			for ( final ArrayList< Connection > hostConnections : new ArrayList< ArrayList< Connection > >( connections.values() ) )
+				for ( final Connection connection : new ArrayList< Connection >( hostConnections ) )
+					close( connection, new IOException( "loader shut down" ) );
+			synchronized ( submitted )
+			{
+				waiting.addAll( submitted );
+				submitted.clear();
+			}
+			for ( final Request request : waiting )
+				deliver( request, new IOException( "loader shut down" ) );
+			waiting.clear();
+		}
+	}
+	
+	final protected CongestionWindow window;
+	final protected int maxConnectionsPerHost;
+	final protected int pipelineDepth;
+	
+	protected int maxAttempts = 3;
+	protected long timeoutMillis = 30 * 1000;
+	
+	final protected Selector selector;
+	final protected ExecutorService decoders;
+	final protected IOThread ioThread;
+	
+	/* submitted and not yet completed requests, including those being decoded */
+	protected int inFlight = 0;
+	
+	/* submitted requests not yet seen by the IO thread */
+	final protected LinkedList< Request > submitted = new LinkedList< Request >();
+	
+	/* owned by the IO thread */
+	final protected LinkedList< Request > waiting = new LinkedList< Request >();
+	final protected HashMap< String, ArrayList< Connection > > connections = new HashMap< String, ArrayList< Connection > >();
+	
+	/* statistics */
+	protected long requests = 0;
+	protected long failures = 0;
+	protected long bytes = 0;
+	
+	/**
+	 * @param window decides the number of requests in flight
+	 * @param maxConnectionsPerHost
+	 * @param pipelineDepth maximum number of requests sent on a connection
+	 * 		ahead of their responses, 1 disables pipelining
+	 * @param numDecoders number of decoder threads
+	 * @throws IOException
+	 */
+	public AsyncTileLoader(
+			final CongestionWindow window,
+			final int maxConnectionsPerHost,
+			final int pipelineDepth,
+			final int numDecoders ) throws IOException
+	{
+		this.window = window;
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		this.pipelineDepth = pipelineDepth;
+		
+		selector = Selector.open();
+		decoders = Executors.newFixedThreadPool( numDecoders, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread( final Runnable runnable )
+			{
+				final Thread thread = new Thread( runnable, "tile decoder" );
+				thread.setDaemon( true );
+				return thread;
+			}
+		} );
+		ioThread = new IOThread();
+		ioThread.setDaemon( true );
+		ioThread.start();
+	}
+	
+	/**
+	 * @param maxInFlight maximum number of requests in flight, the window
+	 * 		starts at 16 and adapts between 4 and maxInFlight
+	 * @param maxConnectionsPerHost
+	 * @param pipelineDepth maximum number of requests sent on a connection
+	 * 		ahead of their responses, 1 disables pipelining
+	 * @param numDecoders number of decoder threads
+	 * @throws IOException
+	 */
+	public AsyncTileLoader(
+			final int maxInFlight,
+			final int maxConnectionsPerHost,
+			final int pipelineDepth,
+			final int numDecoders ) throws IOException
+	{
+		this(
+				new CongestionWindow( Math.min( 4, maxInFlight ), Math.min( 16, maxInFlight ), maxInFlight ),
+				maxConnectionsPerHost,
+				pipelineDepth,
+				numDecoders );
+	}
+	
+	/**
+	 * Create a loader with 16 connections per host without pipelining and
+	 * one decoder per core.
+	 * 
+	 * @param maxInFlight
+	 * @throws IOException
+	 */
+	public AsyncTileLoader( final int maxInFlight ) throws IOException
+	{
+		this( maxInFlight, 16, 1, Runtime.getRuntime().availableProcessors() );
+	}
+	
+	public int getMaxInFlight()
+	{
+		return window.getMaxWindow();
+	}
+	
+	/**
+	 * @return the window with the current concurrency, latency and
+	 * 		throughput
+	 */
+	public CongestionWindow getCongestionWindow()
+	{
+		return window;
+	}
+	
+	synchronized public int getInFlight()
+	{
+		return inFlight;
+	}
+	
+	synchronized public void setTimeout( final long timeoutMillis )
+	{
+		this.timeoutMillis = timeoutMillis;
+	}
+	
+	/**
+	 * Request a visible tile, see {@link #submit(String, int, Callback)}.
+	 */
+	public void submit( final String urlString, final Callback callback ) throws InterruptedException
+	{
+		submit( urlString, RateLimiter.VISIBLE, callback );
+	}
+	
+	@Override
+	public void submit( final String urlString, final int priority, final Callback callback ) throws InterruptedException
+	{
+		synchronized ( this )
+		{
+			while ( inFlight >= window.getWindow() )
+				wait();
+			++inFlight;
+		}
+		
+		final URL url;
+		try
+		{
+			url = new URL( urlString );
+		}
+		catch ( final MalformedURLException e )
+		{
+			deliver( new Request( urlString, callback ), e );
+			return;
+		}
+		
+		if ( !url.getProtocol().equals( "http" ) )
+		{
+			decoders.execute( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						final byte[] data;
+						try
+						{
+							data = HttpTileClient.getDefault().get( urlString, priority );
+						}
+						catch ( final IOException e )
+						{
+							synchronized ( AsyncTileLoader.this )
+							{
+								++failures;
+							}
+							callback.failed( e );
+							return;
+						}
+						synchronized ( AsyncTileLoader.this )
+						{
+							++requests;
+							bytes += data.length;
+						}
+						callback.loaded( data );
+					}
+					finally
+					{
+						complete();
+					}
+				}
+			} );
+			return;
+		}
+		
+		final Request request;
+		try
+		{
+			request = new Request( urlString, url, priority, callback );
+		}
+		catch ( final UnsupportedEncodingException e )
+		{
+			deliver( new Request( urlString, callback ), e );
+			return;
+		}
+		synchronized ( submitted )
+		{
+			submitted.add( request );
+		}
+		selector.wakeup();
+	}
+	
+	synchronized protected void complete()
+	{
+		--inFlight;
+		notifyAll();
+	}
+	
+	/**
+	 * Run the callback of a successful or failed request on a decoder thread.
+	 */
+	protected void deliver( final Request request, final int status, final byte[] body )
+	{
+		decoders.execute( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					if ( status / 100 == 2 )
+					{
+						synchronized ( AsyncTileLoader.this )
+						{
+							++requests;
+							bytes += body.length;
+						}
+						request.callback.loaded( body );
+					}
+					else
+					{
+						synchronized ( AsyncTileLoader.this )
+						{
+							++failures;
+						}
+						if ( status == 404 || status == 410 )
+							request.callback.failed( new FileNotFoundException( request.urlString ) );
+						else
+							request.callback.failed( new IOException( "server returned " + status + " for " + request.urlString ) );
+					}
+				}
+				finally
+				{
+					complete();
+				}
+			}
+		} );
+	}
+	
+	protected void deliver( final Request request, final IOException e )
+	{
+		decoders.execute( new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					synchronized ( AsyncTileLoader.this )
+					{
+						++failures;
+					}
+					request.callback.failed( e );
+				}
+				finally
+				{
+					complete();
+				}
+			}
+		} );
+	}
+	
+	/**
+	 * Assign waiting requests to connections by priority, open connections
+	 * as needed.
+	 * 
+	 * @return milliseconds until the next rate limited request may be sent,
+	 * 		0 if no request waits for the {@link RateLimiter}
+	 */
+	protected long dispatch()
+	{
+		synchronized ( submitted )
+		{
+			if ( !submitted.isEmpty() )
+			{
+				waiting.addAll( submitted );
+				submitted.clear();
+				Collections.sort( waiting, byPriority );
+			}
+		}
+		final RateLimiter rateLimiter = RateLimiter.getDefault();
+		long rateDelay = 0;
+		for ( final Iterator< Request > i = waiting.iterator(); i.hasNext(); )
+		{
+			final Request request = i.next();
+			final long delay = rateLimiter.delayMillis( request.host );
+			if ( delay > 0 )
+			{
+				rateDelay = rateDelay == 0 ? delay : Math.min( rateDelay, delay );
+				continue;
+			}
+			
+			ArrayList< Connection > hostConnections = connections.get( request.hostKey );
+			if ( hostConnections == null )
+			{
+				hostConnections = new ArrayList< Connection >();
+				connections.put( request.hostKey, hostConnections );
+			}
+			
+			/* the least busy connection that can take another request */
+			Connection connection = null;
+			for ( final Connection c : hostConnections )
+				if ( !c.closing && c.sent.size() < pipelineDepth && ( connection == null || c.sent.size() < connection.sent.size() ) )
+					connection = c;
+			
+			if ( connection == null || ( connection.sent.size() > 0 && hostConnections.size() < maxConnectionsPerHost ) )
+			{
+				if ( hostConnections.size() < maxConnectionsPerHost )
+				{
+					try
+					{
+						connection = open( request );
+						hostConnections.add( connection );
+					}
+					catch ( final IOException e )
+					{
+						i.remove();
+						deliver( request, e );
+						continue;
+					}
+				}
+				else if ( connection == null )
+					continue;
+			}
+			
+			/* a blocking request of the same or a higher priority waits for the token, try again soon */
+			if ( !rateLimiter.tryAcquire( request.host, request.priority ) )
+			{
+				rateDelay = 1;
+				continue;
+			}
+			
+			i.remove();
+			request.sentTime = System.currentTimeMillis();
+			if ( connection.sent.isEmpty() )
+				connection.lastActivity = request.sentTime;
+			connection.sent.add( request );
+			connection.out.add( ByteBuffer.wrap( request.head ) );
+			updateInterest( connection );
+		}
+		return rateDelay;
+	}
+	
+	protected Connection open( final Request request ) throws IOException
+	{
+		final InetSocketAddress address = new InetSocketAddress( request.host, request.port );
+		if ( address.isUnresolved() )
+			throw new UnknownHostException( request.host );
+		final SocketChannel channel = SocketChannel.open();
+		try
+		{
+			channel.configureBlocking( false );
+			channel.socket().setTcpNoDelay( true );
+			channel.connect( address );
+			final Connection connection = new Connection( request.hostKey, channel );
+			connection.selectionKey = channel.register( selector, SelectionKey.OP_CONNECT, connection );
+			return connection;
+		}
+		catch ( final IOException e )
+		{
+			channel.close();
+			throw e;
+		}
+	}
+	
+	protected void updateInterest( final Connection connection )
+	{
+		if ( !connection.selectionKey.isValid() )
+			return;
+		if ( !connection.channel.isConnected() )
+			connection.selectionKey.interestOps( SelectionKey.OP_CONNECT );
+		else
+			connection.selectionKey.interestOps( SelectionKey.OP_READ | ( connection.out.isEmpty() ? 0 : SelectionKey.OP_WRITE ) );
+	}
+	
+	protected void write( final Connection connection ) throws IOException
+	{
+		while ( !connection.out.isEmpty() )
+		{
+			final ByteBuffer buffer = connection.out.getFirst();
+			connection.channel.write( buffer );
+			if ( buffer.hasRemaining() )
+				break;
+			connection.out.removeFirst();
+		}
+		updateInterest( connection );
+	}
+	
+	protected void read( final Connection connection ) throws IOException
+	{
+		if ( connection.inLength == connection.in.length )
+			connection.in = Arrays.copyOf( connection.in, 2 * connection.in.length );
+		final int n = connection.channel.read( ByteBuffer.wrap( connection.in, connection.inLength, connection.in.length - connection.inLength ) );
+		if ( n < 0 )
+		{
+			close( connection, null );
+			return;
+		}
+		connection.inLength += n;
+		connection.lastActivity = System.currentTimeMillis();
+		parse( connection );
+		if ( connection.closing && connection.state == HEAD )
+			close( connection, null );
+	}
+	
+	static protected int indexOf( final byte[] data, final int from, final int to, final byte[] pattern )
+	{
+		for ( int i = from; i <= to - pattern.length; ++i )
+		{
+			int j = 0;
+			while ( j < pattern.length && data[ i + j ] == pattern[ j ] )
+				++j;
+			if ( j == pattern.length )
+				return i;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Parse all complete responses in the input buffer.
+	 */
+	protected void parse( final Connection c ) throws IOException
+	{
+		int pos = 0;
+		boolean complete = true;
+		while ( complete )
+		{
+			switch ( c.state )
+			{
+			case HEAD:
+			{
+				final int end = indexOf( c.in, pos, c.inLength, CRLFCRLF );
+				if ( complete = end >= 0 )
+				{
+					parseHead( c, new String( c.in, pos, end - pos, "ISO-8859-1" ) );
+					pos = end + 4;
+				}
+				break;
+			}
+			case BODY:
+				if ( complete = c.inLength - pos >= c.contentLength )
+				{
+					final byte[] body = Arrays.copyOfRange( c.in, pos, pos + c.contentLength );
+					pos += c.contentLength;
+					respond( c, body );
+				}
+				break;
+			case CHUNK_SIZE:
+			{
+				final int end = indexOf( c.in, pos, c.inLength, CRLF );
+				if ( complete = end >= 0 )
+				{
+					String line = new String( c.in, pos, end - pos, "ISO-8859-1" );
+					final int extension = line.indexOf( ';' );
+					if ( extension >= 0 )
+						line = line.substring( 0, extension );
+					try
+					{
+						c.chunkRemaining = Integer.parseInt( line.trim(), 16 );
+					}
+					catch ( final NumberFormatException e )
+					{
+						throw new IOException( "bad chunk size " + line );
+					}
+					pos = end + 2;
+					c.state = c.chunkRemaining == 0 ? TRAILER : CHUNK;
+				}
+				break;
+			}
+			case CHUNK:
+				if ( complete = c.inLength - pos >= c.chunkRemaining + 2 )
+				{
+					c.chunks.write( c.in, pos, c.chunkRemaining );
+					pos += c.chunkRemaining + 2;
+					c.state = CHUNK_SIZE;
+				}
+				break;
+			case TRAILER:
+			{
+				final int end = indexOf( c.in, pos, c.inLength, CRLF );
+				if ( complete = end >= 0 )
+				{
+					final boolean last = end == pos;
+					pos = end + 2;
+					if ( last )
+						respond( c, c.chunks.toByteArray() );
+				}
+				break;
+			}
+			default:
+				/* the body ends when the connection is closed */
+				complete = false;
+			}
+		}
+		System.arraycopy( c.in, pos, c.in, 0, c.inLength - pos );
+		c.inLength -= pos;
+	}
+	
+	protected void parseHead( final Connection c, final String head ) throws IOException
+	{
+		final String[] lines = head.split( "\r\n" );
+		final String[] statusLine = lines[ 0 ].split( " " );
+		if ( statusLine.length < 2 || !statusLine[ 0 ].startsWith( "HTTP/" ) )
+			throw new IOException( "bad status line " + lines[ 0 ] );
+		try
+		{
+			c.status = Integer.parseInt( statusLine[ 1 ] );
+		}
+		catch ( final NumberFormatException e )
+		{
+			throw new IOException( "bad status line " + lines[ 0 ] );
+		}
+		
+		/* interim response, the actual response follows */
+		if ( c.status / 100 == 1 )
+			return;
+		
+		boolean chunked = false;
+		c.contentLength = -1;
+		c.closing = statusLine[ 0 ].equals( "HTTP/1.0" );
+		for ( int i = 1; i < lines.length; ++i )
+		{
+			final int colon = lines[ i ].indexOf( ':' );
+			if ( colon < 0 )
+				continue;
+			final String name = lines[ i ].substring( 0, colon ).trim().toLowerCase();
+			final String value = lines[ i ].substring( colon + 1 ).trim().toLowerCase();
+			if ( name.equals( "content-length" ) )
+			{
+				try
+				{
+					c.contentLength = Integer.parseInt( value );
+				}
+				catch ( final NumberFormatException e )
+				{
+					throw new IOException( "bad content length " + value );
+				}
+			}
+			else if ( name.equals( "transfer-encoding" ) )
+				chunked = value.contains( "chunked" );
+			else if ( name.equals( "connection" ) )
+				c.closing = value.contains( "close" ) || ( c.closing && !value.contains( "keep-alive" ) );
+		}
+		
+		if ( chunked )
+		{
+			c.chunks = new ByteArrayOutputStream();
+			c.state = CHUNK_SIZE;
+		}
+		else if ( c.contentLength >= 0 )
+			c.state = BODY;
+		else
+		{
+			c.closing = true;
+			c.state = UNTIL_CLOSE;
+		}
+	}
+	
+	protected void respond( final Connection c, final byte[] body )
+	{
+		c.state = HEAD;
+		c.chunks = null;
+		if ( !c.sent.isEmpty() )
+		{
+			final Request request = c.sent.removeFirst();
+			if ( c.status == 429 || c.status == 503 )
+				window.congested();
+			else
+				window.served( System.currentTimeMillis() - request.sentTime, body.length );
+			deliver( request, c.status, body );
+		}
+	}
+	
+	/**
+	 * Close a connection and send its unanswered requests again, or fail
+	 * them if they were sent too often.
+	 * 
+	 * @param e the reason or null if the server closed the connection
+	 */
+	protected void close( final Connection c, final IOException e )
+	{
+		c.selectionKey.cancel();
+		try
+		{
+			c.channel.close();
+		}
+		catch ( final IOException f ) {}
+		
+		final ArrayList< Connection > hostConnections = connections.get( c.hostKey );
+		if ( hostConnections != null )
+			hostConnections.remove( c );
+		
+		if ( e == null && c.state == UNTIL_CLOSE )
+			respond( c, Arrays.copyOf( c.in, c.inLength ) );
+		
+		/* servers close idle connections, but failures and timeouts are congestion */
+		if ( e != null && !c.sent.isEmpty() )
+			window.congested();
+		
+		while ( !c.sent.isEmpty() )
+		{
+			final Request request = c.sent.removeLast();
+			if ( ++request.attempts < maxAttempts )
+				waiting.addFirst( request );
+			else
+				deliver( request, e == null ? new IOException( "connection closed" ) : e );
+		}
+	}
+	
+	protected void closeTimedOut()
+	{
+		final long timeout;
+		synchronized ( this )
+		{
+			timeout = timeoutMillis;
+		}
+		final long now = System.currentTimeMillis();
+		for ( final ArrayList< Connection > hostConnections : connections.values() )
+			for ( final Connection c : new ArrayList< Connection >( hostConnections ) )
+				if ( ( !c.sent.isEmpty() || !c.channel.isConnected() ) && now - c.lastActivity > timeout )
+					close( c, new SocketTimeoutException( "no response from " + c.hostKey + " for " + timeout + "ms" ) );
+	}
+	
+	@Override
+	public void shutdown()
+	{
+		ioThread.interrupt();
+		selector.wakeup();
+		try
+		{
+			ioThread.join();
+		}
+		catch ( final InterruptedException e ) {}
+		decoders.shutdown();
+	}
+	
+	synchronized public long getRequests()
+	{
+		return requests;
+	}
+	
+	synchronized public long getFailures()
+	{
+		return failures;
+	}
+	
+	synchronized public long getBytes()
+	{
+		return bytes;
+	}
+}
@@ -40,7 +40,9 @@ package net.imglib2.remote;
 import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 
 /**
  * A simple cache that depends on {@link Reference} cleanup triggered by some
@@ -54,30 +56,78 @@ public class Cache< K, E >
 {
 	final protected HashMap< K, Reference< E > > cache = new HashMap< K, Reference< E > >();
 	
+	/* entries used in the current and in the previous frame, strongly referenced to keep them from being collected */
+	protected HashSet< E > pinned = new HashSet< E >();
+	protected HashSet< E > previouslyPinned = new HashSet< E >();
+	protected boolean pinning = false;
+	
+	/* renderers that share the cache and each release pins once per frame */
+	protected int numRenderers = 1;
+	protected int releases = 0;
+	
+	/* optional policy that decides which entries are retained, i.e. strongly referenced */
+	protected CachePolicy< K > policy = null;
+	final protected HashMap< K, E > retained = new HashMap< K, E >();
+	final protected ArrayList< K > evicted = new ArrayList< K >();
+	
+	/* optional listener that demotes or releases entries evicted by the policy, null if not used */
+	protected EvictionListener< E > evictionListener = null;
+	
+	/* requests since the last call of takeRequests() */
+	protected long requests = 0;
+	
+	/**
+	 * Notified about entries that the {@link CachePolicy} stopped retaining
+	 * and that are not {@link Cache#pin(Object) pinned}.  It is called while
+	 * the {@link Cache} is locked.
+	 */
+	static public interface EvictionListener< E >
+	{
+		/**
+		 * @param entry
+		 * @return true if the entry was demoted or released and must no
+		 * 		longer be served by the cache, false to keep it softly
+		 * 		referenced
+		 */
+		public boolean evicted( final E entry );
+	}
+	
 	static public class Entry< K, E extends Entry< K, E > >
 	{
 		final public K key;
 		final HashMap< K, Reference< E > > cache;
 		
+		/* the object that all mutations of cache synchronize on, i.e. the owning Cache */
+		final Object lock;
+		
+		/**
+		 * For a map that is not owned by a {@link Cache}, the map itself is
+		 * locked on finalization.
+		 */
 		public Entry( final K key, final HashMap< K, Reference< E > > cache )
 		{
 			this.key = key;
 			this.cache = cache;
+			lock = cache;
 		}
 		
 		public Entry( final K key, final Cache< K, E > cache )
 		{
 			this.key = key;
 			this.cache = cache.getMap();
+			lock = cache;
 		}
 		
 		@Override
 		public void finalize()
 		{
-			synchronized ( cache )
+			synchronized ( lock )
 			{
 //				System.out.println( "finalizing " + key.toString() );
-				cache.remove( key );
+				/* an evicted entry may have been replaced by a new entry for the same key */
+				final Reference< E > ref = cache.get( key );
+				if ( ref != null && ref.get() == null )
+					cache.remove( key );
 //				System.out.println( cache.size() + " tiles chached." );
 			}
 		}
@@ -97,9 +147,42 @@ public class Cache< K, E >
 		cache.put( key, reference );
 	}
 	
+	/**
+	 * Put a loaded entry that can be collected if memory is low.  If a
+	 * {@link CachePolicy} is set, it is offered to the policy for retention.
+	 * 
+	 * @param key
+	 * @param entry
+	 */
 	public void putSoft( final K key, final E entry )
 	{
 		cache.put( key, new SoftReference< E >( entry ) );
+		if ( policy != null )
+		{
+			policy.add( key, evicted );
+			retained.put( key, entry );
+			processEvicted();
+		}
+	}
+	
+	/**
+	 * Stop retaining the entries whose keys the {@link CachePolicy} put into
+	 * {@link #evicted} and offer them to the {@link EvictionListener}.
+	 */
+	protected void processEvicted()
+	{
+		for ( final K k : evicted )
+		{
+			final E entry = retained.remove( k );
+			if (
+					entry != null &&
+					evictionListener != null &&
+					!pinned.contains( entry ) &&
+					!previouslyPinned.contains( entry ) &&
+					evictionListener.evicted( entry ) )
+				cache.remove( k );
+		}
+		evicted.clear();
 	}
 	
 	public void putWeak( final K key, final E entry )
@@ -107,8 +190,35 @@ public class Cache< K, E >
 		cache.put( key, new WeakReference< E >( entry ) );
 	}
 	
+	/**
+	 * Evict up to n retained entries in the order of the
+	 * {@link CachePolicy} and offer them to the {@link EvictionListener},
+	 * e.g. to release their off-heap memory.
+	 * 
+	 * @param n
+	 * @return the number of entries that were evicted, 0 if no policy is
+	 * 		set or nothing is retained
+	 */
+	public int evict( final int n )
+	{
+		if ( policy == null )
+			return 0;
+		
+		final int capacity = policy.getCapacity();
+		policy.setCapacity( Math.max( 0, policy.size() - n ), evicted );
+		policy.setCapacity( capacity, evicted );
+		final int numEvicted = evicted.size();
+		processEvicted();
+		return numEvicted;
+	}
+	
 	public E remove( final K key )
 	{
+		if ( policy != null )
+		{
+			policy.remove( key );
+			retained.remove( key );
+		}
 		final Reference< E > ref = cache.remove( key );
 		if ( ref != null )
 			return ref.get();
@@ -116,6 +226,179 @@ public class Cache< K, E >
 			return null;
 	}
 	
+	/**
+	 * Keep an entry from being garbage collected until the frame after the
+	 * next call of {@link #releasePins()}, i.e. an entry that is used in
+	 * every frame is never collected.  Does nothing unless
+	 * {@link #setPinning(boolean) pinning} is enabled.
+	 * 
+	 * @param entry
+	 */
+	public void pin( final E entry )
+	{
+		if ( pinning )
+			pinned.add( entry );
+	}
+	
+	/**
+	 * Record a request for an entry: {@link #pin(Object) pin} it and count
+	 * it for the {@link CachePolicy}.  If pinning is enabled, a request is
+	 * counted only once per frame, otherwise each request is counted.
+	 * 
+	 * @param key
+	 * @param entry
+	 */
+	public void use( final K key, final E entry )
+	{
+		if ( pinning && !pinned.add( entry ) )
+			return;
+		++requests;
+		if ( policy != null )
+			policy.access( key );
+	}
+	
+	public CachePolicy< K > getPolicy()
+	{
+		return policy;
+	}
+	
+	/**
+	 * Set the policy that decides which entries are retained.  Retained
+	 * entries are never garbage collected, all others are softly referenced
+	 * as without a policy.  Entries retained by the previous policy are
+	 * offered to the new policy, other entries that are cached already are
+	 * not.
+	 * 
+	 * @param policy null to retain nothing
+	 */
+	public void setPolicy( final CachePolicy< K > policy )
+	{
+		this.policy = policy;
+		if ( policy == null )
+			retained.clear();
+		else
+		{
+			for ( final K key : retained.keySet() )
+				policy.add( key, evicted );
+			processEvicted();
+		}
+	}
+	
+	/**
+	 * Change the number of retained entries.  Does nothing unless a
+	 * {@link CachePolicy} is set.
+	 * 
+	 * @param capacity
+	 */
+	public void setCapacity( final int capacity )
+	{
+		if ( policy == null )
+			return;
+		policy.setCapacity( capacity, evicted );
+		processEvicted();
+	}
+	
+	/**
+	 * @return the number of requests {@link #use(Object, Object) recorded}
+	 * 		since the last call
+	 */
+	public long takeRequests()
+	{
+		final long r = requests;
+		requests = 0;
+		return r;
+	}
+	
+	/**
+	 * Start a new frame.  Entries pinned during the previous frame remain
+	 * pinned for this frame, entries pinned before are released.  If
+	 * several renderers share the cache, a new frame starts only every
+	 * {@link #setNumRenderers(int) numRenderers} calls, such that a
+	 * renderer does not release the pins of a frame that another renderer
+	 * has not painted yet.
+	 */
+	public void releasePins()
+	{
+		if ( ++releases < numRenderers )
+			return;
+		releases = 0;
+		
+		final HashSet< E > released = previouslyPinned;
+		previouslyPinned = pinned;
+		released.clear();
+		pinned = released;
+	}
+	
+	public boolean isPinning()
+	{
+		return pinning;
+	}
+	
+	public int getNumRenderers()
+	{
+		return numRenderers;
+	}
+	
+	/**
+	 * Set the number of renderers that share the cache and each call
+	 * {@link #releasePins()} once per frame, e.g. the panels of a
+	 * multi-panel viewer.
+	 * 
+	 * @param numRenderers
+	 */
+	public void setNumRenderers( final int numRenderers )
+	{
+		this.numRenderers = Math.max( 1, numRenderers );
+		releases = 0;
+	}
+	
+	public EvictionListener< E > getEvictionListener()
+	{
+		return evictionListener;
+	}
+	
+	/**
+	 * Set the listener that demotes or releases entries when the
+	 * {@link CachePolicy} evicts them, e.g. into a
+	 * {@link CompressedTileCache}.  Without a listener, evicted entries stay
+	 * softly referenced until they are collected.
+	 * 
+	 * @param evictionListener null to leave evicted entries to the collector
+	 */
+	public void setEvictionListener( final EvictionListener< E > evictionListener )
+	{
+		this.evictionListener = evictionListener;
+	}
+	
+	/**
+	 * Enable or disable pinning.  Only enable pinning if
+	 * {@link #releasePins()} is called regularly, otherwise all pinned
+	 * entries stay in memory forever.  Disabling pinning releases all pins.
+	 * 
+	 * @param pinning
+	 */
+	public void setPinning( final boolean pinning )
+	{
+		this.pinning = pinning;
+		if ( !pinning )
+		{
+			pinned.clear();
+			previouslyPinned.clear();
+		}
+	}
+	
+	/**
+	 * @return the number of pinned entries
+	 */
+	public int numPinned()
+	{
+		int n = pinned.size();
+		for ( final E entry : previouslyPinned )
+			if ( !pinned.contains( entry ) )
+				++n;
+		return n;
+	}
+	
 	public HashMap< K, Reference< E > > getMap()
 	{
 		return cache;
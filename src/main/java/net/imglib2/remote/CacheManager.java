@@ -0,0 +1,204 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import java.util.ArrayList;
+
+/**
+ * <p>Distributes one memory budget over the caches of several sources, e.g.
+ * the levels of a resolution pyramid.  Each source retains tiles by a
+ * {@link CachePolicy} whose capacity is set by the manager.</p>
+ * 
+ * <p>Each source is guaranteed a minimum share of the budget.  The rest is
+ * distributed by recent demand, i.e. by the bytes of tiles requested from
+ * each source, and redistributed periodically.  Coarse levels need few
+ * tiles, so a moderate minimum share keeps them resident and the renderer
+ * always has a low resolution fallback.</p>
+ * 
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class CacheManager
+{
+	static protected class Level
+	{
+		final public AbstractRemoteRandomAccessibleInterval< ?, ?, ? > source;
+		final public long entryBytes;
+		public double minShare;
+		
+		/* smoothed requested bytes per rebalance period */
+		public double demand = 0;
+		public int capacity = 0;
+		
+		public Level(
+				final AbstractRemoteRandomAccessibleInterval< ?, ?, ? > source,
+				final long entryBytes,
+				final double minShare )
+		{
+			this.source = source;
+			this.entryBytes = entryBytes;
+			this.minShare = minShare;
+		}
+	}
+	
+	protected class Rebalancer extends Thread
+	{
+		@Override
+		final public void run()
+		{
+			while ( !isInterrupted() )
+			{
+				try
+				{
+					Thread.sleep( rebalanceMillis );
+				}
+				catch ( final InterruptedException e )
+				{
+					break;
+				}
+				rebalance();
+			}
+		}
+	}
+	
+	final protected ArrayList< Level > levels = new ArrayList< Level >();
+	protected long maxBytes;
+	protected long rebalanceMillis = 1000;
+	protected Rebalancer rebalancer = null;
+	
+	/**
+	 * @param maxBytes budget for all retained tiles
+	 */
+	public CacheManager( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Manage the retained tiles of a source.
+	 * 
+	 * @param source
+	 * @param entryBytes memory of one tile
+	 * @param minShare fraction of the budget that is reserved for this
+	 * 		source
+	 */
+	synchronized public void add(
+			final AbstractRemoteRandomAccessibleInterval< ?, ?, ? > source,
+			final long entryBytes,
+			final double minShare )
+	{
+		levels.add( new Level( source, entryBytes, minShare ) );
+		rebalance();
+	}
+	
+	synchronized public void setMinShare( final int level, final double minShare )
+	{
+		levels.get( level ).minShare = minShare;
+		rebalance();
+	}
+	
+	synchronized public double getMinShare( final int level )
+	{
+		return levels.get( level ).minShare;
+	}
+	
+	/**
+	 * @return number of tiles currently retained for a level
+	 */
+	synchronized public int getCapacity( final int level )
+	{
+		return levels.get( level ).capacity;
+	}
+	
+	synchronized public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+	
+	synchronized public void setMaxBytes( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+		rebalance();
+	}
+	
+	public long getRebalanceMillis()
+	{
+		return rebalanceMillis;
+	}
+	
+	public void setRebalanceMillis( final long rebalanceMillis )
+	{
+		this.rebalanceMillis = rebalanceMillis;
+	}
+	
+	/**
+	 * Redistribute the budget by the demand since the last call.
+	 */
+	synchronized public void rebalance()
+	{
+		if ( levels.isEmpty() )
+			return;
+		
+		double minShares = 0;
+		double demand = 0;
+		for ( final Level level : levels )
+		{
+			level.demand = 0.5 * level.demand + level.source.takeRequests() * level.entryBytes;
+			minShares += level.minShare;
+			demand += level.demand;
+		}
+		
+		/* reserved shares exceeding the budget are scaled down */
+		final double reserved = Math.min( 1.0, minShares );
+		final double scale = minShares > 1.0 ? 1.0 / minShares : 1.0;
+		final double free = ( 1.0 - reserved ) * maxBytes;
+		
+		for ( final Level level : levels )
+		{
+			final double share = demand > 0 ?
+					level.demand / demand :
+					1.0 / levels.size();
+			final double bytes = level.minShare * scale * maxBytes + share * free;
+			/* at least one tile, such that the policy and its history are kept */
+			final int capacity = ( int )Math.max( 1, Math.min( Integer.MAX_VALUE, ( long )( bytes / level.entryBytes ) ) );
+			if ( capacity != level.capacity )
+			{
+				level.capacity = capacity;
+				level.source.setRetainedTiles( capacity );
+			}
+		}
+	}
+	
+	/**
+	 * Start rebalancing periodically in a daemon thread.
+	 */
+	synchronized public void start()
+	{
+		if ( rebalancer != null )
+			return;
+		rebalancer = new Rebalancer();
+		rebalancer.setDaemon( true );
+		rebalancer.start();
+	}
+	
+	synchronized public void stop()
+	{
+		if ( rebalancer == null )
+			return;
+		rebalancer.interrupt();
+		rebalancer = null;
+	}
+}
@@ -0,0 +1,76 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import java.util.Collection;
+
+/**
+ * Decides which cache entries are retained, i.e. strongly referenced by the
+ * {@link Cache} and thus safe from garbage collection, and which are left to
+ * the collector.  A policy tracks keys only, it is informed about each use
+ * of a key and about each key that was added to or removed from the cache.
+ * 
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public interface CachePolicy< K >
+{
+	/**
+	 * Record a request for a key, whether it is cached or not.
+	 * 
+	 * @param key
+	 */
+	public void access( final K key );
+	
+	/**
+	 * Add a key that was just cached.
+	 * 
+	 * @param key
+	 * @param evicted keys that are no longer retained are added here, this
+	 * 		may include key itself if it was not admitted
+	 */
+	public void add( final K key, final Collection< K > evicted );
+	
+	/**
+	 * Forget a key that was removed from the cache.
+	 * 
+	 * @param key
+	 */
+	public void remove( final K key );
+	
+	/**
+	 * @return true if key is retained
+	 */
+	public boolean contains( final K key );
+	
+	/**
+	 * @return the number of retained keys
+	 */
+	public int size();
+	
+	/**
+	 * @return the maximum number of retained keys
+	 */
+	public int getCapacity();
+	
+	/**
+	 * Change the maximum number of retained keys.
+	 * 
+	 * @param capacity
+	 * @param evicted keys that are no longer retained are added here
+	 */
+	public void setCapacity( final int capacity, final Collection< K > evicted );
+}
@@ -0,0 +1,148 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>A size bounded in-memory cache for tiles in compressed form.  It is
+ * the cold tier behind the {@link Cache} of decoded tiles: decoded entries
+ * that the {@link CachePolicy} evicts leave the bytes that they were served
+ * in, e.g. JPEG or zipped cells, in this cache, and are
+ * {@link #take(Object) taken} and decoded from here instead of being loaded
+ * again when they are requested next.  Nothing is compressed on eviction.
+ * Compressed tiles take a fraction of the memory of decoded tiles, so many
+ * more tiles fit into the same heap.</p>
+ *
+ * <p>The least recently used tiles are evicted when the total size exceeds
+ * the limit.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class CompressedTileCache< K >
+{
+	final protected LinkedHashMap< K, byte[] > tiles = new LinkedHashMap< K, byte[] >( 16, 0.75f, true );
+	
+	protected long maxBytes;
+	protected long bytes = 0;
+	
+	protected long hits = 0;
+	protected long misses = 0;
+	
+	public CompressedTileCache( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * @return the compressed bytes or null if the tile is not cached
+	 */
+	synchronized public byte[] get( final K key )
+	{
+		final byte[] data = tiles.get( key );
+		if ( data == null )
+			++misses;
+		else
+			++hits;
+		return data;
+	}
+	
+	synchronized public void put( final K key, final byte[] data )
+	{
+		final byte[] previous = tiles.put( key, data );
+		if ( previous != null )
+			bytes -= previous.length;
+		bytes += data.length;
+		evict();
+	}
+	
+	/**
+	 * Remove and return a tile that is promoted back to decoded form such
+	 * that it is not held twice.
+	 * 
+	 * @return the compressed bytes or null if the tile is not cached
+	 */
+	synchronized public byte[] take( final K key )
+	{
+		final byte[] data = remove( key );
+		if ( data == null )
+			++misses;
+		else
+			++hits;
+		return data;
+	}
+	
+	synchronized public byte[] remove( final K key )
+	{
+		final byte[] data = tiles.remove( key );
+		if ( data != null )
+			bytes -= data.length;
+		return data;
+	}
+	
+	synchronized protected void evict()
+	{
+		final Iterator< Map.Entry< K, byte[] > > i = tiles.entrySet().iterator();
+		while ( bytes > maxBytes && i.hasNext() )
+		{
+			bytes -= i.next().getValue().length;
+			i.remove();
+		}
+	}
+	
+	synchronized public void clear()
+	{
+		tiles.clear();
+		bytes = 0;
+	}
+	
+	synchronized public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+	
+	synchronized public void setMaxBytes( final long maxBytes )
+	{
+		this.maxBytes = maxBytes;
+		evict();
+	}
+	
+	/**
+	 * @return the total size of all cached tiles in bytes
+	 */
+	synchronized public long getBytes()
+	{
+		return bytes;
+	}
+	
+	synchronized public int size()
+	{
+		return tiles.size();
+	}
+	
+	synchronized public long getHits()
+	{
+		return hits;
+	}
+	
+	synchronized public long getMisses()
+	{
+		return misses;
+	}
+}
@@ -0,0 +1,211 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+/**
+ * <p>Adapts the number of requests in flight like TCP congestion control
+ * adapts its window.  The window grows by one per response while in slow
+ * start and by one per window of responses after, i.e. additive increase.
+ * It is halved when the server throttles, i.e. answers 429 or 503, or
+ * requests time out or fail, i.e. multiplicative decrease.</p>
+ *
+ * <p>To back off before the server throttles, the window is also reduced
+ * when the smoothed latency exceeds latencyFactor times the minimum
+ * latency, i.e. when requests are queued at the server or on the link
+ * instead of being served.  The minimum latency is measured anew every
+ * minute such that it follows changes of the link.</p>
+ *
+ * <p>Latency, throughput in bytes and tiles per second, and the window are
+ * exposed as metrics.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class CongestionWindow
+{
+	final static protected long minLatencyPeriodMillis = 60 * 1000;
+	final static protected long throughputPeriodMillis = 1000;
+	
+	final protected int minWindow;
+	final protected int maxWindow;
+	
+	protected double window;
+	protected double slowStartThreshold;
+	protected double latencyFactor = 2.0;
+	
+	protected double smoothedLatencyMillis = 0;
+	protected double minLatencyMillis = Double.MAX_VALUE;
+	protected long minLatencyTime = 0;
+	protected long lastDecreaseTime = 0;
+	
+	protected long periodStart = System.currentTimeMillis();
+	protected long periodBytes = 0;
+	protected long periodTiles = 0;
+	protected double bytesPerSecond = 0;
+	protected double tilesPerSecond = 0;
+	
+	protected long decreases = 0;
+	
+	/**
+	 * @param minWindow
+	 * @param initialWindow
+	 * @param maxWindow
+	 */
+	public CongestionWindow( final int minWindow, final int initialWindow, final int maxWindow )
+	{
+		this.minWindow = minWindow;
+		this.maxWindow = maxWindow;
+		window = Math.max( minWindow, Math.min( maxWindow, initialWindow ) );
+		slowStartThreshold = maxWindow;
+	}
+	
+	/**
+	 * A fixed window.
+	 */
+	public CongestionWindow( final int window )
+	{
+		this( window, window, window );
+	}
+	
+	synchronized public int getWindow()
+	{
+		return ( int )window;
+	}
+	
+	synchronized public int getMaxWindow()
+	{
+		return maxWindow;
+	}
+	
+	/**
+	 * Set the factor of the minimum latency above which the window is
+	 * reduced.
+	 */
+	synchronized public void setLatencyFactor( final double latencyFactor )
+	{
+		this.latencyFactor = latencyFactor;
+	}
+	
+	/**
+	 * Record a response that was served.
+	 * 
+	 * @param latencyMillis time from sending the request to receiving the
+	 * 		response
+	 * @param bytes size of the response
+	 */
+	synchronized public void served( final long latencyMillis, final int bytes )
+	{
+		final long now = System.currentTimeMillis();
+		
+		if ( latencyMillis < minLatencyMillis || now - minLatencyTime > minLatencyPeriodMillis )
+		{
+			minLatencyMillis = latencyMillis;
+			minLatencyTime = now;
+		}
+		smoothedLatencyMillis = smoothedLatencyMillis == 0 ? latencyMillis : 0.875 * smoothedLatencyMillis + 0.125 * latencyMillis;
+		
+		++periodTiles;
+		periodBytes += bytes;
+		updateThroughput( now );
+		
+		if ( smoothedLatencyMillis > latencyFactor * Math.max( 1, minLatencyMillis ) )
+			decrease( now, 0.75 );
+		else if ( window < slowStartThreshold )
+			window = Math.min( maxWindow, window + 1 );
+		else
+			window = Math.min( maxWindow, window + 1.0 / window );
+	}
+	
+	/**
+	 * Record that the server throttled or a request failed for reasons
+	 * other than a missing tile.
+	 */
+	synchronized public void congested()
+	{
+		decrease( System.currentTimeMillis(), 0.5 );
+	}
+	
+	/**
+	 * Reduce the window, at most once per latency such that responses to
+	 * requests sent with the larger window do not reduce it again.
+	 */
+	protected void decrease( final long now, final double factor )
+	{
+		if ( now - lastDecreaseTime < smoothedLatencyMillis )
+			return;
+		lastDecreaseTime = now;
+		++decreases;
+		slowStartThreshold = Math.max( minWindow, window * factor );
+		window = slowStartThreshold;
+	}
+	
+	protected void updateThroughput( final long now )
+	{
+		final long t = now - periodStart;
+		if ( t >= throughputPeriodMillis )
+		{
+			/* idle periods count as zero throughput */
+			final double weight = Math.min( 1.0, 0.5 * t / throughputPeriodMillis );
+			bytesPerSecond += weight * ( 1000.0 * periodBytes / t - bytesPerSecond );
+			tilesPerSecond += weight * ( 1000.0 * periodTiles / t - tilesPerSecond );
+			periodStart = now;
+			periodBytes = 0;
+			periodTiles = 0;
+		}
+	}
+	
+	synchronized public double getLatencyMillis()
+	{
+		return smoothedLatencyMillis;
+	}
+	
+	synchronized public double getMinLatencyMillis()
+	{
+		return minLatencyMillis == Double.MAX_VALUE ? 0 : minLatencyMillis;
+	}
+	
+	synchronized public double getBytesPerSecond()
+	{
+		updateThroughput( System.currentTimeMillis() );
+		return bytesPerSecond;
+	}
+	
+	synchronized public double getTilesPerSecond()
+	{
+		updateThroughput( System.currentTimeMillis() );
+		return tilesPerSecond;
+	}
+	
+	/**
+	 * @return the number of times the window was reduced
+	 */
+	synchronized public long getDecreases()
+	{
+		return decreases;
+	}
+	
+	@Override
+	synchronized public String toString()
+	{
+		return String.format(
+				"window %d, latency %.0fms (min %.0fms), %.0f tiles/s, %.1f MB/s",
+				( int )window,
+				smoothedLatencyMillis,
+				getMinLatencyMillis(),
+				getTilesPerSecond(),
+				getBytesPerSecond() / 1024 / 1024 );
+	}
+}
@@ -0,0 +1,305 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * <p>A size bounded on-disk cache for the raw bytes of remote tiles, i.e.
+ * JPEG tiles or compressed cubes as served, keyed by dataset, level and
+ * tile.  It is meant to sit between the in-memory {@link Cache} and the
+ * network such that memory misses and viewer restarts do not go back to
+ * the server.</p>
+ *
+ * <p>Several processes can share the same directory: tiles are written to
+ * a temporary file and renamed into place, so readers never see partial
+ * tiles, and only one process at a time evicts, guarded by a file lock.
+ * Eviction removes the least recently accessed tiles until the cache is
+ * below 90% of its size limit.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class DiskCache
+{
+	final static protected long staleTempFileMillis = 60 * 60 * 1000;
+	
+	final protected File directory;
+	final protected long maxBytes;
+	
+	/* bytes written by this process since the last sweep */
+	protected long bytesSinceSweep;
+	protected boolean sweeping = false;
+	
+	public DiskCache( final File directory, final long maxBytes )
+	{
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		directory.mkdirs();
+		
+		/* sweep at the first write to learn about the existing size */
+		bytesSinceSweep = maxBytes;
+	}
+	
+	public File getDirectory()
+	{
+		return directory;
+	}
+	
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+	
+	static protected String hash( final String dataset )
+	{
+		try
+		{
+			final byte[] digest = MessageDigest.getInstance( "MD5" ).digest( dataset.getBytes( "UTF-8" ) );
+			final StringBuffer hex = new StringBuffer();
+			for ( final byte b : digest )
+				hex.append( Integer.toHexString( 0x100 | ( b & 0xff ) ).substring( 1 ) );
+			return hex.toString();
+		}
+		catch ( final NoSuchAlgorithmException e )
+		{
+			throw new RuntimeException( e );
+		}
+		catch ( final IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+	
+	protected File file( final String dataset, final long level, final String tile )
+	{
+		return new File( new File( new File( directory, hash( dataset ) ), Long.toString( level ) ), tile );
+	}
+	
+	/**
+	 * @return the cached bytes or null if the tile is not cached
+	 */
+	public byte[] get( final String dataset, final long level, final String tile )
+	{
+		final File file = file( dataset, level, tile );
+		if ( !file.isFile() )
+			return null;
+		try
+		{
+			final FileInputStream in = new FileInputStream( file );
+			final byte[] bytes;
+			try
+			{
+				bytes = new byte[ ( int )in.getChannel().size() ];
+				new DataInputStream( in ).readFully( bytes );
+			}
+			finally
+			{
+				in.close();
+			}
+			/* remember the access for least recently used eviction */
+			file.setLastModified( System.currentTimeMillis() );
+			return bytes;
+		}
+		catch ( final IOException e )
+		{
+			/* evicted by another process in the meantime */
+			return null;
+		}
+	}
+	
+	public void put( final String dataset, final long level, final String tile, final byte[] bytes )
+	{
+		final File file = file( dataset, level, tile );
+		final File dir = file.getParentFile();
+		dir.mkdirs();
+		try
+		{
+			final File tmp = File.createTempFile( "tile", ".tmp", dir );
+			final FileOutputStream out = new FileOutputStream( tmp );
+			try
+			{
+				out.write( bytes );
+			}
+			finally
+			{
+				out.close();
+			}
+			/* atomic on POSIX, if it fails, another process was faster */
+			if ( !tmp.renameTo( file ) )
+				tmp.delete();
+		}
+		catch ( final IOException e )
+		{
+			System.out.println( "failed caching " + tile + " in " + dir );
+			return;
+		}
+		
+		final boolean sweep;
+		synchronized ( this )
+		{
+			bytesSinceSweep += bytes.length;
+			sweep = !sweeping && bytesSinceSweep >= maxBytes / 16;
+			if ( sweep )
+			{
+				sweeping = true;
+				bytesSinceSweep = 0;
+			}
+		}
+		if ( sweep )
+		{
+			final Thread sweeper = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						sweep();
+					}
+					finally
+					{
+						synchronized ( DiskCache.this )
+						{
+							sweeping = false;
+						}
+					}
+				}
+			};
+			sweeper.setDaemon( true );
+			sweeper.start();
+		}
+	}
+	
+	static protected void list( final File dir, final ArrayList< File > files )
+	{
+		final File[] children = dir.listFiles();
+		if ( children == null )
+			return;
+		for ( final File child : children )
+		{
+			if ( child.isDirectory() )
+				list( child, files );
+			else
+				files.add( child );
+		}
+	}
+	
+	/**
+	 * Evict least recently accessed tiles until the cache is below 90% of
+	 * its size limit.  Returns immediately if another process is sweeping.
+	 */
+	public void sweep()
+	{
+		try
+		{
+			final RandomAccessFile lockFile = new RandomAccessFile( new File( directory, ".lock" ), "rw" );
+			try
+			{
+				final FileLock lock;
+				try
+				{
+					lock = lockFile.getChannel().tryLock();
+				}
+				catch ( final OverlappingFileLockException e )
+				{
+					return;
+				}
+				if ( lock == null )
+					return;
+				
+				try
+				{
+					final ArrayList< File > files = new ArrayList< File >();
+					list( directory, files );
+					
+					final long now = System.currentTimeMillis();
+					final File[] tiles = new File[ files.size() ];
+					final long[] lastModified = new long[ files.size() ];
+					long size = 0;
+					int n = 0;
+					for ( final File file : files )
+					{
+						if ( file.getParentFile().equals( directory ) )
+							continue;
+						final long t = file.lastModified();
+						if ( file.getName().endsWith( ".tmp" ) )
+						{
+							/* left behind by a crashed writer */
+							if ( now - t > staleTempFileMillis )
+								file.delete();
+							continue;
+						}
+						tiles[ n ] = file;
+						lastModified[ n ] = t;
+						size += file.length();
+						++n;
+					}
+					
+					if ( size <= maxBytes )
+						return;
+					
+					final Integer[] order = new Integer[ n ];
+					for ( int i = 0; i < n; ++i )
+						order[ i ] = i;
+					Arrays.sort( order, new Comparator< Integer >()
+					{
+						@Override
+						public int compare( final Integer a, final Integer b )
+						{
+							final long ta = lastModified[ a ];
+							final long tb = lastModified[ b ];
+							return ta < tb ? -1 : ta == tb ? 0 : 1;
+						}
+					} );
+					
+					final long lowWaterMark = maxBytes / 10 * 9;
+					for ( int i = 0; i < n && size > lowWaterMark; ++i )
+					{
+						final File tile = tiles[ order[ i ] ];
+						final long length = tile.length();
+						if ( tile.delete() )
+							size -= length;
+					}
+				}
+				finally
+				{
+					lock.release();
+				}
+			}
+			finally
+			{
+				lockFile.close();
+			}
+		}
+		catch ( final IOException e )
+		{
+			System.out.println( "failed sweeping disk cache " + directory );
+		}
+	}
+}
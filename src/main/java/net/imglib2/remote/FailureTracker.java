@@ -0,0 +1,170 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * <p>Remembers tiles that failed to load such that they are not requested
+ * again and again.  After a failure, a tile may be retried only after a
+ * backoff time that doubles with each consecutive failure.  A tile that
+ * is known to not exist, i.e. the server answered with 404, or that failed
+ * too often is considered missing for a while and should be presented as
+ * an empty, valid tile.  After that time, it is tried again.</p>
+ *
+ * <p>Sparse datasets have many missing tiles, without this, each repaint
+ * would request them again.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class FailureTracker< K >
+{
+	static protected class Failure
+	{
+		public int attempts = 0;
+		public long retryTime = 0;
+		public boolean missing = false;
+	}
+	
+	final protected HashMap< K, Failure > failures = new HashMap< K, Failure >();
+	
+	/* backoff after the first failure, doubled with each consecutive failure */
+	protected long minBackoffMillis = 500;
+	protected long maxBackoffMillis = 30 * 1000;
+	
+	/* number of consecutive failures after which a tile is considered missing */
+	protected int maxAttempts = 5;
+	
+	/* time for which a tile is considered missing */
+	protected long missingMillis = 10 * 60 * 1000;
+	
+	/* size at which expired records are purged */
+	protected int purgeSize = 1024;
+	
+	/**
+	 * Record a failure.
+	 * 
+	 * @param key
+	 * @param permanent true if the tile does not exist, e.g. the server
+	 * 		answered with 404
+	 * @return true if the tile is considered missing now
+	 */
+	synchronized public boolean failed( final K key, final boolean permanent )
+	{
+		final long now = System.currentTimeMillis();
+		Failure failure = failures.get( key );
+		if ( failure == null || failure.missing )
+		{
+			failure = new Failure();
+			failures.put( key, failure );
+			if ( failures.size() > purgeSize )
+				purge( now );
+		}
+		++failure.attempts;
+		if ( permanent || failure.attempts >= maxAttempts )
+		{
+			failure.missing = true;
+			failure.retryTime = now + missingMillis;
+		}
+		else
+			failure.retryTime = now + Math.min( maxBackoffMillis, minBackoffMillis << Math.min( 30, failure.attempts - 1 ) );
+		return failure.missing;
+	}
+	
+	/**
+	 * Forget all failures of a tile after it was loaded.
+	 */
+	synchronized public void succeeded( final K key )
+	{
+		failures.remove( key );
+	}
+	
+	/**
+	 * @return true if the tile is considered missing
+	 */
+	synchronized public boolean isMissing( final K key )
+	{
+		final Failure failure = failures.get( key );
+		if ( failure == null || !failure.missing )
+			return false;
+		if ( failure.retryTime > System.currentTimeMillis() )
+			return true;
+		failures.remove( key );
+		return false;
+	}
+	
+	/**
+	 * @return the time in milliseconds at which the tile may be tried again,
+	 * 		0 if it did not fail
+	 */
+	synchronized public long getRetryTime( final K key )
+	{
+		final Failure failure = failures.get( key );
+		return failure == null ? 0 : failure.retryTime;
+	}
+	
+	/**
+	 * @return true if the tile did not fail or its backoff time is over
+	 */
+	public boolean mayLoad( final K key )
+	{
+		return getRetryTime( key ) <= System.currentTimeMillis();
+	}
+	
+	/**
+	 * Remove records that expired long ago, i.e. tiles that are not
+	 * requested anymore.
+	 */
+	synchronized protected void purge( final long now )
+	{
+		final Iterator< Failure > i = failures.values().iterator();
+		while ( i.hasNext() )
+		{
+			final Failure failure = i.next();
+			if ( failure.retryTime + missingMillis < now )
+				i.remove();
+		}
+		purgeSize = Math.max( 1024, 2 * failures.size() );
+	}
+	
+	synchronized public void clear()
+	{
+		failures.clear();
+	}
+	
+	synchronized public int size()
+	{
+		return failures.size();
+	}
+	
+	synchronized public void setBackoff( final long minBackoffMillis, final long maxBackoffMillis )
+	{
+		this.minBackoffMillis = minBackoffMillis;
+		this.maxBackoffMillis = maxBackoffMillis;
+	}
+	
+	synchronized public void setMaxAttempts( final int maxAttempts )
+	{
+		this.maxAttempts = maxAttempts;
+	}
+	
+	synchronized public void setMissingMillis( final long missingMillis )
+	{
+		this.missingMillis = missingMillis;
+	}
+}
@@ -0,0 +1,277 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.HashMap;
+import java.util.concurrent.Semaphore;
+
+
+/**
+ * <p>Fetches tiles over HTTP with persistent connections.  A connection is
+ * only returned to the keep-alive cache of the JRE if its response was read
+ * to the end and closed, so responses are always drained completely,
+ * including the bodies of error responses.  The number of concurrent
+ * requests per host is limited such that requests wait for a connection
+ * instead of opening new ones, and connecting and reading time out instead
+ * of blocking a loader forever.</p>
+ *
+ * <p>The keep-alive cache of the JRE keeps at most
+ * <code>http.maxConnections</code> idle connections per host, 5 by default.
+ * Connections beyond that are closed after their request, so applications
+ * that allow more {@link #setMaxConnectionsPerHost(int) connections per
+ * host} should raise it accordingly, e.g. by
+ * <code>-Dhttp.maxConnections=16</code> on the command line.  This class does
+ * not change the property because it applies to all HTTP connections of
+ * the JVM.</p>
+ *
+ * <p>URLs of other protocols, e.g. file:, are read directly.</p>
+ *
+ * <p>Missing tiles, i.e. responses 404 and 410, throw a
+ * {@link FileNotFoundException} like {@link URL#openStream()} does, other
+ * error responses throw an {@link IOException}.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class HttpTileClient
+{
+	final static protected HttpTileClient defaultClient = new HttpTileClient();
+	
+	protected int maxConnectionsPerHost = 8;
+	protected int connectTimeoutMillis = 10 * 1000;
+	protected int readTimeoutMillis = 30 * 1000;
+	
+	final protected HashMap< String, Semaphore > hosts = new HashMap< String, Semaphore >();
+	
+	/* limits the request rate per host, null if not limited */
+	protected RateLimiter rateLimiter = RateLimiter.getDefault();
+	
+	/* statistics */
+	protected long requests = 0;
+	protected long failures = 0;
+	protected long bytes = 0;
+	protected long millis = 0;
+	
+	/**
+	 * The client shared by all loaders that do not set their own.
+	 */
+	static public HttpTileClient getDefault()
+	{
+		return defaultClient;
+	}
+	
+	synchronized public int getMaxConnectionsPerHost()
+	{
+		return maxConnectionsPerHost;
+	}
+	
+	/**
+	 * Set the maximum number of concurrent requests per host.  Applies to
+	 * hosts that were not contacted before.
+	 */
+	synchronized public void setMaxConnectionsPerHost( final int maxConnectionsPerHost )
+	{
+		this.maxConnectionsPerHost = maxConnectionsPerHost;
+		hosts.clear();
+	}
+	
+	synchronized public RateLimiter getRateLimiter()
+	{
+		return rateLimiter;
+	}
+	
+	/**
+	 * @param rateLimiter null to not limit the request rate
+	 */
+	synchronized public void setRateLimiter( final RateLimiter rateLimiter )
+	{
+		this.rateLimiter = rateLimiter;
+	}
+	
+	synchronized public void setTimeouts( final int connectTimeoutMillis, final int readTimeoutMillis )
+	{
+		this.connectTimeoutMillis = connectTimeoutMillis;
+		this.readTimeoutMillis = readTimeoutMillis;
+	}
+	
+	synchronized protected Semaphore connections( final URL url )
+	{
+		final String host = url.getHost() + ":" + url.getPort();
+		Semaphore semaphore = hosts.get( host );
+		if ( semaphore == null )
+		{
+			semaphore = new Semaphore( maxConnectionsPerHost, true );
+			hosts.put( host, semaphore );
+		}
+		return semaphore;
+	}
+	
+	/**
+	 * Read a stream to the end and close it.
+	 * 
+	 * @param in may be null
+	 * @param expectedBytes size hint, -1 if unknown
+	 */
+	static protected byte[] drain( final InputStream in, final int expectedBytes ) throws IOException
+	{
+		if ( in == null )
+			return new byte[ 0 ];
+		try
+		{
+			final ByteArrayOutputStream byteStream = new ByteArrayOutputStream( expectedBytes > 0 ? expectedBytes : 4096 );
+			final byte[] chunk = new byte[ 8192 ];
+			for ( int l = in.read( chunk ); l >= 0; l = in.read( chunk ) )
+				byteStream.write( chunk, 0, l );
+			return byteStream.toByteArray();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+	
+	/**
+	 * Fetch all bytes served at a URL at {@link RateLimiter#VISIBLE}
+	 * priority.
+	 * 
+	 * @param urlString
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] get( final String urlString ) throws IOException
+	{
+		return get( urlString, RateLimiter.VISIBLE );
+	}
+	
+	/**
+	 * Fetch all bytes served at a URL.  Waits for the {@link RateLimiter}
+	 * if the host is limited.
+	 * 
+	 * @param urlString
+	 * @param priority see {@link RateLimiter}
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] get( final String urlString, final int priority ) throws IOException
+	{
+		final URL url = new URL( urlString );
+		final URLConnection connection = url.openConnection();
+		if ( !( connection instanceof HttpURLConnection ) )
+			return drain( connection.getInputStream(), connection.getContentLength() );
+		
+		final HttpURLConnection http = ( HttpURLConnection )connection;
+		final int connectTimeout, readTimeout;
+		final RateLimiter rateLimiter;
+		synchronized ( this )
+		{
+			connectTimeout = connectTimeoutMillis;
+			readTimeout = readTimeoutMillis;
+			rateLimiter = this.rateLimiter;
+		}
+		if ( rateLimiter != null )
+		{
+			try
+			{
+				rateLimiter.acquire( url.getHost(), priority );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException( "interrupted waiting for " + urlString );
+			}
+		}
+		http.setConnectTimeout( connectTimeout );
+		http.setReadTimeout( readTimeout );
+		http.setUseCaches( false );
+		
+		final Semaphore semaphore = connections( url );
+		semaphore.acquireUninterruptibly();
+		final long t = System.currentTimeMillis();
+		try
+		{
+			final int code;
+			try
+			{
+				code = http.getResponseCode();
+			}
+			catch ( final IOException e )
+			{
+				/* the connection is broken, nothing to drain */
+				http.disconnect();
+				throw e;
+			}
+			if ( code / 100 != 2 )
+			{
+				/* error bodies must be drained as well to reuse the connection */
+				drain( http.getErrorStream(), -1 );
+				if ( code == HttpURLConnection.HTTP_NOT_FOUND || code == HttpURLConnection.HTTP_GONE )
+					throw new FileNotFoundException( urlString );
+				throw new IOException( "server returned " + code + " for " + urlString );
+			}
+			final byte[] data = drain( http.getInputStream(), http.getContentLength() );
+			synchronized ( this )
+			{
+				++requests;
+				bytes += data.length;
+				millis += System.currentTimeMillis() - t;
+			}
+			return data;
+		}
+		catch ( final IOException e )
+		{
+			synchronized ( this )
+			{
+				++failures;
+			}
+			throw e;
+		}
+		finally
+		{
+			semaphore.release();
+		}
+	}
+	
+	synchronized public long getRequests()
+	{
+		return requests;
+	}
+	
+	synchronized public long getFailures()
+	{
+		return failures;
+	}
+	
+	synchronized public long getBytes()
+	{
+		return bytes;
+	}
+	
+	/**
+	 * @return the mean time of successful requests in milliseconds
+	 */
+	synchronized public double getMeanMillis()
+	{
+		return requests == 0 ? 0 : ( double )millis / requests;
+	}
+}
@@ -0,0 +1,93 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Retains the least recently used keys.  Recency only, i.e. a scan over many
+ * keys that are used once flushes all others.  Mainly a baseline for
+ * {@link TinyLfuPolicy}.
+ * 
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class LruPolicy< K > implements CachePolicy< K >
+{
+	protected int capacity;
+	final protected LinkedHashMap< K, K > keys = new LinkedHashMap< K, K >( 16, 0.75f, true );
+	
+	public LruPolicy( final int capacity )
+	{
+		this.capacity = capacity;
+	}
+	
+	@Override
+	public void access( final K key )
+	{
+		keys.get( key );
+	}
+	
+	@Override
+	public void add( final K key, final Collection< K > evicted )
+	{
+		keys.put( key, key );
+		evict( evicted );
+	}
+	
+	protected void evict( final Collection< K > evicted )
+	{
+		final Iterator< K > i = keys.keySet().iterator();
+		while ( keys.size() > capacity )
+		{
+			evicted.add( i.next() );
+			i.remove();
+		}
+	}
+	
+	@Override
+	public void remove( final K key )
+	{
+		keys.remove( key );
+	}
+	
+	@Override
+	public boolean contains( final K key )
+	{
+		return keys.containsKey( key );
+	}
+	
+	@Override
+	public int size()
+	{
+		return keys.size();
+	}
+	
+	@Override
+	public int getCapacity()
+	{
+		return capacity;
+	}
+	
+	@Override
+	public void setCapacity( final int capacity, final Collection< K > evicted )
+	{
+		this.capacity = capacity;
+		evict( evicted );
+	}
+}
@@ -0,0 +1,42 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+/**
+ * A remote source that can be asked to load data in the background before it
+ * is actually requested.  Prefetched data is loaded at low priority, i.e.
+ * only when no pending request for visible data is left.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public interface Prefetchable
+{
+	/**
+	 * Queue all tiles or cells that intersect the box [min, max] (inclusive,
+	 * in source pixel coordinates) for background loading.  Parts of the box
+	 * outside of the source interval are ignored.
+	 *
+	 * @param min
+	 * @param max
+	 */
+	public void prefetch( final long[] min, final long[] max );
+	
+	/**
+	 * @return the size of a tile or cell along dimension d in source pixels
+	 */
+	public int getCellDimension( final int d );
+}
@@ -0,0 +1,217 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * <p>Limits the rate of requests per tile server by a token bucket per
+ * host.  A bucket holds up to burst tokens and is refilled at the
+ * configured rate, each request takes one token.  Requests that find no
+ * token wait until one is available instead of failing.  Waiting requests
+ * are served by priority, e.g. visible tiles before prefetched tiles, and
+ * in order of arrival within the same priority.</p>
+ *
+ * <p>Hosts without a configured rate are not limited.  The default limiter
+ * is used by the {@link HttpTileClient} and the {@link AsyncTileLoader}.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class RateLimiter
+{
+	/* priorities of tile requests */
+	final static public int PREFETCH = 0;
+	final static public int VISIBLE = 1;
+	
+	static protected class Waiter implements Comparable< Waiter >
+	{
+		final public int priority;
+		final public long sequence;
+		
+		public Waiter( final int priority, final long sequence )
+		{
+			this.priority = priority;
+			this.sequence = sequence;
+		}
+		
+		@Override
+		public int compareTo( final Waiter other )
+		{
+			if ( priority != other.priority )
+				return priority > other.priority ? -1 : 1;
+			return sequence < other.sequence ? -1 : sequence == other.sequence ? 0 : 1;
+		}
+	}
+	
+	static protected class Bucket
+	{
+		final public double requestsPerSecond;
+		final public double burst;
+		public double tokens;
+		public long lastRefill = System.nanoTime();
+		final public PriorityQueue< Waiter > waiters = new PriorityQueue< Waiter >();
+		
+		public Bucket( final double requestsPerSecond, final double burst )
+		{
+			this.requestsPerSecond = requestsPerSecond;
+			this.burst = burst;
+			tokens = burst;
+		}
+		
+		public void refill()
+		{
+			final long now = System.nanoTime();
+			tokens = Math.min( burst, tokens + ( now - lastRefill ) * 1e-9 * requestsPerSecond );
+			lastRefill = now;
+		}
+		
+		/**
+		 * @return milliseconds until the next token is available
+		 */
+		public long delayMillis()
+		{
+			return Math.max( 1, ( long )Math.ceil( ( 1.0 - tokens ) * 1000 / requestsPerSecond ) );
+		}
+	}
+	
+	final static protected RateLimiter defaultLimiter = new RateLimiter();
+	
+	final protected HashMap< String, Bucket > buckets = new HashMap< String, Bucket >();
+	protected long sequence = 0;
+	
+	static public RateLimiter getDefault()
+	{
+		return defaultLimiter;
+	}
+	
+	/**
+	 * Limit the requests to a host.
+	 * 
+	 * @param host
+	 * @param requestsPerSecond 0 removes the limit
+	 * @param burst number of requests that can be sent at once after an idle
+	 * 		period
+	 */
+	synchronized public void setRate( final String host, final double requestsPerSecond, final int burst )
+	{
+		if ( requestsPerSecond > 0 )
+			buckets.put( host, new Bucket( requestsPerSecond, Math.max( 1, burst ) ) );
+		else
+			buckets.remove( host );
+		notifyAll();
+	}
+	
+	/**
+	 * @return the host of a URL, e.g. the base URL of a dataset
+	 */
+	static public String host( final String urlString )
+	{
+		try
+		{
+			return new URL( urlString ).getHost();
+		}
+		catch ( final MalformedURLException e )
+		{
+			return "";
+		}
+	}
+	
+	/**
+	 * Take a token for a request to host, wait until one is available if
+	 * necessary.
+	 * 
+	 * @param host
+	 * @param priority higher priorities are served first
+	 * @throws InterruptedException
+	 */
+	synchronized public void acquire( final String host, final int priority ) throws InterruptedException
+	{
+		Bucket bucket = buckets.get( host );
+		if ( bucket == null )
+			return;
+		
+		final Waiter waiter = new Waiter( priority, sequence++ );
+		bucket.waiters.add( waiter );
+		try
+		{
+			while ( true )
+			{
+				bucket.refill();
+				if ( bucket.waiters.peek() == waiter && bucket.tokens >= 1 )
+				{
+					bucket.tokens -= 1;
+					return;
+				}
+				wait( bucket.delayMillis() );
+				
+				/* the rate was changed or removed while waiting */
+				final Bucket current = buckets.get( host );
+				if ( current != bucket )
+				{
+					bucket.waiters.remove( waiter );
+					if ( current == null )
+						return;
+					bucket = current;
+					bucket.waiters.add( waiter );
+				}
+			}
+		}
+		finally
+		{
+			bucket.waiters.remove( waiter );
+			notifyAll();
+		}
+	}
+	
+	/**
+	 * Take a token for a request to host if one is available and no request
+	 * of the same or a higher priority is waiting for it.
+	 * 
+	 * @param host
+	 * @param priority
+	 * @return true if the request may be sent
+	 */
+	synchronized public boolean tryAcquire( final String host, final int priority )
+	{
+		final Bucket bucket = buckets.get( host );
+		if ( bucket == null )
+			return true;
+		
+		bucket.refill();
+		final Waiter first = bucket.waiters.peek();
+		if ( bucket.tokens < 1 || ( first != null && first.priority >= priority ) )
+			return false;
+		bucket.tokens -= 1;
+		return true;
+	}
+	
+	/**
+	 * @return milliseconds until the next token for host is available, 0 if
+	 * 		one is available now or host is not limited
+	 */
+	synchronized public long delayMillis( final String host )
+	{
+		final Bucket bucket = buckets.get( host );
+		if ( bucket == null )
+			return 0;
+		bucket.refill();
+		return bucket.tokens >= 1 ? 0 : bucket.delayMillis();
+	}
+}
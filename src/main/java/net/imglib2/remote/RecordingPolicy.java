@@ -0,0 +1,87 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import java.io.PrintWriter;
+import java.util.Collection;
+
+/**
+ * Writes each request that is passed to a {@link CachePolicy} to a trace,
+ * one key per line as {@link Object#toString()}, e.g. to replay real
+ * navigation sessions against other policies like the synthetic traces in
+ * CachePolicySimulatorTest.
+ * 
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class RecordingPolicy< K > implements CachePolicy< K >
+{
+	final protected CachePolicy< K > policy;
+	final protected PrintWriter trace;
+	
+	/**
+	 * @param policy the policy that makes the decisions
+	 * @param trace
+	 */
+	public RecordingPolicy( final CachePolicy< K > policy, final PrintWriter trace )
+	{
+		this.policy = policy;
+		this.trace = trace;
+	}
+	
+	@Override
+	public void access( final K key )
+	{
+		trace.println( key );
+		policy.access( key );
+	}
+	
+	@Override
+	public void add( final K key, final Collection< K > evicted )
+	{
+		policy.add( key, evicted );
+	}
+	
+	@Override
+	public void remove( final K key )
+	{
+		policy.remove( key );
+	}
+	
+	@Override
+	public boolean contains( final K key )
+	{
+		return policy.contains( key );
+	}
+	
+	@Override
+	public int size()
+	{
+		return policy.size();
+	}
+	
+	@Override
+	public int getCapacity()
+	{
+		return policy.getCapacity();
+	}
+	
+	@Override
+	public void setCapacity( final int capacity, final Collection< K > evicted )
+	{
+		policy.setCapacity( capacity, evicted );
+	}
+}
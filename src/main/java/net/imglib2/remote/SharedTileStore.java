@@ -0,0 +1,304 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+
+/**
+ * <p>Decoded tiles shared by all sources of the same dataset and level,
+ * keyed by dataset, level and tile.  Sources that read the same data,
+ * e.g. a blocking source for analysis and a volatile source for display,
+ * wrap the same tile arrays in their cache entries instead of loading and
+ * keeping their own copies.  Shared tiles must not be modified.</p>
+ *
+ * <p>Tiles are reference counted.  Every source that receives a tile from
+ * {@link #put(String, long, String, Object) put}, a {@link Listener},
+ * {@link #get(String, long, String) get} or
+ * {@link #await(String, long, String, long) await} holds one reference
+ * and gives it back with {@link #release(Object)} when it drops the tile.
+ * The tile leaves the store with its last reference and only then may be
+ * recycled, e.g. into an {@link ArrayPool}.  A source that releases its
+ * reference when its cache entry is finalized must keep that entry, not
+ * only the array, reachable from every reader of the tile.</p>
+ *
+ * <p>Each tile is loaded once even if several sources request it at the
+ * same time: the first source to {@link #claim(String, long, String, Listener)
+ * claim} a tile loads it and {@link #put(String, long, String, Object) puts}
+ * it or reports its {@link #fail(String, long, String, boolean) failure},
+ * the others are notified by a {@link Listener} or
+ * {@link #await(String, long, String, long) wait} for it.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class SharedTileStore< A >
+{
+	/**
+	 * Notified when a tile that is loaded by another source arrives.
+	 */
+	public interface Listener< A >
+	{
+		/**
+		 * @param data holds one reference for the listener
+		 */
+		public void loaded( final A data );
+		
+		/**
+		 * @param missing true if the tile does not exist
+		 */
+		public void failed( final boolean missing );
+	}
+	
+	static protected class Key
+	{
+		final public String dataset;
+		final public long level;
+		final public String tile;
+		
+		public Key( final String dataset, final long level, final String tile )
+		{
+			this.dataset = dataset;
+			this.level = level;
+			this.tile = tile;
+		}
+		
+		@Override
+		public boolean equals( final Object other )
+		{
+			if ( this == other )
+				return true;
+			if ( !( other instanceof Key ) )
+				return false;
+			
+			final Key that = ( Key )other;
+			return
+					( this.level == that.level ) &&
+					this.tile.equals( that.tile ) &&
+					this.dataset.equals( that.dataset );
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			return ( dataset.hashCode() * 31 + ( int )level ) * 31 + tile.hashCode();
+		}
+	}
+	
+	static protected class Shared< A >
+	{
+		final public Key key;
+		final public A data;
+		public int references;
+		
+		public Shared( final Key key, final A data, final int references )
+		{
+			this.key = key;
+			this.data = data;
+			this.references = references;
+		}
+	}
+	
+	static protected class Pending< A >
+	{
+		public A data = null;
+		public boolean done = false;
+		
+		/* number of threads in await, each receives a reference */
+		public int waiting = 0;
+		final public ArrayList< Listener< A > > listeners = new ArrayList< Listener< A > >();
+	}
+	
+	final protected HashMap< Key, Shared< A > > tiles = new HashMap< Key, Shared< A > >();
+	final protected IdentityHashMap< A, Shared< A > > shares = new IdentityHashMap< A, Shared< A > >();
+	final protected HashMap< Key, Pending< A > > pending = new HashMap< Key, Pending< A > >();
+	
+	/**
+	 * @return the tile with one reference for the caller or null if it is
+	 * 		not in the store
+	 */
+	synchronized public A get( final String dataset, final long level, final String tile )
+	{
+		final Shared< A > shared = tiles.get( new Key( dataset, level, tile ) );
+		if ( shared == null )
+			return null;
+		++shared.references;
+		return shared.data;
+	}
+	
+	/**
+	 * Claim a tile for loading unless it is in the store or being loaded.
+	 * 
+	 * @param listener notified when the tile is in the store or being
+	 * 		loaded by another source, called immediately if it is in the
+	 * 		store, may be null
+	 * @return true if the caller must load the tile and {@link #put} it or
+	 * 		{@link #fail} 
+	 */
+	public boolean claim( final String dataset, final long level, final String tile, final Listener< A > listener )
+	{
+		final Key key = new Key( dataset, level, tile );
+		final A data;
+		synchronized ( this )
+		{
+			final Shared< A > shared = tiles.get( key );
+			if ( shared == null )
+			{
+				Pending< A > p = pending.get( key );
+				if ( p == null )
+				{
+					pending.put( key, new Pending< A >() );
+					return true;
+				}
+				if ( listener != null )
+					p.listeners.add( listener );
+				return false;
+			}
+			if ( listener == null )
+				return false;
+			++shared.references;
+			data = shared.data;
+		}
+		listener.loaded( data );
+		return false;
+	}
+	
+	/**
+	 * Put a claimed tile into the store and notify the sources that wait
+	 * for it.  The caller holds one reference.
+	 */
+	public void put( final String dataset, final long level, final String tile, final A data )
+	{
+		final Key key = new Key( dataset, level, tile );
+		final Pending< A > p;
+		synchronized ( this )
+		{
+			p = pending.remove( key );
+			final int references = p == null ? 1 : 1 + p.waiting + p.listeners.size();
+			final Shared< A > shared = new Shared< A >( key, data, references );
+			tiles.put( key, shared );
+			shares.put( data, shared );
+			if ( p != null )
+			{
+				p.data = data;
+				p.done = true;
+				notifyAll();
+			}
+		}
+		if ( p != null )
+			for ( final Listener< A > listener : p.listeners )
+				listener.loaded( data );
+	}
+	
+	/**
+	 * Give up a claimed tile that failed to load and notify the sources that
+	 * wait for it.
+	 * 
+	 * @param missing true if the tile does not exist
+	 */
+	public void fail( final String dataset, final long level, final String tile, final boolean missing )
+	{
+		final Pending< A > p;
+		synchronized ( this )
+		{
+			p = pending.remove( new Key( dataset, level, tile ) );
+			if ( p != null )
+			{
+				p.done = true;
+				notifyAll();
+			}
+		}
+		if ( p != null )
+			for ( final Listener< A > listener : p.listeners )
+				listener.failed( missing );
+	}
+	
+	/**
+	 * Wait for a tile that is being loaded by another source.
+	 * 
+	 * @param timeoutMillis maximum time to wait
+	 * @return the tile with one reference for the caller or null if it
+	 * 		failed, is neither in the store nor being loaded, or did not
+	 * 		arrive in time
+	 * @throws InterruptedException
+	 */
+	synchronized public A await( final String dataset, final long level, final String tile, final long timeoutMillis ) throws InterruptedException
+	{
+		final Key key = new Key( dataset, level, tile );
+		final Shared< A > shared = tiles.get( key );
+		if ( shared != null )
+		{
+			++shared.references;
+			return shared.data;
+		}
+		final Pending< A > p = pending.get( key );
+		if ( p == null )
+			return null;
+		
+		final long now = System.currentTimeMillis();
+		final long deadline = timeoutMillis > Long.MAX_VALUE - now ? Long.MAX_VALUE : now + timeoutMillis;
+		boolean received = false;
+		++p.waiting;
+		try
+		{
+			for ( long wait = timeoutMillis; !p.done && wait > 0; wait = deadline - System.currentTimeMillis() )
+				wait( wait );
+			received = p.done;
+		}
+		finally
+		{
+			/* a waiter that gives up does not keep a reference */
+			if ( !received )
+			{
+				if ( !p.done )
+					--p.waiting;
+				else if ( p.data != null )
+					release( p.data );
+			}
+		}
+		return received ? p.data : null;
+	}
+	
+	/**
+	 * Give back a reference to a tile.
+	 * 
+	 * @return true if this was the last reference, the tile left the store
+	 * 		and the caller may recycle it
+	 */
+	synchronized public boolean release( final A data )
+	{
+		final Shared< A > shared = shares.get( data );
+		if ( shared == null || --shared.references > 0 )
+			return false;
+		shares.remove( data );
+		tiles.remove( shared.key );
+		return true;
+	}
+	
+	/**
+	 * @return the number of tiles in the store
+	 */
+	synchronized public int size()
+	{
+		return tiles.size();
+	}
+	
+	synchronized public int numPending()
+	{
+		return pending.size();
+	}
+}
@@ -0,0 +1,147 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+
+/**
+ * <p>Allocates fixed-size blocks of off-heap memory for tile payloads.
+ * Blocks are cut from large direct {@link ByteBuffer} slabs that are
+ * allocated on demand up to a size limit.  Freed blocks go to a free list
+ * and are handed out again, slabs are never released.</p>
+ *
+ * <p>Tiles in off-heap blocks are invisible to the garbage collector, i.e.
+ * large caches do not fill the old generation and do not make collections
+ * slower.  Blocks must be {@link #free(ByteBuffer) freed} explicitly,
+ * typically when the cache entry that holds them is finalized.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class SlabAllocator
+{
+	final protected int blockBytes;
+	final protected int blocksPerSlab;
+	final protected long maxBytes;
+	
+	final protected ArrayList< ByteBuffer > slabs = new ArrayList< ByteBuffer >();
+	final protected ArrayList< ByteBuffer > free = new ArrayList< ByteBuffer >();
+	
+	/**
+	 * @param blockBytes size of a block
+	 * @param slabBytes size of a slab, rounded down to a multiple of blockBytes
+	 * @param maxBytes size limit of all slabs together
+	 */
+	public SlabAllocator( final int blockBytes, final int slabBytes, final long maxBytes )
+	{
+		this.blockBytes = blockBytes;
+		this.blocksPerSlab = Math.max( 1, slabBytes / blockBytes );
+		this.maxBytes = maxBytes;
+	}
+	
+	/**
+	 * Create an allocator with 64MB slabs.
+	 *
+	 * @param blockBytes
+	 * @param maxBytes
+	 */
+	public SlabAllocator( final int blockBytes, final long maxBytes )
+	{
+		this( blockBytes, 64 * 1024 * 1024, maxBytes );
+	}
+	
+	public int getBlockBytes()
+	{
+		return blockBytes;
+	}
+	
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+	
+	/**
+	 * @return the number of blocks that fit into the size limit
+	 */
+	public long getMaxBlocks()
+	{
+		return maxBytes / ( ( long )blocksPerSlab * blockBytes ) * blocksPerSlab;
+	}
+	
+	/**
+	 * @return the size of all slabs in bytes
+	 */
+	synchronized public long getAllocatedBytes()
+	{
+		return ( long )slabs.size() * blocksPerSlab * blockBytes;
+	}
+	
+	/**
+	 * @return the number of blocks in use
+	 */
+	synchronized public long getUsedBlocks()
+	{
+		return ( long )slabs.size() * blocksPerSlab - free.size();
+	}
+	
+	/**
+	 * Get a free block in native byte order.  The block is positioned at 0
+	 * with limit and capacity blockBytes, its content is undefined.
+	 *
+	 * @return the block or null if the size limit is reached and no block is
+	 * 		free
+	 */
+	synchronized public ByteBuffer allocate()
+	{
+		if ( free.isEmpty() )
+		{
+			final long slabBytes = ( long )blocksPerSlab * blockBytes;
+			if ( getAllocatedBytes() + slabBytes > maxBytes )
+				return null;
+			
+			final ByteBuffer slab;
+			try
+			{
+				slab = ByteBuffer.allocateDirect( ( int )slabBytes );
+			}
+			catch ( final OutOfMemoryError e )
+			{
+				System.out.println( "failed allocating direct slab of " + slabBytes + " bytes" );
+				return null;
+			}
+			slabs.add( slab );
+			for ( int i = blocksPerSlab - 1; i >= 0; --i )
+			{
+				final ByteBuffer block = slab.duplicate();
+				block.limit( ( i + 1 ) * blockBytes );
+				block.position( i * blockBytes );
+				free.add( block.slice().order( ByteOrder.nativeOrder() ) );
+			}
+		}
+		return free.remove( free.size() - 1 );
+	}
+	
+	/**
+	 * Return a block to the free list.  The block must not be used after.
+	 */
+	synchronized public void free( final ByteBuffer block )
+	{
+		block.clear();
+		free.add( block );
+	}
+}
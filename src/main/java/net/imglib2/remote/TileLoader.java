@@ -0,0 +1,59 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * Loads the raw bytes of tiles in the background for sources that load
+ * tiles by a fetcher thread, such that many requests can be in flight at a
+ * time.  See {@link AsyncTileLoader}.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public interface TileLoader
+{
+	/**
+	 * Receives the result of a request.  Called by a thread of the loader.
+	 */
+	public interface Callback
+	{
+		public void loaded( final byte[] bytes );
+		
+		/**
+		 * @param e a {@link FileNotFoundException} if the tile does not exist
+		 */
+		public void failed( final IOException e );
+	}
+	
+	/**
+	 * Request a tile.  Blocks while the maximum number of requests is in
+	 * flight.  The callback is called exactly once.
+	 * 
+	 * @param urlString
+	 * @param priority see {@link RateLimiter}
+	 * @param callback
+	 * @throws InterruptedException
+	 */
+	public void submit( final String urlString, final int priority, final Callback callback ) throws InterruptedException;
+	
+	/**
+	 * Stop loading.  Pending requests fail.
+	 */
+	public void shutdown();
+}
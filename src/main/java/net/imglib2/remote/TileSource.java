@@ -0,0 +1,76 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+
+/**
+ * <p>A backend that serves the tiles of a dataset.  It maps a level and a
+ * cell, i.e. the grid coordinates of a tile, to the raw bytes of the tile
+ * and decodes them into pixels.  Caching, queuing, prefetching, disk
+ * caching and loading in the background are done by the sources on top of
+ * it, i.e. they apply to all backends.</p>
+ *
+ * <p>Raw bytes are what is kept in the {@link DiskCache} and the
+ * {@link CompressedTileCache}, decoded pixels are what is kept in memory.</p>
+ *
+ * @param <A> the pixel array, e.g. int[] or byte[]
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public interface TileSource< A >
+{
+	/**
+	 * @return the name of the dataset in the {@link DiskCache} and the
+	 * 		{@link SharedTileStore}
+	 */
+	public String getDataset();
+	
+	/**
+	 * @return the name of the tile in the {@link DiskCache} and the
+	 * 		{@link SharedTileStore}, unique per level
+	 */
+	public String tileName( final long level, final long[] cell );
+	
+	/**
+	 * @return the URL of the tile for a {@link TileLoader} or null if the
+	 * 		tile can only be read by {@link #read(long, long[], int)}
+	 */
+	public String url( final long level, final long[] cell );
+	
+	/**
+	 * Read the raw bytes of a tile.
+	 * 
+	 * @param level
+	 * @param cell
+	 * @param priority see {@link RateLimiter}
+	 * @return
+	 * @throws IOException a {@link FileNotFoundException} if the tile does
+	 * 		not exist
+	 */
+	public byte[] read( final long level, final long[] cell, final int priority ) throws IOException;
+	
+	/**
+	 * Decode the raw bytes of a tile into pixels.
+	 * 
+	 * @param bytes
+	 * @param pixels the pixels of one tile
+	 * @throws IOException if the bytes cannot be decoded
+	 */
+	public void decode( final byte[] bytes, final A pixels ) throws IOException;
+}
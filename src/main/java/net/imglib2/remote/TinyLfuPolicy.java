@@ -0,0 +1,320 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * <p>A frequency aware retention policy after W-TinyLFU (Einziger, Friedman
+ * and Manes, TinyLFU: A Highly Efficient Cache Admission Policy, 2017).</p>
+ * 
+ * <p>New keys enter a small window LRU.  Keys that fall out of the window
+ * compete with the least recently used key of the main cache, and the key
+ * that was requested more often wins.  Request frequencies are estimated by
+ * a count-min sketch with 4 bit counters that are halved periodically, such
+ * that old popularity fades.  The main cache is a segmented LRU with a
+ * probation and a protected segment.  Tiles that are seen once during a
+ * fast flythrough thus pass through the window but do not replace the
+ * tiles that the user keeps coming back to.</p>
+ * 
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class TinyLfuPolicy< K > implements CachePolicy< K >
+{
+	/**
+	 * Count-min sketch with 4 bit counters, 16 counters per long, and
+	 * 4 hash functions.
+	 */
+	static public class FrequencySketch
+	{
+		final static protected long[] seeds = new long[]{
+				0xc3a5c85c97cb3127l,
+				0xb492b66fbe98f273l,
+				0x9ae16a3b2f90404fl,
+				0xcbf29ce484222325l };
+		
+		final protected long[] table;
+		final protected int mask;
+		final protected int sampleSize;
+		protected int size = 0;
+		
+		/**
+		 * @param capacity expected number of distinct frequent keys
+		 */
+		public FrequencySketch( final int capacity )
+		{
+			int n = 1;
+			while ( n < Math.max( 1, capacity ) )
+				n <<= 1;
+			table = new long[ n ];
+			mask = n * 16 - 1;
+			sampleSize = 10 * Math.max( 1, capacity );
+		}
+		
+		static protected int spread( int h )
+		{
+			h ^= ( h >>> 17 );
+			h *= 0xed5ad4bb;
+			h ^= ( h >>> 11 );
+			h *= 0xac4c1b51;
+			h ^= ( h >>> 15 );
+			return h;
+		}
+		
+		protected int index( final int hash, final int i )
+		{
+			long h = ( hash + seeds[ i ] ) * seeds[ i ];
+			h += h >>> 32;
+			return ( int )h & mask;
+		}
+		
+		protected int get( final int counter )
+		{
+			return ( int )( ( table[ counter >>> 4 ] >>> ( ( counter & 15 ) << 2 ) ) & 0xfl );
+		}
+		
+		/**
+		 * @return the estimated frequency of key, at most 15
+		 */
+		public int frequency( final Object key )
+		{
+			final int hash = spread( key.hashCode() );
+			int frequency = 15;
+			for ( int i = 0; i < 4; ++i )
+				frequency = Math.min( frequency, get( index( hash, i ) ) );
+			return frequency;
+		}
+		
+		/**
+		 * Count a request for key, conservative update, i.e. only the
+		 * minimal counters are incremented.
+		 */
+		public void increment( final Object key )
+		{
+			final int hash = spread( key.hashCode() );
+			final int[] counters = new int[ 4 ];
+			int min = 15;
+			for ( int i = 0; i < 4; ++i )
+			{
+				counters[ i ] = index( hash, i );
+				min = Math.min( min, get( counters[ i ] ) );
+			}
+			if ( min == 15 )
+				return;
+			
+			for ( int i = 0; i < 4; ++i )
+			{
+				if ( get( counters[ i ] ) == min )
+					table[ counters[ i ] >>> 4 ] += 1l << ( ( counters[ i ] & 15 ) << 2 );
+			}
+			
+			if ( ++size == sampleSize )
+				reset();
+		}
+		
+		/**
+		 * Halve all counters.
+		 */
+		protected void reset()
+		{
+			for ( int i = 0; i < table.length; ++i )
+				table[ i ] = ( table[ i ] >>> 1 ) & 0x7777777777777777l;
+			size /= 2;
+		}
+	}
+	
+	final protected double windowFraction;
+	protected int capacity;
+	protected int windowCapacity;
+	protected int protectedCapacity;
+	
+	protected FrequencySketch sketch;
+	protected int sketchCapacity;
+	
+	/* LRU order, the eldest key is the least recently used */
+	final protected LinkedHashMap< K, K > window = new LinkedHashMap< K, K >();
+	final protected LinkedHashMap< K, K > probation = new LinkedHashMap< K, K >();
+	final protected LinkedHashMap< K, K > protect = new LinkedHashMap< K, K >();
+	
+	/**
+	 * @param capacity maximum number of retained keys
+	 * @param windowFraction fraction of the capacity used for the window LRU
+	 */
+	public TinyLfuPolicy( final int capacity, final double windowFraction )
+	{
+		this.windowFraction = windowFraction;
+		this.capacity = capacity;
+		windowCapacity = Math.max( 1, ( int )Math.round( capacity * windowFraction ) );
+		protectedCapacity = ( int )( 0.8 * ( capacity - windowCapacity ) );
+		sketch = new FrequencySketch( capacity );
+		sketchCapacity = capacity;
+	}
+	
+	/**
+	 * Create a policy with a 10% window.  That is more than the 1% suggested
+	 * for general workloads because panning and scrolling is strongly
+	 * recency driven.  On the synthetic browsing traces of
+	 * CachePolicySimulatorTest, a 1% window loses most of the advantage over
+	 * LRU at small capacities.
+	 * 
+	 * @param capacity
+	 */
+	public TinyLfuPolicy( final int capacity )
+	{
+		this( capacity, 0.1 );
+	}
+	
+	static protected < K > void touch( final LinkedHashMap< K, K > segment, final K key )
+	{
+		segment.remove( key );
+		segment.put( key, key );
+	}
+	
+	static protected < K > K eldest( final LinkedHashMap< K, K > segment )
+	{
+		final Iterator< K > i = segment.keySet().iterator();
+		return i.hasNext() ? i.next() : null;
+	}
+	
+	@Override
+	public void access( final K key )
+	{
+		sketch.increment( key );
+		if ( window.containsKey( key ) )
+			touch( window, key );
+		else if ( protect.containsKey( key ) )
+			touch( protect, key );
+		else if ( probation.remove( key ) != null )
+		{
+			/* second hit in the main cache */
+			protect.put( key, key );
+			if ( protect.size() > protectedCapacity )
+			{
+				final K demoted = eldest( protect );
+				protect.remove( demoted );
+				probation.put( demoted, demoted );
+			}
+		}
+	}
+	
+	@Override
+	public void add( final K key, final Collection< K > evicted )
+	{
+		if ( contains( key ) )
+			return;
+		
+		window.put( key, key );
+		if ( window.size() <= windowCapacity )
+			return;
+		
+		final K candidate = eldest( window );
+		window.remove( candidate );
+		
+		if ( probation.size() + protect.size() < capacity - windowCapacity )
+		{
+			probation.put( candidate, candidate );
+			return;
+		}
+		
+		K victim = eldest( probation );
+		if ( victim == null )
+			victim = eldest( protect );
+		
+		if ( victim == null || sketch.frequency( candidate ) <= sketch.frequency( victim ) )
+			evicted.add( candidate );
+		else
+		{
+			if ( probation.remove( victim ) == null )
+				protect.remove( victim );
+			probation.put( candidate, candidate );
+			evicted.add( victim );
+		}
+	}
+	
+	@Override
+	public void remove( final K key )
+	{
+		if ( window.remove( key ) == null )
+			if ( probation.remove( key ) == null )
+				protect.remove( key );
+	}
+	
+	@Override
+	public boolean contains( final K key )
+	{
+		return window.containsKey( key ) || probation.containsKey( key ) || protect.containsKey( key );
+	}
+	
+	@Override
+	public int size()
+	{
+		return window.size() + probation.size() + protect.size();
+	}
+	
+	@Override
+	public int getCapacity()
+	{
+		return capacity;
+	}
+	
+	@Override
+	public void setCapacity( final int capacity, final Collection< K > evicted )
+	{
+		this.capacity = capacity;
+		windowCapacity = Math.max( 1, ( int )Math.round( capacity * windowFraction ) );
+		protectedCapacity = ( int )( 0.8 * ( capacity - windowCapacity ) );
+		
+		/* a sketch that is too narrow overestimates, start over */
+		if ( capacity > 2 * sketchCapacity )
+		{
+			sketch = new FrequencySketch( capacity );
+			sketchCapacity = capacity;
+		}
+		
+		while ( window.size() > windowCapacity )
+		{
+			final K key = eldest( window );
+			window.remove( key );
+			probation.put( key, key );
+		}
+		while ( protect.size() > protectedCapacity )
+		{
+			final K key = eldest( protect );
+			protect.remove( key );
+			probation.put( key, key );
+		}
+		while ( size() > capacity )
+		{
+			K key = eldest( probation );
+			if ( key == null )
+				key = eldest( window );
+			probation.remove( key );
+			window.remove( key );
+			evicted.add( key );
+		}
+	}
+	
+	/**
+	 * @return the estimated request frequency of key, at most 15
+	 */
+	public int frequency( final K key )
+	{
+		return sketch.frequency( key );
+	}
+}
@@ -43,6 +43,7 @@ import net.imglib2.RandomAccess;
 import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.remote.AbstractRemoteRandomAccessibleInterval;
 import net.imglib2.remote.Cache;
+import net.imglib2.remote.TileSource;
 import net.imglib2.type.numeric.NumericType;
 
 /**
@@ -93,6 +94,12 @@ abstract public class AbstractCATMAIDRandomAccessibleInterval<
 			final long value = ( z * rows + r ) * cols + c;
 			return ( int )( value ^ ( value >>> 32 ) );
 		}
+		
+		@Override
+		public String toString()
+		{
+			return r + " " + c + " " + z;
+		}
 	}
 	
 	abstract public class AbstractCATMAIDRandomAccess extends AbstractLocalizable implements RandomAccess< T >
@@ -522,6 +529,9 @@ abstract public class AbstractCATMAIDRandomAccessibleInterval<
 	final protected long rows, cols, s;
 	final protected int tileWidth, tileHeight;
 	
+	/* the backend that serves the tiles */
+	protected TileSource< int[] > tileSource;
+	
 	static protected long[] scaleDimensions(
 			final long width,
 			final long height,
@@ -559,6 +569,7 @@ abstract public class AbstractCATMAIDRandomAccessibleInterval<
 		max[ 0 ] = ( long )( width * scale ) - 1;
 		max[ 1 ] = ( long )( height * scale ) - 1;
 		max[ 2 ] = depth - 1;
+		tileSource = new CATMAIDTileSource( url, tileWidth, tileHeight );
 	}
 	
 	@Override
@@ -566,6 +577,41 @@ abstract public class AbstractCATMAIDRandomAccessibleInterval<
 	{
 		return 3;
 	}
+	
+	public int getTileWidth()
+	{
+		return tileWidth;
+	}
+	
+	public int getTileHeight()
+	{
+		return tileHeight;
+	}
+	
+	public TileSource< int[] > getTileSource()
+	{
+		return tileSource;
+	}
+	
+	/**
+	 * Read tiles from another backend, e.g. a local mirror of the dataset.
+	 * Its tiles must have the tile size of this interval.  Set before
+	 * accessing pixels.
+	 * 
+	 * @param tileSource
+	 */
+	public void setTileSource( final TileSource< int[] > tileSource )
+	{
+		this.tileSource = tileSource;
+	}
+	
+	/**
+	 * The cell (c, r, z) of key in the {@link TileSource}.
+	 */
+	protected long[] cell( final Key key )
+	{
+		return new long[]{ key.c, key.r, key.z };
+	}
 
 	protected E fetchPixels( final long r, final long c, final long z )
 	{
@@ -0,0 +1,469 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote.catmaid;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.basictypeaccess.array.ByteArray;
+import net.imglib2.remote.viewer.CATMAIDMultiResolutionHierarchyRenderer;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+
+/**
+ * <p>Exports any {@link RandomAccessibleInterval} as a CATMAID tile pyramid,
+ * i.e. as images <code>dir/z/r_c_s.jpg</code> that are read by the
+ * CATMAID sources and renderers.  Each scale level s halves the width and
+ * height of the previous level by averaging 2x2 pixels, <em>z</em> is not
+ * scaled.  The number of levels is what
+ * {@link CATMAIDMultiResolutionHierarchyRenderer.Factory#getNumScales(long, long, long, long)}
+ * expects.</p>
+ *
+ * <p>The volume is streamed slice by slice: a slice is read from the
+ * source, written as tiles of level 0, and each level is computed from the
+ * previous one and written before the next is computed.  Slices are
+ * exported in parallel, at most one per thread is in memory, and the tile
+ * rows of each level are written in parallel, such that 2d sources are
+ * exported in parallel too.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class CATMAIDPyramidExporter< T >
+{
+	final protected RandomAccessibleInterval< T > source;
+	final protected Converter< T, ARGBType > converter;
+	final protected File dir;
+	final protected int tileWidth, tileHeight;
+	final protected int width, height;
+	final protected long depth;
+	
+	protected float quality = 0.85f;
+	protected int numThreads = Runtime.getRuntime().availableProcessors();
+	
+	/**
+	 * @param source 2d or 3d
+	 * @param converter maps source pixels to ARGB
+	 * @param dir the base directory of the pyramid
+	 * @param tileWidth
+	 * @param tileHeight
+	 */
+	public CATMAIDPyramidExporter(
+			final RandomAccessibleInterval< T > source,
+			final Converter< T, ARGBType > converter,
+			final File dir,
+			final int tileWidth,
+			final int tileHeight )
+	{
+		if ( source.numDimensions() < 2 || source.numDimensions() > 3 )
+			throw new IllegalArgumentException( "source must be 2d or 3d" );
+		if ( source.dimension( 0 ) * source.dimension( 1 ) > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "slices must have less than 2^31 pixels" );
+		
+		this.source = source;
+		this.converter = converter;
+		this.dir = dir;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		width = ( int )source.dimension( 0 );
+		height = ( int )source.dimension( 1 );
+		depth = source.numDimensions() == 3 ? source.dimension( 2 ) : 1;
+	}
+	
+	/**
+	 * @param quality JPEG quality in [0,1]
+	 */
+	public void setQuality( final float quality )
+	{
+		this.quality = quality;
+	}
+	
+	public void setNumThreads( final int numThreads )
+	{
+		this.numThreads = numThreads;
+	}
+	
+	public int getNumScales()
+	{
+		return Math.max( 1, CATMAIDMultiResolutionHierarchyRenderer.Factory.getNumScales( width, height, tileWidth, tileHeight ) );
+	}
+	
+	/**
+	 * Export all slices.
+	 * 
+	 * @throws IOException if a tile could not be written
+	 * @throws InterruptedException
+	 */
+	public void export() throws IOException, InterruptedException
+	{
+		/* slice threads read and downsample, row threads encode and write tiles */
+		final int numSliceThreads = ( int )Math.max( 1, Math.min( numThreads, depth ) );
+		final ExecutorService sliceExecutor = Executors.newFixedThreadPool( numSliceThreads );
+		final ExecutorService rowExecutor = Executors.newFixedThreadPool( numThreads );
+		final Semaphore slots = new Semaphore( numSliceThreads );
+		final Throwable[] failure = new Throwable[ 1 ];
+		try
+		{
+			for ( long z = 0; z < depth; ++z )
+			{
+				slots.acquire();
+				synchronized ( failure )
+				{
+					if ( failure[ 0 ] != null )
+						break;
+				}
+				final long slice = z;
+				sliceExecutor.execute( new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						try
+						{
+							exportSlice( slice, rowExecutor );
+						}
+						catch ( final Throwable t )
+						{
+							synchronized ( failure )
+							{
+								if ( failure[ 0 ] == null )
+									failure[ 0 ] = t;
+							}
+						}
+						finally
+						{
+							slots.release();
+						}
+					}
+				} );
+			}
+			/* all slices are done when all permits are back */
+			slots.acquire( numSliceThreads );
+		}
+		finally
+		{
+			sliceExecutor.shutdown();
+			rowExecutor.shutdown();
+			sliceExecutor.awaitTermination( 1, TimeUnit.MINUTES );
+			rowExecutor.awaitTermination( 1, TimeUnit.MINUTES );
+		}
+		if ( failure[ 0 ] != null )
+			throw rethrow( failure[ 0 ] );
+	}
+	
+	/**
+	 * Throw unchecked exceptions and errors as they are.
+	 * 
+	 * @param t
+	 * @return t if it is an {@link IOException}, otherwise t wrapped into an
+	 * 		{@link IOException}
+	 */
+	static protected IOException rethrow( final Throwable t )
+	{
+		if ( t instanceof RuntimeException )
+			throw ( RuntimeException )t;
+		if ( t instanceof Error )
+			throw ( Error )t;
+		if ( t instanceof IOException )
+			return ( IOException )t;
+		return new IOException( t );
+	}
+	
+	/**
+	 * Write all levels of one slice.
+	 * 
+	 * @param z
+	 * @throws IOException
+	 */
+	public void exportSlice( final long z ) throws IOException
+	{
+		exportSlice( z, null );
+	}
+	
+	/**
+	 * Write all levels of one slice, the tile rows of each level in parallel.
+	 * 
+	 * @param z
+	 * @param rowExecutor null to write the tiles in this thread
+	 * @throws IOException
+	 */
+	public void exportSlice( final long z, final ExecutorService rowExecutor ) throws IOException
+	{
+		int[] pixels = readSlice( z );
+		int w = width;
+		int h = height;
+		final int numScales = getNumScales();
+		for ( int s = 0; s < numScales; ++s )
+		{
+			if ( s > 0 )
+			{
+				pixels = downsample( pixels, w, h );
+				w /= 2;
+				h /= 2;
+			}
+			if ( rowExecutor == null )
+				writeTiles( pixels, w, h, z, s );
+			else
+				writeTiles( pixels, w, h, z, s, rowExecutor );
+		}
+	}
+	
+	/**
+	 * Read one slice of the source as ARGB.
+	 */
+	protected int[] readSlice( final long z )
+	{
+		final int[] pixels = new int[ width * height ];
+		final ARGBType argb = new ARGBType();
+		final RandomAccess< T > access = source.randomAccess();
+		final long x0 = source.min( 0 );
+		final long y0 = source.min( 1 );
+		if ( source.numDimensions() == 3 )
+			access.setPosition( source.min( 2 ) + z, 2 );
+		for ( int y = 0, i = 0; y < height; ++y )
+		{
+			access.setPosition( x0, 0 );
+			access.setPosition( y0 + y, 1 );
+			for ( int x = 0; x < width; ++x, ++i )
+			{
+				converter.convert( access.get(), argb );
+				pixels[ i ] = argb.get();
+				access.fwd( 0 );
+			}
+		}
+		return pixels;
+	}
+	
+	/**
+	 * Halve the width and height of an ARGB image by averaging 2x2 pixels
+	 * per channel.
+	 * 
+	 * @param pixels
+	 * @param w
+	 * @param h
+	 * @return w/2 x h/2 pixels
+	 */
+	static public int[] downsample( final int[] pixels, final int w, final int h )
+	{
+		final int w2 = w / 2;
+		final int h2 = h / 2;
+		final int[] scaled = new int[ w2 * h2 ];
+		for ( int y = 0, i = 0; y < h2; ++y )
+		{
+			final int row = 2 * y * w;
+			for ( int x = 0; x < w2; ++x, ++i )
+			{
+				final int j = row + 2 * x;
+				final int a = pixels[ j ];
+				final int b = pixels[ j + 1 ];
+				final int c = pixels[ j + w ];
+				final int d = pixels[ j + w + 1 ];
+				int argb = 0;
+				for ( int shift = 0; shift < 32; shift += 8 )
+				{
+					final int sum =
+							( ( a >>> shift ) & 0xff ) +
+							( ( b >>> shift ) & 0xff ) +
+							( ( c >>> shift ) & 0xff ) +
+							( ( d >>> shift ) & 0xff );
+					argb |= ( ( sum + 2 ) >> 2 ) << shift;
+				}
+				scaled[ i ] = argb;
+			}
+		}
+		return scaled;
+	}
+	
+	/**
+	 * Write an ARGB image as the tiles of level s of slice z.  Tiles at the
+	 * border are filled up with black.
+	 */
+	protected void writeTiles( final int[] pixels, final int w, final int h, final long z, final int s ) throws IOException
+	{
+		writeTiles( pixels, w, h, z, s, 0, ( h + tileHeight - 1 ) / tileHeight );
+	}
+	
+	/**
+	 * Write the tiles of level s of slice z one row per task, and wait for
+	 * all rows.
+	 */
+	protected void writeTiles(
+			final int[] pixels,
+			final int w,
+			final int h,
+			final long z,
+			final int s,
+			final ExecutorService executor ) throws IOException
+	{
+		final int rows = ( h + tileHeight - 1 ) / tileHeight;
+		final ArrayList< Future< Void > > futures = new ArrayList< Future< Void > >( rows );
+		for ( int r = 0; r < rows; ++r )
+		{
+			final int row = r;
+			futures.add( executor.submit( new Callable< Void >()
+			{
+				@Override
+				public Void call() throws IOException
+				{
+					writeTiles( pixels, w, h, z, s, row, row + 1 );
+					return null;
+				}
+			} ) );
+		}
+		try
+		{
+			for ( final Future< Void > future : futures )
+				future.get();
+		}
+		catch ( final InterruptedException e )
+		{
+			for ( final Future< Void > future : futures )
+				future.cancel( true );
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "interrupted writing level " + s + " of slice " + z );
+		}
+		catch ( final ExecutionException e )
+		{
+			for ( final Future< Void > future : futures )
+				future.cancel( true );
+			throw rethrow( e.getCause() );
+		}
+	}
+	
+	/**
+	 * Write the rows [r0, r1) of tiles of level s of slice z.
+	 */
+	protected void writeTiles(
+			final int[] pixels,
+			final int w,
+			final int h,
+			final long z,
+			final int s,
+			final int r0,
+			final int r1 ) throws IOException
+	{
+		final File sliceDir = new File( dir, Long.toString( z ) );
+		sliceDir.mkdirs();
+		final BufferedImage tile = new BufferedImage( tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB );
+		final int[] tilePixels = new int[ tileWidth * tileHeight ];
+		final int cols = ( w + tileWidth - 1 ) / tileWidth;
+		for ( int r = r0; r < r1; ++r )
+		{
+			for ( int c = 0; c < cols; ++c )
+			{
+				final int x0 = c * tileWidth;
+				final int y0 = r * tileHeight;
+				final int tw = Math.min( tileWidth, w - x0 );
+				final int th = Math.min( tileHeight, h - y0 );
+				if ( tw < tileWidth || th < tileHeight )
+					Arrays.fill( tilePixels, 0 );
+				for ( int y = 0; y < th; ++y )
+					System.arraycopy( pixels, ( y0 + y ) * w + x0, tilePixels, y * tileWidth, tw );
+				tile.setRGB( 0, 0, tileWidth, tileHeight, tilePixels, 0, tileWidth );
+				write( tile, new File( sliceDir, r + "_" + c + "_" + s + ".jpg" ) );
+			}
+		}
+	}
+	
+	protected void write( final BufferedImage image, final File file ) throws IOException
+	{
+		final Iterator< ImageWriter > writers = ImageIO.getImageWritersByFormatName( "jpg" );
+		if ( !writers.hasNext() )
+			throw new IOException( "no JPEG writer" );
+		final ImageWriter writer = writers.next();
+		final ImageWriteParam param = writer.getDefaultWriteParam();
+		param.setCompressionMode( ImageWriteParam.MODE_EXPLICIT );
+		param.setCompressionQuality( quality );
+		
+		file.delete();
+		final ImageOutputStream out = ImageIO.createImageOutputStream( file );
+		if ( out == null )
+			throw new IOException( "failed opening " + file );
+		try
+		{
+			writer.setOutput( out );
+			writer.write( null, new IIOImage( image, null, null ), param );
+		}
+		finally
+		{
+			writer.dispose();
+			out.close();
+		}
+	}
+	
+	/**
+	 * Export a synthetic volume and read a tile of the coarsest level back.
+	 */
+	final static public void main( final String... args ) throws Exception
+	{
+		final File dir = new File( args.length > 0 ? args[ 0 ] : System.getProperty( "java.io.tmpdir" ) + "/catmaid-export" );
+		final int width = 2048, height = 1536, depth = 16;
+		final ArrayImg< UnsignedByteType, ByteArray > img = ArrayImgs.unsignedBytes( width, height, depth );
+		final byte[] data = img.update( null ).getCurrentStorageArray();
+		for ( int z = 0, i = 0; z < depth; ++z )
+			for ( int y = 0; y < height; ++y )
+				for ( int x = 0; x < width; ++x, ++i )
+					data[ i ] = ( byte )( ( ( x / 64 + y / 64 + z ) & 1 ) == 0 ? 64 : 192 );
+		
+		final CATMAIDPyramidExporter< UnsignedByteType > exporter = new CATMAIDPyramidExporter< UnsignedByteType >(
+				img,
+				new Converter< UnsignedByteType, ARGBType >()
+				{
+					@Override
+					public void convert( final UnsignedByteType input, final ARGBType output )
+					{
+						final int v = input.get();
+						output.set( 0xff000000 | ( v << 16 ) | ( v << 8 ) | v );
+					}
+				},
+				dir,
+				256,
+				256 );
+		
+		final long t = System.currentTimeMillis();
+		exporter.export();
+		System.out.println( "exported " + depth + " slices at " + exporter.getNumScales() + " levels to " + dir + " in " + ( System.currentTimeMillis() - t ) + "ms" );
+		
+		final int s = exporter.getNumScales() - 1;
+		final CATMAIDRandomAccessibleInterval level = new CATMAIDRandomAccessibleInterval( dir.toURI().toString(), width, height, depth, s, 256, 256 );
+		final RandomAccess< ARGBType > access = level.randomAccess();
+		access.setPosition( new long[]{ 10, 10, 0 } );
+		System.out.println( "level " + s + " pixel (10, 10, 0) = " + Integer.toHexString( access.get().get() ) );
+	}
+}
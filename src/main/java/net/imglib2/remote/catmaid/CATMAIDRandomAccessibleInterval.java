@@ -40,15 +40,11 @@ package net.imglib2.remote.catmaid;
 import ij.ImagePlus;
 import ij.process.ColorProcessor;
 
-import java.awt.image.BufferedImage;
-import java.awt.image.PixelGrabber;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.ref.SoftReference;
-import java.net.URL;
 import java.util.HashMap;
 
-import javax.imageio.ImageIO;
-
 import net.imglib2.AbstractInterval;
 import net.imglib2.AbstractLocalizable;
 import net.imglib2.Interval;
@@ -58,6 +54,11 @@ import net.imglib2.RandomAccessibleInterval;
 import net.imglib2.converter.TypeIdentity;
 import net.imglib2.display.ARGBScreenImage;
 import net.imglib2.display.XYRandomAccessibleProjector;
+import net.imglib2.remote.AbstractRemoteRandomAccessibleInterval;
+import net.imglib2.remote.DiskCache;
+import net.imglib2.remote.FailureTracker;
+import net.imglib2.remote.RateLimiter;
+import net.imglib2.remote.TileSource;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.view.Views;
 
@@ -581,6 +582,14 @@ public class CATMAIDRandomAccessibleInterval extends AbstractInterval implements
 	final protected long rows, cols, s;
 	final protected int tileWidth, tileHeight;
 	
+	/* the backend that serves the tiles */
+	protected TileSource< int[] > tileSource;
+	
+	/* optional second level cache for raw tile bytes, null if not used */
+	protected DiskCache diskCache = null;
+	
+	/* tiles that failed to load, retried with backoff or cached as empty if missing */
+	final protected FailureTracker< Key > failures = new FailureTracker< Key >();
 	
 	public CATMAIDRandomAccessibleInterval(
 			final String url,
@@ -602,6 +611,7 @@ public class CATMAIDRandomAccessibleInterval extends AbstractInterval implements
 		max[ 0 ] = ( long )( width * scale ) - 1;
 		max[ 1 ] = ( long )( height * scale ) - 1;
 		max[ 2 ] = depth - 1;
+		tileSource = new CATMAIDTileSource( url, tileWidth, tileHeight );
 	}
 	
 	@Override
@@ -610,6 +620,38 @@ public class CATMAIDRandomAccessibleInterval extends AbstractInterval implements
 		return 3;
 	}
 
+	public DiskCache getDiskCache()
+	{
+		return diskCache;
+	}
+	
+	public void setDiskCache( final DiskCache diskCache )
+	{
+		this.diskCache = diskCache;
+	}
+
+	public FailureTracker< Key > getFailureTracker()
+	{
+		return failures;
+	}
+	
+	public TileSource< int[] > getTileSource()
+	{
+		return tileSource;
+	}
+	
+	/**
+	 * Read tiles from another backend, e.g. a local mirror of the dataset.
+	 * Its tiles must have the tile size of this interval.  Set before
+	 * accessing pixels.
+	 * 
+	 * @param tileSource
+	 */
+	public void setTileSource( final TileSource< int[] > tileSource )
+	{
+		this.tileSource = tileSource;
+	}
+
 	@Override
 	public RandomAccess< ARGBType > randomAccess()
 	{
@@ -648,37 +690,39 @@ public class CATMAIDRandomAccessibleInterval extends AbstractInterval implements
 					return cachedEntry.data;
 			}
 
-			final String urlString =
-					new StringBuffer( baseUrl ).append( z ).append( "/" ).append( r ).append( "_" ).append( c ).append( "_" ).append( s ).append( ".jpg" ).toString();
+			final TileSource< int[] > tileSource = this.tileSource;
+			final long[] cell = new long[]{ c, r, z };
 			final int[] pixels = new int[ tileWidth * tileHeight ];
+			
+			/* failed recently, return an empty tile without requesting it again, cache it only if it is missing */
+			if ( !failures.mayLoad( key ) )
+			{
+				if ( failures.isMissing( key ) )
+					cache.put( key, new SoftReference< Entry >( new Entry( key, pixels ) ) );
+				return pixels;
+			}
+			
 			try
 			{
-				final URL url = new URL( urlString );
-//				final Image image = toolkit.createImage( url );
-			    final BufferedImage jpg = ImageIO.read( url );
-			    
-				/* This gymnastic is necessary to get reproducible gray
-				 * values, just opening a JPG or PNG, even when saved by
-				 * ImageIO, and grabbing its pixels results in gray values
-				 * with a non-matching gamma transfer function, I cannot tell
-				 * why... */
-			    final BufferedImage image = new BufferedImage( tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB );
-				image.createGraphics().drawImage( jpg, 0, 0, null );
-				final PixelGrabber pg = new PixelGrabber( image, 0, 0, tileWidth, tileHeight, pixels, 0, tileWidth );
-				pg.grabPixels();
+				final byte[] bytes = AbstractRemoteRandomAccessibleInterval.fetchBytes(
+						diskCache,
+						tileSource,
+						s,
+						cell,
+						RateLimiter.VISIBLE );
+				tileSource.decode( bytes, pixels );
 				
 				cache.put( key, new SoftReference< Entry >( new Entry( key, pixels ) ) );
+				failures.succeeded( key );
 //				System.out.println( "success loading r=" + r + " c=" + c + " url(" + urlString + ")" );
 				
 			}
 			catch (final IOException e)
 			{
-				System.out.println( "failed loading r=" + r + " c=" + c + " url(" + urlString + ")" );
-				cache.put( key, new SoftReference< Entry >( new Entry( key, pixels ) ) );
-			}
-			catch (final InterruptedException e)
-			{
-				e.printStackTrace();
+				System.out.println( "failed loading r=" + r + " c=" + c + " url(" + tileSource.url( s, cell ) + ")" );
+				/* keep the empty tile only if it is missing, otherwise it is retried after the backoff */
+				if ( failures.failed( key, e instanceof FileNotFoundException ) )
+					cache.put( key, new SoftReference< Entry >( new Entry( key, pixels ) ) );
 			}
 			return pixels;
 		}
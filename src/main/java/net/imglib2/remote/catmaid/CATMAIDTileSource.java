@@ -0,0 +1,107 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote.catmaid;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.PixelGrabber;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+
+import javax.imageio.ImageIO;
+
+import net.imglib2.remote.AbstractRemoteRandomAccessibleInterval;
+import net.imglib2.remote.TileSource;
+
+/**
+ * Tiles of a CATMAID tile pyramid, served as images at
+ * <code>baseUrl/z/r_c_s.jpg</code>.  The cell of a tile is (c, r, z) and
+ * its level is the scale index s.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class CATMAIDTileSource implements TileSource< int[] >
+{
+	final protected String baseUrl;
+	final protected int tileWidth, tileHeight;
+	
+	public CATMAIDTileSource( final String baseUrl, final int tileWidth, final int tileHeight )
+	{
+		this.baseUrl = baseUrl;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+	}
+	
+	@Override
+	public String getDataset()
+	{
+		return baseUrl;
+	}
+	
+	@Override
+	public String tileName( final long level, final long[] cell )
+	{
+		return cell[ 2 ] + "_" + cell[ 1 ] + "_" + cell[ 0 ] + ".jpg";
+	}
+	
+	@Override
+	public String url( final long level, final long[] cell )
+	{
+		return new StringBuffer( baseUrl ).
+				append( cell[ 2 ] ).
+				append( "/" ).
+				append( cell[ 1 ] ).
+				append( "_" ).
+				append( cell[ 0 ] ).
+				append( "_" ).
+				append( level ).
+				append( ".jpg" ).
+				toString();
+	}
+	
+	@Override
+	public byte[] read( final long level, final long[] cell, final int priority ) throws IOException
+	{
+		return AbstractRemoteRandomAccessibleInterval.readBytes( url( level, cell ), priority );
+	}
+	
+	@Override
+	public void decode( final byte[] bytes, final int[] pixels ) throws IOException
+	{
+		final BufferedImage jpg = ImageIO.read( new ByteArrayInputStream( bytes ) );
+		if ( jpg == null )
+			throw new IOException( "no image" );
+		
+		/* This gymnastic is necessary to get reproducible gray
+		 * values, just opening a JPG or PNG, even when saved by
+		 * ImageIO, and grabbing its pixels results in gray values
+		 * with a non-matching gamma transfer function, I cannot tell
+		 * why... */
+		final BufferedImage image = new BufferedImage( tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB );
+		image.createGraphics().drawImage( jpg, 0, 0, null );
+		final PixelGrabber pg = new PixelGrabber( image, 0, 0, tileWidth, tileHeight, pixels, 0, tileWidth );
+		try
+		{
+			pg.grabPixels();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "interrupted while grabbing pixels" );
+		}
+	}
+}
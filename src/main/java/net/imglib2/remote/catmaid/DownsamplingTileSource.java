@@ -0,0 +1,425 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote.catmaid;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import net.imglib2.remote.SharedTileStore;
+import net.imglib2.remote.TileSource;
+
+/**
+ * <p>A CATMAID tile pyramid with levels that are not served by the
+ * backend.  The first levels are read from another {@link TileSource}, all
+ * coarser levels are computed by averaging 2x2 pixels of the four tiles of
+ * the next finer level, which are computed the same way if they are not
+ * served either.  Coarser levels are computed on the calling thread, only
+ * the four served tiles below a computed tile are read in parallel by a
+ * bounded pool of {@link #numReaders} threads.</p>
+ *
+ * <p>Computed tiles are retained in memory up to a number of tiles, such
+ * that the finer tiles of neighboring coarse tiles are computed and read
+ * only once.  Their raw bytes are the pixels prefixed by {@link #MAGIC},
+ * i.e. they can be kept in a {@link net.imglib2.remote.DiskCache} like
+ * served tiles.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class DownsamplingTileSource implements TileSource< int[] >
+{
+	/* first four bytes of computed tiles, JPEG and other images start differently */
+	final static public int MAGIC = 0x44534d50;
+	
+	/* number of threads that read served tiles for all sources */
+	final static public int numReaders = 8;
+	
+	/* reads served tiles only, its threads never wait for other tasks of the pool */
+	final static protected ExecutorService executor = Executors.newFixedThreadPool(
+			numReaders,
+			new ThreadFactory()
+			{
+				@Override
+				public Thread newThread( final Runnable r )
+				{
+					final Thread thread = new Thread( r, "downsampling" );
+					thread.setDaemon( true );
+					return thread;
+				}
+			} );
+	
+	final protected TileSource< int[] > source;
+	final protected long width, height;
+	final protected int tileWidth, tileHeight;
+	final protected int numServedLevels;
+	
+	/* claims computed tiles such that each is computed by one thread at a time */
+	final protected SharedTileStore< int[] > store = new SharedTileStore< int[] >();
+	
+	/* recently computed or read tiles */
+	final protected LinkedHashMap< String, int[] > retained;
+	
+	/**
+	 * @param source serves the levels 0 to numServedLevels - 1
+	 * @param width of level 0
+	 * @param height of level 0
+	 * @param tileWidth
+	 * @param tileHeight
+	 * @param numServedLevels
+	 * @param numRetainedTiles number of tiles retained in memory
+	 */
+	public DownsamplingTileSource(
+			final TileSource< int[] > source,
+			final long width,
+			final long height,
+			final int tileWidth,
+			final int tileHeight,
+			final int numServedLevels,
+			final int numRetainedTiles )
+	{
+		this.source = source;
+		this.width = width;
+		this.height = height;
+		this.tileWidth = tileWidth;
+		this.tileHeight = tileHeight;
+		this.numServedLevels = Math.max( 1, numServedLevels );
+		retained = new LinkedHashMap< String, int[] >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+			
+			@Override
+			protected boolean removeEldestEntry( final Map.Entry< String, int[] > eldest )
+			{
+				return size() > numRetainedTiles;
+			}
+		};
+	}
+	
+	public DownsamplingTileSource(
+			final TileSource< int[] > source,
+			final long width,
+			final long height,
+			final int tileWidth,
+			final int tileHeight,
+			final int numServedLevels )
+	{
+		this( source, width, height, tileWidth, tileHeight, numServedLevels, 256 );
+	}
+	
+	public int getNumServedLevels()
+	{
+		return numServedLevels;
+	}
+	
+	@Override
+	public String getDataset()
+	{
+		return source.getDataset();
+	}
+	
+	@Override
+	public String tileName( final long level, final long[] cell )
+	{
+		return source.tileName( level, cell );
+	}
+	
+	/**
+	 * @return the URL of served tiles, null for computed tiles
+	 */
+	@Override
+	public String url( final long level, final long[] cell )
+	{
+		return level < numServedLevels ? source.url( level, cell ) : null;
+	}
+	
+	@Override
+	public byte[] read( final long level, final long[] cell, final int priority ) throws IOException
+	{
+		if ( level < numServedLevels )
+			return source.read( level, cell, priority );
+		
+		final int[] pixels = pixels( level, cell, priority );
+		final ByteBuffer bytes = ByteBuffer.allocate( 4 + 4 * pixels.length );
+		bytes.putInt( MAGIC );
+		bytes.asIntBuffer().put( pixels );
+		return bytes.array();
+	}
+	
+	@Override
+	public void decode( final byte[] bytes, final int[] pixels ) throws IOException
+	{
+		final ByteBuffer buffer = ByteBuffer.wrap( bytes );
+		if ( bytes.length == 4 + 4 * pixels.length && buffer.getInt() == MAGIC )
+			buffer.asIntBuffer().get( pixels );
+		else
+			source.decode( bytes, pixels );
+	}
+	
+	protected long numCols( final long level )
+	{
+		return ( long )Math.ceil( width / Math.pow( 2, level ) / tileWidth );
+	}
+	
+	protected long numRows( final long level )
+	{
+		return ( long )Math.ceil( height / Math.pow( 2, level ) / tileHeight );
+	}
+	
+	protected String key( final long level, final long[] cell )
+	{
+		return level + "/" + tileName( level, cell );
+	}
+	
+	protected int[] retained( final String key )
+	{
+		synchronized ( retained )
+		{
+			return retained.get( key );
+		}
+	}
+	
+	protected void retain( final String key, final int[] pixels )
+	{
+		synchronized ( retained )
+		{
+			retained.put( key, pixels );
+		}
+	}
+	
+	/**
+	 * Waits for a tile that is read or computed by another thread.
+	 */
+	static protected class Waiter implements SharedTileStore.Listener< int[] >
+	{
+		final protected CountDownLatch done = new CountDownLatch( 1 );
+		protected int[] pixels = null;
+		protected boolean missing = false;
+		
+		@Override
+		public void loaded( final int[] pixels )
+		{
+			this.pixels = pixels;
+			done.countDown();
+		}
+		
+		@Override
+		public void failed( final boolean missing )
+		{
+			this.missing = missing;
+			done.countDown();
+		}
+	}
+	
+	/**
+	 * Get the pixels of a tile, read and decoded if the level is served,
+	 * computed otherwise.
+	 * 
+	 * @throws IOException a {@link FileNotFoundException} if the tile does
+	 * 		not exist
+	 */
+	public int[] pixels( final long level, final long[] cell, final int priority ) throws IOException
+	{
+		final String key = key( level, cell );
+		int[] pixels = retained( key );
+		if ( pixels != null )
+			return pixels;
+		
+		final String dataset = getDataset();
+		final String tile = tileName( level, cell );
+		final Waiter waiter = new Waiter();
+		if ( store.claim( dataset, level, tile, waiter ) )
+		{
+			/* retained by a claimant that finished after it was looked up above */
+			pixels = retained( key );
+			if ( pixels != null )
+			{
+				store.put( dataset, level, tile, pixels );
+				store.release( pixels );
+				return pixels;
+			}
+			try
+			{
+				if ( level < numServedLevels )
+				{
+					pixels = new int[ tileWidth * tileHeight ];
+					source.decode( source.read( level, cell, priority ), pixels );
+				}
+				else
+					pixels = downsample( level, cell, priority );
+			}
+			catch ( final IOException e )
+			{
+				store.fail( dataset, level, tile, e instanceof FileNotFoundException );
+				throw e;
+			}
+			catch ( final RuntimeException e )
+			{
+				store.fail( dataset, level, tile, false );
+				throw e;
+			}
+			retain( key, pixels );
+			store.put( dataset, level, tile, pixels );
+			/* retained here, the store only resolves concurrent claims */
+			store.release( pixels );
+			return pixels;
+		}
+		
+		try
+		{
+			waiter.done.await();
+		}
+		catch ( final InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "interrupted while waiting for " + tile );
+		}
+		if ( waiter.pixels == null )
+		{
+			if ( waiter.missing )
+				throw new FileNotFoundException( "no level " + level + " tile " + tile );
+			throw new IOException( "failed loading level " + level + " tile " + tile );
+		}
+		store.release( waiter.pixels );
+		return waiter.pixels;
+	}
+	
+	/**
+	 * Compute a tile from the four tiles of the next finer level.  Finer
+	 * tiles that are outside of the level or missing are black.  Computed
+	 * finer tiles are computed on this thread one after the other, served
+	 * finer tiles are read in parallel by the {@link #executor}.
+	 * 
+	 * @throws FileNotFoundException if all finer tiles are missing
+	 */
+	protected int[] downsample( final long level, final long[] cell, final int priority ) throws IOException
+	{
+		final long finerLevel = level - 1;
+		final long cols = numCols( finerLevel );
+		final long rows = numRows( finerLevel );
+		final boolean served = finerLevel < numServedLevels;
+		
+		final long[][] finerCells = new long[ 4 ][];
+		/* null for finer tiles that are not read in parallel */
+		final ArrayList< Future< int[] > > futures = new ArrayList< Future< int[] > >( 4 );
+		for ( int i = 0; i < 4; ++i )
+		{
+			futures.add( null );
+			final long[] finerCell = new long[]{ 2 * cell[ 0 ] + ( i & 1 ), 2 * cell[ 1 ] + ( i >> 1 ), cell[ 2 ] };
+			if ( finerCell[ 0 ] >= cols || finerCell[ 1 ] >= rows )
+				continue;
+			finerCells[ i ] = finerCell;
+			if ( served )
+				futures.set( i, executor.submit( new Callable< int[] >()
+				{
+					@Override
+					public int[] call() throws IOException
+					{
+						try
+						{
+							return pixels( finerLevel, finerCell, priority );
+						}
+						catch ( final FileNotFoundException e )
+						{
+							return null;
+						}
+					}
+				} ) );
+		}
+		
+		final int[] pixels = new int[ tileWidth * tileHeight ];
+		final int w = tileWidth / 2;
+		final int h = tileHeight / 2;
+		boolean exists = false;
+		try
+		{
+			for ( int i = 0; i < 4; ++i )
+			{
+				if ( finerCells[ i ] == null )
+					continue;
+				final int[] finerPixels;
+				if ( served )
+					finerPixels = futures.get( i ).get();
+				else
+					finerPixels = finerPixels( finerLevel, finerCells[ i ], priority );
+				if ( finerPixels == null )
+					continue;
+				
+				exists = true;
+				final int[] scaled = CATMAIDPyramidExporter.downsample( finerPixels, tileWidth, tileHeight );
+				final int x0 = ( i & 1 ) * w;
+				final int y0 = ( i >> 1 ) * h;
+				for ( int y = 0; y < h; ++y )
+					System.arraycopy( scaled, y * w, pixels, ( y0 + y ) * tileWidth + x0, w );
+			}
+		}
+		catch ( final InterruptedException e )
+		{
+			cancel( futures );
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException( "interrupted while downsampling" );
+		}
+		catch ( final ExecutionException e )
+		{
+			cancel( futures );
+			if ( e.getCause() instanceof IOException )
+				throw ( IOException )e.getCause();
+			throw new IOException( e.getCause() );
+		}
+		catch ( final IOException e )
+		{
+			cancel( futures );
+			throw e;
+		}
+		if ( !exists )
+			throw new FileNotFoundException( "no level " + finerLevel + " tiles for level " + level + " tile " + tileName( level, cell ) );
+		
+		return pixels;
+	}
+	
+	/**
+	 * @return the pixels of a computed finer tile or null if it is missing
+	 */
+	protected int[] finerPixels( final long finerLevel, final long[] finerCell, final int priority ) throws IOException
+	{
+		try
+		{
+			return pixels( finerLevel, finerCell, priority );
+		}
+		catch ( final FileNotFoundException e )
+		{
+			return null;
+		}
+	}
+	
+	static protected void cancel( final ArrayList< Future< int[] > > futures )
+	{
+		for ( final Future< int[] > future : futures )
+			if ( future != null )
+				future.cancel( true );
+	}
+}
@@ -21,23 +21,35 @@ package net.imglib2.remote.catmaid;
 import ij.ImagePlus;
 import ij.process.ColorProcessor;
 
-import java.awt.image.BufferedImage;
-import java.awt.image.PixelGrabber;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.NoSuchElementException;
-
-import javax.imageio.ImageIO;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import net.imglib2.Interval;
 import net.imglib2.converter.Converter;
 import net.imglib2.display.ARGBScreenImage;
 import net.imglib2.display.VolatileNumericType;
 import net.imglib2.display.XYRandomAccessibleProjector;
+import net.imglib2.remote.ArrayPool;
 import net.imglib2.remote.Cache;
+import net.imglib2.remote.CachePolicy;
+import net.imglib2.remote.CompressedTileCache;
+import net.imglib2.remote.DiskCache;
+import net.imglib2.remote.Prefetchable;
+import net.imglib2.remote.RateLimiter;
+import net.imglib2.remote.SlabAllocator;
+import net.imglib2.remote.TileLoader;
+import net.imglib2.remote.TileSource;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.view.Views;
 
@@ -58,23 +70,111 @@ import net.imglib2.view.Views;
  */
 public class VolatileCATMAIDRandomAccessibleInterval extends
 		AbstractCATMAIDRandomAccessibleInterval< VolatileNumericType< ARGBType >, VolatileCATMAIDRandomAccessibleInterval.Entry >
+		implements Prefetchable
 {
 	public class Entry extends Cache.Entry<
 			AbstractCATMAIDRandomAccessibleInterval< VolatileNumericType< ARGBType >, Entry >.Key,
 			Entry >
 	{
 		public boolean valid;
-		final public int[] data;
 		
-		public Entry( final Key key, final int[] data, final boolean valid )
+		/* released when the entry becomes valid */
+		final protected CountDownLatch loaded = new CountDownLatch( 1 );
+		final public IntBuffer data;
+		
+		/* off-heap block that holds data, null if data is on the heap */
+		final protected ByteBuffer block;
+		final protected SlabAllocator blockAllocator;
+		
+		/* loaded by prefetch and not yet requested by anyone */
+		public boolean prefetched = false;
+		
+		/* the tile as served, e.g. JPEG, kept for demotion, null if not loaded */
+		protected volatile byte[] served = null;
+		
+		/* true if block was returned to the allocator */
+		protected boolean released = false;
+		
+		@Override
+		public void finalize()
+		{
+			if ( block != null )
+				release();
+			else
+				arrayPool.recycle( data.array() );
+			super.finalize();
+		}
+		
+		/**
+		 * Return the off-heap block to the allocator.  The entry is invalid
+		 * after and must not be read anymore.
+		 */
+		synchronized protected void release()
+		{
+			if ( block == null || released )
+				return;
+			valid = false;
+			released = true;
+			blockAllocator.free( block );
+		}
+		
+		/**
+		 * @param key
+		 * @param block off-heap block from {@link #allocator} for the pixels,
+		 * 		null to store them on the heap
+		 * @param valid
+		 */
+		public Entry( final Key key, final ByteBuffer block, final boolean valid )
 		{
 			super( key, cache );
-			this.data = data;
+			this.block = block;
+			if ( block == null )
+			{
+				blockAllocator = null;
+				data = IntBuffer.wrap( arrayPool.get() );
+			}
+			else
+			{
+				blockAllocator = allocator;
+				data = block.asIntBuffer();
+			}
 			this.valid = valid;
+			if ( valid )
+				loaded.countDown();
 		}
 		
 		public boolean isValid() { return valid; }
-		public void setValid( final boolean valid ) { this.valid = valid; }
+		
+		public void setValid( final boolean valid )
+		{
+			this.valid = valid;
+			if ( valid )
+				loaded.countDown();
+		}
+		
+		/**
+		 * Wait until the entry is valid or the timeout is over.
+		 * 
+		 * @param timeoutMillis
+		 * @return true if the entry is valid
+		 * @throws InterruptedException
+		 */
+		public boolean await( final long timeoutMillis ) throws InterruptedException
+		{
+			return valid || loaded.await( timeoutMillis, TimeUnit.MILLISECONDS );
+		}
+		
+		/**
+		 * Set all pixels to 0, off-heap blocks are not cleared when they are
+		 * allocated.
+		 */
+		public void clear()
+		{
+			final IntBuffer pixels = data.duplicate();
+			pixels.clear();
+			while ( pixels.hasRemaining() )
+				pixels.put( 0 );
+		}
 	}
 	
 	protected class Fetcher extends Thread
@@ -86,16 +186,28 @@ public class VolatileCATMAIDRandomAccessibleInterval extends
 			{
 //				System.out.println( "Queue size: " + queue.size() );
 				Reference< Entry > ref;
+				Key prefetchKey = null;
+				final long retryWait;
 				synchronized ( cache )
 				{
+					retryWait = requeueRetries();
 					try { ref = queue.pop(); }
-					catch ( final NoSuchElementException e ) { ref = null; }
+					catch ( final NoSuchElementException e )
+					{
+						ref = null;
+						/* visible tiles first, prefetch only when nothing else is pending */
+						if ( !prefetchQueue.isEmpty() )
+						{
+							prefetchKey = prefetchQueue.pop();
+							prefetchKeys.remove( prefetchKey );
+						}
+					}
 				}
-				if ( ref == null )
+				if ( ref == null && prefetchKey == null )
 				{
 					synchronized ( this )
 					{
-						try { wait(); }
+						try { wait( retryWait ); }
 						catch ( final InterruptedException e )
 						{
 							break;
@@ -104,69 +216,150 @@ public class VolatileCATMAIDRandomAccessibleInterval extends
 				}
 				else
 				{
-					final Entry entry;
+					/* allocate off-heap memory before locking the cache, an exhausted allocator evicts tiles one lock at a time */
+					final SlabAllocator allocator = VolatileCATMAIDRandomAccessibleInterval.this.allocator;
+					ByteBuffer block = prefetchKey == null ? null : allocateBlock();
+					Entry entry = null;
 					synchronized ( cache )
 					{
-						entry = ref.get();
-						if ( entry != null )
+						if ( ref != null )
 						{
-							/* replace WeakReferences by SoftReferences which promotes cache entries from third to second class citizens */
-							synchronized ( cache )
+							entry = ref.get();
+							if ( entry != null )
 							{
-								entry.setValid( true );
+								/* replace WeakReferences by SoftReferences which promotes cache entries from third to second class citizens */
 								cache.remove( entry.key );
 								cache.putSoft( entry.key, entry );
+								
+								/* failed recently, present it as empty if it is missing or try again when the backoff is over */
+								if ( failures.isMissing( entry.key ) )
+								{
+									entry.clear();
+									entry.setValid( true );
+									entry = null;
+								}
+								else if ( !failures.mayLoad( entry.key ) )
+								{
+									retries.add( new WeakReference< Entry >( entry ) );
+									entry = null;
+								}
 							}
 						}
+						else if ( cache.get( prefetchKey ) == null && failures.mayLoad( prefetchKey ) )
+						{
+							/* prefetched entries are nobody's working set yet, so they start as second class citizens */
+							entry = new Entry( prefetchKey, block, false );
+							entry.prefetched = true;
+							cache.putSoft( prefetchKey, entry );
+							block = null;
+						}
 					}
+					if ( block != null )
+						allocator.free( block );
 					
 					if ( entry != null )
-					{	
-						final String urlString =
-								new
-									StringBuffer( baseUrl ).
-									append( entry.key.z ).
-									append( "/" ).
-									append( entry.key.r ).
-									append( "_" ).
-									append( entry.key.c ).
-									append( "_" ).
-									append( s ).
-									append( ".jpg" ).
-									toString();
-						try
+						load( entry, ref == null ? RateLimiter.PREFETCH : RateLimiter.VISIBLE );
+				}
+			}
+			synchronized ( cache )
+			{
+				queue.clear();
+				prefetchQueue.clear();
+				prefetchKeys.clear();
+			}
+		}
+		
+		/**
+		 * @param entry
+		 * @param priority {@link RateLimiter} priority of the request
+		 */
+		protected void load( final Entry entry, final int priority )
+		{
+			final TileSource< int[] > tileSource = VolatileCATMAIDRandomAccessibleInterval.this.tileSource;
+			final long[] cell = cell( entry.key );
+			final String urlString = tileSource.url( s, cell );
+			final String dataset = tileSource.getDataset();
+			final String tile = tileSource.tileName( s, cell );
+			final DiskCache diskCache = VolatileCATMAIDRandomAccessibleInterval.this.diskCache;
+			final TileLoader asyncLoader = VolatileCATMAIDRandomAccessibleInterval.this.asyncLoader;
+			
+			/* demoted by the cache policy, held only in compressed form until now */
+			final CompressedTileCache< Key > compressedCache = VolatileCATMAIDRandomAccessibleInterval.this.compressedCache;
+			final byte[] demoted = compressedCache == null ? null : compressedCache.take( entry.key );
+			if ( demoted != null )
+			{
+				decode( entry, demoted, urlString );
+				return;
+			}
+			
+			byte[] bytes = null;
+			if ( diskCache != null )
+				bytes = diskCache.get( dataset, s, tile );
+			if ( bytes == null && asyncLoader != null && urlString != null )
+			{
+				/* decoded by the loader when it arrives, this thread goes on with the next tile */
+				try
+				{
+					asyncLoader.submit( urlString, priority, new TileLoader.Callback()
+					{
+						@Override
+						public void loaded( final byte[] bytes )
 						{
-							final URL url = new URL( urlString );
-//							final Image image = toolkit.createImage( url );
-						    final BufferedImage jpg = ImageIO.read( url );
-						    
-							/* This gymnastic is necessary to get reproducible gray
-							 * values, just opening a JPG or PNG, even when saved by
-							 * ImageIO, and grabbing its pixels results in gray values
-							 * with a non-matching gamma transfer function, I cannot tell
-							 * why... */
-						    final BufferedImage image = new BufferedImage( tileWidth, tileHeight, BufferedImage.TYPE_INT_RGB );
-							image.createGraphics().drawImage( jpg, 0, 0, null );
-							final PixelGrabber pg = new PixelGrabber( image, 0, 0, tileWidth, tileHeight, entry.data, 0, tileWidth );
-							pg.grabPixels();
-							
-//							System.out.println( "success loading r=" + entry.key.r + " c=" + entry.key.c + " url(" + urlString + ")" );
-							
+							if ( diskCache != null )
+								diskCache.put( dataset, s, tile, bytes );
+							decode( entry, bytes, urlString );
 						}
-						catch (final IOException e)
+						
+						@Override
+						public void failed( final IOException e )
 						{
 							System.out.println( "failed loading r=" + entry.key.r + " c=" + entry.key.c + " url(" + urlString + ")" );
+							VolatileCATMAIDRandomAccessibleInterval.this.failed( entry, e instanceof FileNotFoundException );
 						}
-						catch (final InterruptedException e)
-						{
-							e.printStackTrace();
-						}
-					}
+					} );
 				}
+				catch ( final InterruptedException e )
+				{
+					interrupt();
+				}
+				return;
 			}
-			synchronized ( cache )
+			
+			if ( bytes == null )
 			{
-				queue.clear();
+				try
+				{
+					bytes = fetchBytes( diskCache, tileSource, s, cell, priority );
+				}
+				catch (final IOException e)
+				{
+					System.out.println( "failed loading r=" + entry.key.r + " c=" + entry.key.c + " url(" + urlString + ")" );
+					failed( entry, e instanceof FileNotFoundException );
+					return;
+				}
+			}
+			decode( entry, bytes, urlString );
+		}
+		
+		protected void decode( final Entry entry, final byte[] bytes, final String urlString )
+		{
+			try
+			{
+				final int[] pixels = entry.data.hasArray() ? entry.data.array() : new int[ tileWidth * tileHeight ];
+				tileSource.decode( bytes, pixels );
+				if ( !entry.data.hasArray() )
+					entry.data.duplicate().put( pixels );
+				entry.served = bytes;
+				entry.setValid( true );
+				failures.succeeded( entry.key );
+				
+//				System.out.println( "success loading r=" + entry.key.r + " c=" + entry.key.c + " url(" + urlString + ")" );
+				
+			}
+			catch (final IOException e)
+			{
+				System.out.println( "failed decoding r=" + entry.key.r + " c=" + entry.key.c + " url(" + urlString + ")" );
+				failed( entry, false );
 			}
 		}
 	}
@@ -175,20 +368,47 @@ public class VolatileCATMAIDRandomAccessibleInterval extends
 	{
 		protected Entry entry;
 		
-		public VolatileCATMAIDRandomAccess()
+		/* tiles of the accessed region, c, r, z, that are queued ahead of a blocking RandomAccess */
+		final protected long[] regionMin, regionMax;
+		
+		/* tiles queued ahead, held until the next tiles are queued such that they are not collected before they are loaded */
+		protected Entry[] ahead = new Entry[ 0 ];
+		
+		public VolatileCATMAIDRandomAccess( final Interval interval )
 		{
 			super( new VolatileNumericType< ARGBType >( new ARGBType() ) );
+			regionMin = new long[]{ 0, 0, 0 };
+			regionMax = new long[]{ cols - 1, rows - 1, max[ 2 ] };
+			if ( interval != null )
+			{
+				regionMin[ 0 ] = Math.max( 0, interval.min( 0 ) / tileWidth );
+				regionMax[ 0 ] = Math.min( cols - 1, interval.max( 0 ) / tileWidth );
+				regionMin[ 1 ] = Math.max( 0, interval.min( 1 ) / tileHeight );
+				regionMax[ 1 ] = Math.min( rows - 1, interval.max( 1 ) / tileHeight );
+				if ( interval.numDimensions() > 2 )
+				{
+					regionMin[ 2 ] = Math.max( 0, interval.min( 2 ) );
+					regionMax[ 2 ] = Math.min( max[ 2 ], interval.max( 2 ) );
+				}
+			}
+		}
+		
+		public VolatileCATMAIDRandomAccess()
+		{
+			this( ( Interval )null );
 		}
 		
 		public VolatileCATMAIDRandomAccess( final VolatileCATMAIDRandomAccess template )
 		{
 			super( template );
+			regionMin = template.regionMin.clone();
+			regionMax = template.regionMax.clone();
 		}
 		
 		@Override
 		public VolatileNumericType< ARGBType > get()
 		{
-			t.get().set( entry.data[ tileWidth * yMod + xMod ] );
+			t.get().set( entry.data.get( tileWidth * yMod + xMod ) );
 			t.setValid( entry.valid );
 			return t;
 		}
@@ -209,11 +429,74 @@ public class VolatileCATMAIDRandomAccessibleInterval extends
 		protected void fetchPixels()
 		{
 			entry = VolatileCATMAIDRandomAccessibleInterval.this.fetchPixels( r, c, position[ 2 ] );
+			
+			final long timeout = blockingTimeout;
+			if ( timeout > 0 && !entry.valid )
+			{
+				/* the region is not set yet when the super constructor fetches the first tile */
+				if ( regionMin != null )
+					queueAhead();
+				try
+				{
+					entry.await( timeout );
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		
+		/**
+		 * Queue the next {@link #blockingLookAhead} tiles of the region in
+		 * raster order behind the current tile, such that they load while
+		 * this RandomAccess waits for the current tile.
+		 */
+		protected void queueAhead()
+		{
+			final int n = blockingLookAhead;
+			if ( ahead.length != n )
+				ahead = new Entry[ n ];
+			long ac = c, ar = r, az = position[ 2 ];
+			for ( int i = 0; i < n; ++i )
+			{
+				if ( ++ac > regionMax[ 0 ] )
+				{
+					ac = regionMin[ 0 ];
+					if ( ++ar > regionMax[ 1 ] )
+					{
+						ar = regionMin[ 1 ];
+						if ( ++az > regionMax[ 2 ] )
+						{
+							Arrays.fill( ahead, i, n, null );
+							break;
+						}
+					}
+				}
+				ahead[ i ] = fetchPixels2( ar, ac, az, true );
+			}
 		}
 	}
 	
 	final protected Fetcher fetcher;
+	
+	/* recycles the pixel arrays of collected entries that were on the heap */
+	final protected ArrayPool.IntArrays arrayPool;
+	
 	final protected LinkedList< Reference< Entry > > queue = new LinkedList< Reference< Entry > >();
+	final protected LinkedList< Key > prefetchQueue = new LinkedList< Key >();
+	
+	/* the keys in prefetchQueue, such that each is queued once */
+	final protected HashSet< Key > prefetchKeys = new HashSet< Key >();
+	
+	/* entries that failed to load and wait for their backoff to be over */
+	final protected LinkedList< Reference< Entry > > retries = new LinkedList< Reference< Entry > >();
+	
+	/* maximum number of pending prefetch requests, older requests are dropped first */
+	protected int maxPrefetchQueueSize = 1024;
+	
+	/* number of slices on either side of a requested tile to prefetch, 0 is off */
+	protected int zPrefetchRadius = 0;
 	
 	public VolatileCATMAIDRandomAccessibleInterval(
 			final String url,
@@ -226,6 +509,18 @@ public class VolatileCATMAIDRandomAccessibleInterval extends
 	{
 		super( url, width, height, depth, level, tileWidth, tileHeight );
 		
+		arrayPool = ArrayPool.intArrays( tileWidth * tileHeight );
+		
+		cache.setEvictionListener( new Cache.EvictionListener< Entry >()
+		{
+			@Override
+			public boolean evicted( final Entry entry )
+			{
+				final boolean demoted = demote( entry );
+				return releaseBlock( entry ) || demoted;
+			}
+		} );
+		
 		fetcher = new Fetcher();
 		fetcher.start();
 	}
@@ -256,37 +551,289 @@ public class VolatileCATMAIDRandomAccessibleInterval extends
 	@Override
 	public VolatileCATMAIDRandomAccess randomAccess( final Interval interval )
 	{
-		return randomAccess();
+		return new VolatileCATMAIDRandomAccess( interval );
 	}
 		
 	@Override
 	protected Entry fetchPixels2( final long r, final long c, final long z )
 	{
-		final Reference< Entry > ref;
-		final Key key;
+		return fetchPixels2( r, c, z, false );
+	}
+	
+	/**
+	 * @param r
+	 * @param c
+	 * @param z
+	 * @param ahead true to queue the tile behind the pending visible tiles,
+	 * 		e.g. the look-ahead of a blocking RandomAccess, false to load it
+	 * 		next
+	 */
+	protected Entry fetchPixels2( final long r, final long c, final long z, final boolean ahead )
+	{
+		final Key key = new Key( r, c, z );
+		final SlabAllocator allocator = this.allocator;
+		Entry entry = null;
+		ByteBuffer block = null;
+		boolean allocated = allocator == null;
+		while ( entry == null )
+		{
+			synchronized ( cache )
+			{
+				final Entry cachedEntry = cache.get( key );
+				if ( cachedEntry != null )
+				{
+					if ( block != null )
+						allocator.free( block );
+					cache.use( key, cachedEntry );
+					
+					/* a prefetched tile became visible, keep the z-neighborhood ahead of it */
+					if ( cachedEntry.prefetched )
+					{
+						cachedEntry.prefetched = false;
+						prefetchZNeighbors( r, c, z );
+					}
+					return cachedEntry;
+				}
+				
+				if ( allocated )
+				{
+					/* hold the new entry strongly until it is returned, the WeakReference may be cleared before */
+					entry = new Entry( key, block, false );
+					/* the working set of this frame must not be collected before it is loaded and painted */
+					cache.use( key, entry );
+					
+					/* known to be missing, present it as empty instead of requesting it again */
+					if ( failures.isMissing( key ) )
+					{
+						entry.clear();
+						entry.setValid( true );
+						cache.putSoft( key, entry );
+						return entry;
+					}
+					
+					final Reference< Entry > ref = new WeakReference< Entry >( entry );
+					//final Reference< Entry > ref = new SoftReference< Entry >( entry );
+					cache.putReference( key, ref );
+					if ( ahead )
+						queue.addLast( ref );
+					else
+						queue.push( ref );
+				}
+			}
+			if ( !allocated )
+			{
+				/* allocate off-heap memory outside of the lock, an exhausted allocator evicts tiles one lock at a time */
+				block = allocateBlock();
+				allocated = true;
+			}
+		}
+		synchronized ( fetcher )
+		{
+			fetcher.notify();
+		}
+		
+		if ( !ahead )
+			prefetchZNeighbors( r, c, z );
+		
+		return entry;
+	}
+	
+	/**
+	 * Move a tile that the {@link CachePolicy} evicted into the
+	 * {@link CompressedTileCache} in the form it was served in, e.g. JPEG,
+	 * which is many times smaller than the decoded tile and is decoded
+	 * again when the tile is requested.  Nothing is compressed, so this is
+	 * cheap enough for the cache lock that it is called in.
+	 * 
+	 * @param entry
+	 * @return true if the tile was demoted and its decoded form can be
+	 * 		dropped
+	 */
+	protected boolean demote( final Entry entry )
+	{
+		final CompressedTileCache< Key > compressedCache = this.compressedCache;
+		final byte[] served = entry.served;
+		if ( compressedCache == null || served == null || !entry.valid )
+			return false;
+		
+		compressedCache.put( entry.key, served );
+		return true;
+	}
+	
+	/**
+	 * Return the off-heap block of a tile that the {@link CachePolicy}
+	 * evicted to the allocator.  This is safe only while pinning is enabled
+	 * because then all tiles in use are pinned and no evicted tile is read
+	 * anymore.  Called while the cache is locked.
+	 * 
+	 * @param entry
+	 * @return true if the block was released and the entry must be dropped
+	 */
+	protected boolean releaseBlock( final Entry entry )
+	{
+		if ( entry.block == null || !entry.valid || !cache.isPinning() )
+			return false;
+		entry.release();
+		return true;
+	}
+	
+	/**
+	 * Record a failed load.  A missing tile is presented as empty and valid,
+	 * others are retried when their backoff is over.
+	 * 
+	 * @param entry
+	 * @param permanent true if the tile does not exist
+	 */
+	protected void failed( final Entry entry, final boolean permanent )
+	{
+		if ( failures.failed( entry.key, permanent ) )
+		{
+			entry.clear();
+			entry.setValid( true );
+		}
+		else
+		{
+			synchronized ( cache )
+			{
+				retries.add( new WeakReference< Entry >( entry ) );
+			}
+		}
+	}
+	
+	/**
+	 * Move entries whose backoff is over from {@link #retries} to the end of
+	 * the queue.  Must be called while synchronized on the cache.
+	 * 
+	 * @return milliseconds until the next retry is due, 0 if none is pending
+	 */
+	protected long requeueRetries()
+	{
+		final long now = System.currentTimeMillis();
+		long next = Long.MAX_VALUE;
+		for ( final Iterator< Reference< Entry > > i = retries.iterator(); i.hasNext(); )
+		{
+			final Reference< Entry > ref = i.next();
+			final Entry entry = ref.get();
+			if ( entry == null )
+				i.remove();
+			else
+			{
+				final long retryTime = failures.getRetryTime( entry.key );
+				if ( retryTime <= now )
+				{
+					i.remove();
+					queue.addLast( ref );
+				}
+				else
+					next = Math.min( next, retryTime );
+			}
+		}
+		return next == Long.MAX_VALUE ? 0 : Math.max( 1, next - now );
+	}
+	
+	/**
+	 * Queue tile (r, c, z) for loading at background priority unless it is
+	 * cached already.  A tile that is queued already moves to the front of
+	 * the queue.  Requests for tiles outside of the interval are ignored.
+	 * 
+	 * @param r
+	 * @param c
+	 * @param z
+	 */
+	public void prefetch( final long r, final long c, final long z )
+	{
+		if ( r < 0 || r >= rows || c < 0 || c >= cols || z < min[ 2 ] || z > max[ 2 ] )
+			return;
+		
 		synchronized ( cache )
 		{
-			key = new Key( r, c, z );
-			final Entry cachedEntry = cache.get( key );
-			if ( cachedEntry != null )
-				return cachedEntry;
+			final Key key = new Key( r, c, z );
+			if ( cache.get( key ) != null || !failures.mayLoad( key ) )
+				return;
 			
-			final int[] data = new int[ tileWidth * tileHeight ];
-			ref = new WeakReference< Entry >( new Entry( key, data, false ) );
-			//ref = new SoftReference< Entry >( new Entry( key, bytes, false ) );
-			cache.putReference( key, ref );
-			queue.push( ref );
+			/* queued already, move it to the front */
+			if ( !prefetchKeys.add( key ) )
+				prefetchQueue.remove( key );
+			prefetchQueue.push( key );
+			if ( prefetchQueue.size() > maxPrefetchQueueSize )
+				prefetchKeys.remove( prefetchQueue.removeLast() );
 		}
 		synchronized ( fetcher )
 		{
 			fetcher.notify();
 		}
+	}
+	
+	@Override
+	public int getCellDimension( final int d )
+	{
+		return d == 0 ? tileWidth : d == 1 ? tileHeight : 1;
+	}
+	
+	@Override
+	public void prefetch( final long[] min, final long[] max )
+	{
+		if ( max[ 0 ] < 0 || max[ 1 ] < 0 )
+			return;
 		
-		final Entry entry = ref.get();
-		if ( entry != null )
-			return entry;
-		else
-			return new Entry( key, new int[ tileWidth * tileHeight ], false );
+		final long r0 = Math.max( 0, min[ 1 ] / tileHeight );
+		final long r1 = Math.min( rows - 1, max[ 1 ] / tileHeight );
+		final long c0 = Math.max( 0, min[ 0 ] / tileWidth );
+		final long c1 = Math.min( cols - 1, max[ 0 ] / tileWidth );
+		final long z0 = Math.max( this.min[ 2 ], min[ 2 ] );
+		final long z1 = Math.min( this.max[ 2 ], max[ 2 ] );
+		
+		for ( long z = z0; z <= z1; ++z )
+			for ( long r = r0; r <= r1; ++r )
+				for ( long c = c0; c <= c1; ++c )
+					prefetch( r, c, z );
+	}
+	
+	/**
+	 * Queue tiles (r, c, z&plusmn;1..k) for loading at background priority,
+	 * nearest slices first.  Does nothing unless a
+	 * {@link #setZPrefetchRadius(int) z-prefetch radius} k &gt; 0 is set.
+	 * 
+	 * @param r
+	 * @param c
+	 * @param z
+	 */
+	protected void prefetchZNeighbors( final long r, final long c, final long z )
+	{
+		/* the prefetch queue is LIFO, so queue the farthest slices first */
+		for ( int i = zPrefetchRadius; i > 0; --i )
+		{
+			prefetch( r, c, z + i );
+			prefetch( r, c, z - i );
+		}
+	}
+	
+	public int getZPrefetchRadius()
+	{
+		return zPrefetchRadius;
+	}
+	
+	/**
+	 * Set the number of slices k on either side of a requested tile that
+	 * are prefetched along <em>z</em>.  The prefetch queue is bounded by
+	 * {@link #setMaxPrefetchQueueSize(int)} and only served when no visible
+	 * tile is pending, so z-prefetch never delays visible tiles.
+	 * 
+	 * @param zPrefetchRadius k, 0 disables z-prefetch
+	 */
+	public void setZPrefetchRadius( final int zPrefetchRadius )
+	{
+		this.zPrefetchRadius = zPrefetchRadius;
+	}
+	
+	public int getMaxPrefetchQueueSize()
+	{
+		return maxPrefetchQueueSize;
+	}
+	
+	public void setMaxPrefetchQueueSize( final int maxPrefetchQueueSize )
+	{
+		this.maxPrefetchQueueSize = maxPrefetchQueueSize;
 	}
 	
 	@Override
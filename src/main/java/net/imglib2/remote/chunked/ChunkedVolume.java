@@ -0,0 +1,218 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote.chunked;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * <p>One level of a chunked volume, i.e. a grid of blocks in one large
+ * file, read through a read-only memory mapping.  Reading a block is a copy
+ * from the page cache without system calls, so local data is read at disk
+ * or memory bandwidth.</p>
+ *
+ * <p>The file consists of a header, an index with one record per block,
+ * and the blocks.  A header holds the magic number, the version, the block
+ * dimensions, the grid dimensions and the offset of the first block.  An
+ * index record holds the offset and the length of a block, length 0 marks
+ * a missing block.  Each block starts with a byte that names its codec,
+ * {@link #RAW} or {@link #DEFLATE}, followed by the payload.  Blocks do not
+ * cross the boundaries of the mapped segments.  Files are written by a
+ * {@link ChunkedVolumeWriter}.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class ChunkedVolume
+{
+	final static protected int MAGIC = 0x43484b56;
+	final static protected int VERSION = 1;
+	final static protected int headerBytes = 64;
+	final static protected int recordBytes = 12;
+	final static protected long segmentBytes = 1 << 30;
+	
+	/* block codecs */
+	final static public byte RAW = 0;
+	final static public byte DEFLATE = 1;
+	
+	final protected File file;
+	final protected int[] blockDimensions = new int[ 3 ];
+	final protected long[] gridDimensions = new long[ 3 ];
+	final protected long dataOffset;
+	
+	final protected MappedByteBuffer index;
+	final protected MappedByteBuffer[] segments;
+	
+	/**
+	 * Open a chunked volume for reading.
+	 * 
+	 * @param file
+	 * @throws IOException if the file does not exist or is not a chunked
+	 * 		volume
+	 */
+	public ChunkedVolume( final File file ) throws IOException
+	{
+		this.file = file;
+		final RandomAccessFile randomAccessFile = new RandomAccessFile( file, "r" );
+		try
+		{
+			final FileChannel channel = randomAccessFile.getChannel();
+			final MappedByteBuffer header = channel.map( FileChannel.MapMode.READ_ONLY, 0, headerBytes );
+			if ( header.getInt( 0 ) != MAGIC || header.getInt( 4 ) != VERSION )
+				throw new IOException( file + " is not a chunked volume" );
+			for ( int d = 0; d < 3; ++d )
+			{
+				blockDimensions[ d ] = header.getInt( 8 + 4 * d );
+				gridDimensions[ d ] = header.getLong( 24 + 8 * d );
+			}
+			dataOffset = header.getLong( 48 );
+			
+			index = channel.map( FileChannel.MapMode.READ_ONLY, headerBytes, numBlocks() * recordBytes );
+			
+			final long dataBytes = channel.size() - dataOffset;
+			final int numSegments = ( int )( ( dataBytes + segmentBytes - 1 ) / segmentBytes );
+			segments = new MappedByteBuffer[ numSegments ];
+			for ( int i = 0; i < numSegments; ++i )
+				segments[ i ] = channel.map(
+						FileChannel.MapMode.READ_ONLY,
+						dataOffset + i * segmentBytes,
+						Math.min( segmentBytes, dataBytes - i * segmentBytes ) );
+		}
+		finally
+		{
+			/* mappings remain valid after the file is closed */
+			randomAccessFile.close();
+		}
+	}
+	
+	public File getFile()
+	{
+		return file;
+	}
+	
+	public int[] getBlockDimensions()
+	{
+		return blockDimensions.clone();
+	}
+	
+	public long[] getGridDimensions()
+	{
+		return gridDimensions.clone();
+	}
+	
+	public long numBlocks()
+	{
+		return gridDimensions[ 0 ] * gridDimensions[ 1 ] * gridDimensions[ 2 ];
+	}
+	
+	/**
+	 * @return the index of a block or -1 if it is outside of the grid
+	 */
+	protected long blockIndex( final long[] cell )
+	{
+		for ( int d = 0; d < 3; ++d )
+			if ( cell[ d ] < 0 || cell[ d ] >= gridDimensions[ d ] )
+				return -1;
+		return ( cell[ 2 ] * gridDimensions[ 1 ] + cell[ 1 ] ) * gridDimensions[ 0 ] + cell[ 0 ];
+	}
+	
+	/**
+	 * @return true if the block at cell exists
+	 */
+	public boolean contains( final long[] cell )
+	{
+		final long i = blockIndex( cell );
+		return i >= 0 && index.getInt( ( int )( i * recordBytes + 8 ) ) > 0;
+	}
+	
+	/**
+	 * Read a block as stored, i.e. codec byte and payload, see
+	 * {@link #unpack(byte[], byte[])}.
+	 * 
+	 * @param cell
+	 * @return
+	 * @throws FileNotFoundException if the block is missing or outside of the
+	 * 		grid
+	 */
+	public byte[] read( final long[] cell ) throws FileNotFoundException
+	{
+		final long i = blockIndex( cell );
+		if ( i < 0 )
+			throw new FileNotFoundException( file + " has no block " + cell[ 0 ] + "," + cell[ 1 ] + "," + cell[ 2 ] );
+		
+		final int record = ( int )( i * recordBytes );
+		final long offset = index.getLong( record );
+		final int length = index.getInt( record + 8 );
+		if ( length <= 0 )
+			throw new FileNotFoundException( file + " has no block " + cell[ 0 ] + "," + cell[ 1 ] + "," + cell[ 2 ] );
+		
+		final long relativeOffset = offset - dataOffset;
+		final ByteBuffer segment = segments[ ( int )( relativeOffset / segmentBytes ) ].duplicate();
+		segment.position( ( int )( relativeOffset % segmentBytes ) );
+		final byte[] bytes = new byte[ length ];
+		segment.get( bytes );
+		return bytes;
+	}
+	
+	/**
+	 * Unpack a block as read by {@link #read(long[])} into raw bytes.
+	 * 
+	 * @param block
+	 * @param raw
+	 * @throws IOException if the codec is unknown, the payload is corrupt or
+	 * 		its size is not the size of raw, e.g. because the block has other
+	 * 		dimensions than the tile it is read for
+	 */
+	static public void unpack( final byte[] block, final byte[] raw ) throws IOException
+	{
+		switch ( block[ 0 ] )
+		{
+		case RAW:
+			if ( block.length - 1 != raw.length )
+				throw new IOException( "block of " + ( block.length - 1 ) + " bytes does not fit a tile of " + raw.length + " bytes" );
+			System.arraycopy( block, 1, raw, 0, raw.length );
+			break;
+		case DEFLATE:
+			final Inflater inflater = new Inflater();
+			try
+			{
+				inflater.setInput( block, 1, block.length - 1 );
+				final int n = inflater.inflate( raw );
+				/* a full raw may leave the end of the stream unread, more data is a larger block */
+				if ( n != raw.length || ( !inflater.finished() && inflater.inflate( new byte[ 1 ] ) > 0 ) )
+					throw new IOException( "block does not fit a tile of " + raw.length + " bytes" );
+			}
+			catch ( final DataFormatException e )
+			{
+				throw new IOException( "failed unpacking: " + e.getMessage() );
+			}
+			finally
+			{
+				inflater.end();
+			}
+			break;
+		default:
+			throw new IOException( "unknown codec " + block[ 0 ] );
+		}
+	}
+}
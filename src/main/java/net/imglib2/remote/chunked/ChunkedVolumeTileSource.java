@@ -0,0 +1,199 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote.chunked;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import net.imglib2.remote.TileSource;
+
+/**
+ * <p>Tiles from a local mirror of a dataset, one {@link ChunkedVolume} per
+ * level in a directory, named <code>&lt;level&gt;.chunks</code>.  Levels
+ * are opened when they are first read.  Missing levels and blocks are
+ * missing tiles.</p>
+ *
+ * <p>Set it as the {@link TileSource} of a source or of a renderer factory,
+ * the block dimensions must match the tile or cell dimensions of the
+ * source.  If they are passed to the constructor, each level is checked
+ * when it is opened and a level with other blocks fails with an
+ * {@link IOException}.  Use {@link Bytes} for gray cubes, e.g. of the Open Connectome
+ * sources, and {@link Ints} for ARGB tiles, e.g. of the CATMAID sources
+ * with blocks of depth 1.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+abstract public class ChunkedVolumeTileSource< A > implements TileSource< A >
+{
+	/**
+	 * Blocks of bytes.
+	 */
+	static public class Bytes extends ChunkedVolumeTileSource< byte[] >
+	{
+		public Bytes( final File dir, final int[] blockDimensions )
+		{
+			super( dir, blockDimensions );
+		}
+		
+		public Bytes( final File dir )
+		{
+			super( dir );
+		}
+		
+		@Override
+		public void decode( final byte[] bytes, final byte[] pixels ) throws IOException
+		{
+			ChunkedVolume.unpack( bytes, pixels );
+		}
+	}
+	
+	/**
+	 * Blocks of ints, e.g. ARGB pixels.
+	 */
+	static public class Ints extends ChunkedVolumeTileSource< int[] >
+	{
+		public Ints( final File dir, final int[] blockDimensions )
+		{
+			super( dir, blockDimensions );
+		}
+		
+		public Ints( final File dir )
+		{
+			super( dir );
+		}
+		
+		@Override
+		public void decode( final byte[] bytes, final int[] pixels ) throws IOException
+		{
+			if ( bytes[ 0 ] == ChunkedVolume.RAW )
+			{
+				if ( bytes.length - 1 != 4 * pixels.length )
+					throw new IOException( "block of " + ( bytes.length - 1 ) + " bytes does not fit a tile of " + pixels.length + " pixels" );
+				ByteBuffer.wrap( bytes, 1, bytes.length - 1 ).asIntBuffer().get( pixels );
+			}
+			else
+			{
+				final byte[] raw = new byte[ pixels.length * 4 ];
+				ChunkedVolume.unpack( bytes, raw );
+				ByteBuffer.wrap( raw ).asIntBuffer().get( pixels );
+			}
+		}
+	}
+	
+	final protected File dir;
+	
+	/* expected block dimensions of all levels, null if they are not checked */
+	final protected int[] blockDimensions;
+	
+	/* opened levels, null if a level does not exist */
+	final protected HashMap< Long, ChunkedVolume > levels = new HashMap< Long, ChunkedVolume >();
+	
+	/**
+	 * @param dir
+	 * @param blockDimensions the tile or cell dimensions of the source that
+	 * 		reads the mirror, null to not check them
+	 */
+	public ChunkedVolumeTileSource( final File dir, final int[] blockDimensions )
+	{
+		this.dir = dir;
+		this.blockDimensions = blockDimensions == null ? null : blockDimensions.clone();
+	}
+	
+	public ChunkedVolumeTileSource( final File dir )
+	{
+		this( dir, null );
+	}
+	
+	/**
+	 * The file of a level in dir.
+	 */
+	static public File levelFile( final File dir, final long level )
+	{
+		return new File( dir, level + ".chunks" );
+	}
+	
+	/**
+	 * @return the volume of level or null if it does not exist
+	 * @throws IOException if the level cannot be opened or its blocks do not
+	 * 		have the expected dimensions
+	 */
+	synchronized public ChunkedVolume getLevel( final long level ) throws IOException
+	{
+		if ( levels.containsKey( level ) )
+			return levels.get( level );
+		
+		final File file = levelFile( dir, level );
+		ChunkedVolume volume = null;
+		if ( file.exists() )
+		{
+			volume = new ChunkedVolume( file );
+			final int[] volumeBlockDimensions = volume.getBlockDimensions();
+			if ( blockDimensions != null && !Arrays.equals( blockDimensions, volumeBlockDimensions ) )
+				throw new IOException(
+						file + " has blocks of " + dimensionsName( volumeBlockDimensions ) +
+						" pixels, expected " + dimensionsName( blockDimensions ) );
+		}
+		levels.put( level, volume );
+		return volume;
+	}
+	
+	static protected String dimensionsName( final int[] dimensions )
+	{
+		return dimensions[ 0 ] + "x" + dimensions[ 1 ] + "x" + dimensions[ 2 ];
+	}
+	
+	@Override
+	public String getDataset()
+	{
+		return dir.getAbsolutePath();
+	}
+	
+	/**
+	 * The cell indices, prefixed by the block dimensions if they are known
+	 * such that mirrors of the same dataset with differently shaped cells
+	 * do not collide in a {@link net.imglib2.remote.DiskCache} or
+	 * {@link net.imglib2.remote.SharedTileStore}.
+	 */
+	@Override
+	public String tileName( final long level, final long[] cell )
+	{
+		final String name = cell[ 0 ] + "_" + cell[ 1 ] + "_" + cell[ 2 ];
+		return blockDimensions == null ? name : dimensionsName( blockDimensions ) + "/" + name;
+	}
+	
+	/**
+	 * @return null, blocks are read directly
+	 */
+	@Override
+	public String url( final long level, final long[] cell )
+	{
+		return null;
+	}
+	
+	@Override
+	public byte[] read( final long level, final long[] cell, final int priority ) throws IOException
+	{
+		final ChunkedVolume volume = getLevel( level );
+		if ( volume == null )
+			throw new FileNotFoundException( "no level " + level + " in " + dir );
+		return volume.read( cell );
+	}
+}
@@ -0,0 +1,191 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote.chunked;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.Deflater;
+
+/**
+ * <p>Writes a {@link ChunkedVolume}.  Blocks can be written in any order,
+ * each at most once, and are appended to the file.  Blocks that are not
+ * written are missing.  The index is written when the writer is
+ * {@link #close() closed}.</p>
+ *
+ * <p>Blocks are deflated at the given level if that saves at least an
+ * eighth of their size, otherwise they are stored raw.  Level 1 compresses
+ * fast and still shrinks sparse or smooth data considerably, 0 stores all
+ * blocks raw.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class ChunkedVolumeWriter
+{
+	final protected File file;
+	final protected int[] blockDimensions;
+	final protected long[] gridDimensions;
+	final protected int compressionLevel;
+	
+	final protected RandomAccessFile randomAccessFile;
+	final protected FileChannel channel;
+	final protected long dataOffset;
+	final protected long[] offsets;
+	final protected int[] lengths;
+	protected long end;
+	
+	/**
+	 * Create or overwrite a chunked volume.
+	 * 
+	 * @param file
+	 * @param blockDimensions size of a block in pixels
+	 * @param gridDimensions number of blocks per dimension
+	 * @param compressionLevel {@link Deflater} level, 0 stores blocks raw
+	 * @throws IOException
+	 */
+	public ChunkedVolumeWriter(
+			final File file,
+			final int[] blockDimensions,
+			final long[] gridDimensions,
+			final int compressionLevel ) throws IOException
+	{
+		this.file = file;
+		this.blockDimensions = blockDimensions.clone();
+		this.gridDimensions = gridDimensions.clone();
+		this.compressionLevel = compressionLevel;
+		
+		final long numBlocks = gridDimensions[ 0 ] * gridDimensions[ 1 ] * gridDimensions[ 2 ];
+		if ( numBlocks * ChunkedVolume.recordBytes > Integer.MAX_VALUE )
+			throw new IllegalArgumentException( "too many blocks: " + numBlocks );
+		offsets = new long[ ( int )numBlocks ];
+		lengths = new int[ ( int )numBlocks ];
+		
+		/* page aligned data */
+		dataOffset = ( ChunkedVolume.headerBytes + numBlocks * ChunkedVolume.recordBytes + 4095 ) / 4096 * 4096;
+		end = dataOffset;
+		
+		final File dir = file.getAbsoluteFile().getParentFile();
+		if ( dir != null )
+			dir.mkdirs();
+		randomAccessFile = new RandomAccessFile( file, "rw" );
+		randomAccessFile.setLength( 0 );
+		channel = randomAccessFile.getChannel();
+	}
+	
+	/**
+	 * Write a block.
+	 * 
+	 * @param cell grid coordinates of the block
+	 * @param raw the pixels of the block as bytes, x fastest
+	 * @throws IOException
+	 */
+	synchronized public void write( final long[] cell, final byte[] raw ) throws IOException
+	{
+		for ( int d = 0; d < 3; ++d )
+			if ( cell[ d ] < 0 || cell[ d ] >= gridDimensions[ d ] )
+				throw new IllegalArgumentException( "block " + cell[ 0 ] + "," + cell[ 1 ] + "," + cell[ 2 ] + " is outside of the grid" );
+		final int i = ( int )( ( cell[ 2 ] * gridDimensions[ 1 ] + cell[ 1 ] ) * gridDimensions[ 0 ] + cell[ 0 ] );
+		
+		final byte[] block = pack( raw );
+		
+		/* blocks must not cross segment boundaries */
+		final long segmentOffset = ( end - dataOffset ) % ChunkedVolume.segmentBytes;
+		if ( segmentOffset + block.length > ChunkedVolume.segmentBytes )
+			end += ChunkedVolume.segmentBytes - segmentOffset;
+		
+		final ByteBuffer buffer = ByteBuffer.wrap( block );
+		long position = end;
+		while ( buffer.hasRemaining() )
+			position += channel.write( buffer, position );
+		
+		offsets[ i ] = end;
+		lengths[ i ] = block.length;
+		end = position;
+	}
+	
+	/**
+	 * Write a block of ints, e.g. ARGB pixels.
+	 * 
+	 * @param cell
+	 * @param pixels
+	 * @throws IOException
+	 */
+	public void write( final long[] cell, final int[] pixels ) throws IOException
+	{
+		final byte[] raw = new byte[ pixels.length * 4 ];
+		ByteBuffer.wrap( raw ).asIntBuffer().put( pixels );
+		write( cell, raw );
+	}
+	
+	protected byte[] pack( final byte[] raw )
+	{
+		if ( compressionLevel > 0 )
+		{
+			final Deflater deflater = new Deflater( compressionLevel );
+			deflater.setInput( raw );
+			deflater.finish();
+			final byte[] buffer = new byte[ raw.length - raw.length / 8 ];
+			int n = 0;
+			while ( !deflater.finished() && n < buffer.length )
+				n += deflater.deflate( buffer, n, buffer.length - n );
+			final boolean finished = deflater.finished();
+			deflater.end();
+			if ( finished )
+			{
+				final byte[] block = new byte[ n + 1 ];
+				block[ 0 ] = ChunkedVolume.DEFLATE;
+				System.arraycopy( buffer, 0, block, 1, n );
+				return block;
+			}
+		}
+		final byte[] block = new byte[ raw.length + 1 ];
+		block[ 0 ] = ChunkedVolume.RAW;
+		System.arraycopy( raw, 0, block, 1, raw.length );
+		return block;
+	}
+	
+	/**
+	 * Write the header and the index and close the file.
+	 * 
+	 * @throws IOException
+	 */
+	synchronized public void close() throws IOException
+	{
+		final ByteBuffer header = ByteBuffer.allocate( ( int )( dataOffset ) );
+		header.putInt( 0, ChunkedVolume.MAGIC );
+		header.putInt( 4, ChunkedVolume.VERSION );
+		for ( int d = 0; d < 3; ++d )
+		{
+			header.putInt( 8 + 4 * d, blockDimensions[ d ] );
+			header.putLong( 24 + 8 * d, gridDimensions[ d ] );
+		}
+		header.putLong( 48, dataOffset );
+		for ( int i = 0; i < offsets.length; ++i )
+		{
+			final int record = ChunkedVolume.headerBytes + i * ChunkedVolume.recordBytes;
+			header.putLong( record, offsets[ i ] );
+			header.putInt( record + 8, lengths[ i ] );
+		}
+		long position = 0;
+		while ( header.hasRemaining() )
+			position += channel.write( header, position );
+		channel.force( true );
+		randomAccessFile.close();
+	}
+}
@@ -17,18 +17,19 @@
 package net.imglib2.remote.openconnectome;
 
 
-import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.URL;
-import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
+import java.util.Arrays;
 
 import net.imglib2.AbstractLocalizable;
 import net.imglib2.Localizable;
 import net.imglib2.RandomAccess;
 import net.imglib2.remote.AbstractRemoteRandomAccessibleInterval;
 import net.imglib2.remote.Cache;
+import net.imglib2.remote.DiskCache;
+import net.imglib2.remote.RateLimiter;
+import net.imglib2.remote.SharedTileStore;
+import net.imglib2.remote.TileSource;
 import net.imglib2.type.numeric.RealType;
 
 /**
@@ -91,6 +92,12 @@ abstract public class AbstractOpenConnectomeRandomAccessibleInterval<
 			final long value = ( z * height + y ) * width + x;
 			return ( int )( value ^ ( value >>> 32 ) );
 		}
+		
+		@Override
+		public String toString()
+		{
+			return x + " " + y + " " + z;
+		}
 	}
 	
 	abstract public class AbstractOpenConnectomeRandomAccess extends AbstractLocalizable implements RandomAccess< T >
@@ -566,11 +573,20 @@ abstract public class AbstractOpenConnectomeRandomAccessibleInterval<
 		}
 	}
 	
+	/* unpacked cells shared by all sources of a dataset and level unless they use their own store */
+	final static public SharedTileStore< byte[] > sharedCells = new SharedTileStore< byte[] >();
+	
 	final protected String baseUrl;
 	final protected long height, width, depth, minZ;
 	final protected int cellWidth, cellHeight, cellDepth, level;
 	protected long i;
 	
+	/* store of unpacked cells shared with other sources, null if cells are not shared */
+	protected SharedTileStore< byte[] > sharedStore = sharedCells;
+	
+	/* the backend that serves the cells */
+	protected TileSource< byte[] > tileSource;
+	
 	public AbstractOpenConnectomeRandomAccessibleInterval( final String url, final long width, final long height, final long depth, final int cellWidth, final int cellHeight, final int cellDepth, final long minZ, final int level )
 	{
 		super( new long[]{ width, height, depth } );
@@ -583,6 +599,7 @@ abstract public class AbstractOpenConnectomeRandomAccessibleInterval<
 		this.depth = ( long )Math.ceil( ( double )depth / cellDepth );
 		this.minZ = minZ;
 		this.level = level;
+		tileSource = new OpenConnectomeTileSource( url, cellWidth, cellHeight, cellDepth, minZ );
 	}
 	
 	public AbstractOpenConnectomeRandomAccessibleInterval( final String url, final long width, final long height, final long depth, final long minZ, final int level )
@@ -601,53 +618,115 @@ abstract public class AbstractOpenConnectomeRandomAccessibleInterval<
 		return 3;
 	}
 	
-	protected void fetchPixels3( final byte[] bytes, final long x, final long y, final long z )
+	public int getCellWidth()
+	{
+		return cellWidth;
+	}
+	
+	public int getCellHeight()
+	{
+		return cellHeight;
+	}
+	
+	public int getCellDepth()
+	{
+		return cellDepth;
+	}
+	
+	public SharedTileStore< byte[] > getSharedStore()
+	{
+		return sharedStore;
+	}
+	
+	/**
+	 * Share unpacked cells with all other sources of the same dataset and
+	 * level that use the same {@link SharedTileStore}, e.g. a blocking source
+	 * for analysis and a volatile source for display.  Each cell is then
+	 * loaded once and kept once.  By default, all sources share
+	 * {@link #sharedCells}.  Sources that keep their cells off-heap or in a
+	 * {@link MappedCubeStore} do not share them.  Set before accessing
+	 * pixels.
+	 * 
+	 * @param sharedStore null to load and keep cells independently
+	 */
+	public void setSharedStore( final SharedTileStore< byte[] > sharedStore )
 	{
-		final long x0 = cellWidth * x;
-		final long y0 = cellHeight * y;
-		final long z0 = cellDepth * z + minZ;
-			
-		final StringBuffer url = new StringBuffer( baseUrl );
-		url.append( level );
-		url.append( "/" );
-		url.append( x0 );
-		url.append( "," );
-		url.append( x0 + cellWidth );
-		url.append( "/" );
-		url.append( y0 );
-		url.append( "," );
-		url.append( y0 + cellHeight );
-		url.append( "/" );
-		url.append( z0 );
-		url.append( "," );
-		url.append( z0 + cellDepth );
-		url.append( "/" );
+		this.sharedStore = sharedStore;
+	}
+	
+	public TileSource< byte[] > getTileSource()
+	{
+		return tileSource;
+	}
+	
+	/**
+	 * Read cells from another backend, e.g. a local mirror of the dataset.
+	 * Its cells must have the cell size of this interval.  Set before
+	 * accessing pixels.
+	 * 
+	 * @param tileSource
+	 */
+	public void setTileSource( final TileSource< byte[] > tileSource )
+	{
+		this.tileSource = tileSource;
+	}
+	
+	/**
+	 * The cell of key in the {@link TileSource}.
+	 */
+	protected long[] cell( final Key key )
+	{
+		return new long[]{ key.x, key.y, key.z };
+	}
+	
+	/**
+	 * Name of the cell at key in the {@link DiskCache} and
+	 * {@link SharedTileStore}.
+	 */
+	protected String tileName( final Key key )
+	{
+		return tileSource.tileName( level, cell( key ) );
+	}
+	
+	/**
+	 * Load and unpack a cell into bytes.  Cells that failed recently are not
+	 * requested again before their backoff is over, see {@link #failures}.
+	 * 
+	 * @return true if the cell was loaded successfully, otherwise bytes are 0
+	 */
+	protected boolean fetchPixels3( final byte[] bytes, final long x, final long y, final long z )
+	{
+		final Key key = new Key( x, y, z );
+		if ( !failures.mayLoad( key ) )
+			return false;
 		
+		final TileSource< byte[] > tileSource = this.tileSource;
+		final long[] cell = new long[]{ x, y, z };
+		final byte[] zippedBytes;
 		try
 		{
-			final URL file = new URL( url.toString() );
-			final InputStream in = file.openStream();
-			final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-			final byte[] chunk = new byte[ 4096 ];
-			int l;
-			for ( l = in.read( chunk ); l > 0; l = in.read( chunk ) )
-			    byteStream.write( chunk, 0, l );
-
-			final byte[] zippedBytes = byteStream.toByteArray();
-			final Inflater inflater = new Inflater();
-			inflater.setInput( zippedBytes );
-			inflater.inflate( bytes );
-			inflater.end();
-			byteStream.close();
+			zippedBytes = fetchBytes( diskCache, tileSource, level, cell, RateLimiter.VISIBLE );
 		}
 		catch (final IOException e)
 		{
-			System.out.println( "failed loading x=" + x + " y=" + y + " z=" + z + " url(" + url.toString() + ")" );
+			System.out.println( "failed loading x=" + x + " y=" + y + " z=" + z + " url(" + tileSource.url( level, cell ) + ")" );
+			failures.failed( key, e instanceof FileNotFoundException );
+			Arrays.fill( bytes, ( byte )0 );
+			return false;
+		}
+		try
+		{
+			tileSource.decode( zippedBytes, bytes );
+			failures.succeeded( key );
+			return true;
 		}
-		catch( final DataFormatException e )
+		catch( final IOException e )
 		{
-			System.out.println( "failed unpacking x=" + x + " y=" + y + " z=" + z + " url(" + url.toString() + ")" );
+			System.out.println( "failed unpacking x=" + x + " y=" + y + " z=" + z + " url(" + tileSource.url( level, cell ) + ")" );
+			failures.failed( key, false );
 		}
+		Arrays.fill( bytes, ( byte )0 );
+		return false;
 	}
 		
 	abstract protected E fetchPixels2( final long x, final long y, final long z );
@@ -0,0 +1,338 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote.openconnectome;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * <p>A persistent store for decompressed cubes in a memory-mapped file.
+ * The file consists of a header, an index with one record per slot, and
+ * a fixed number of fixed-size slots, each holding one cube.  Cubes are
+ * served as {@link ByteBuffer} views into the mapping, i.e. without
+ * copying them to the Java heap, and survive restarts.</p>
+ *
+ * <p>When all slots are taken, slots are reused round robin.  A slot is
+ * not reused while it is pinned, i.e. while a view returned by
+ * {@link #get(long, long, long)} or {@link #put(long, long, long, byte[])}
+ * has not been {@link #release(int) released}.  Typically, a cache entry
+ * holds the view and releases its slot when it is finalized.</p>
+ *
+ * <p>Each store holds the cubes of one dataset and level, named by an
+ * identity string in the header, e.g. what
+ * {@link OpenConnectomeRandomAccessibleInterval#getCubeStoreIdentity()}
+ * returns.  A store whose file has a different identity, cube size or slot
+ * count is cleared when it is opened.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class MappedCubeStore
+{
+	final static protected int MAGIC = 0x4f43434e;
+	final static protected int headerBytes = 1024;
+	final static protected int maxIdentityBytes = headerBytes - 20;
+	final static protected int recordBytes = 32;
+	final static protected int maxSegmentBytes = 1 << 30;
+	
+	final static protected int EMPTY = 0;
+	final static protected int VALID = 1;
+	
+	static protected class Cell
+	{
+		final public long x, y, z;
+		
+		public Cell( final long x, final long y, final long z )
+		{
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+		
+		@Override
+		public boolean equals( final Object other )
+		{
+			if ( this == other )
+				return true;
+			if ( !( other instanceof Cell ) )
+				return false;
+			
+			final Cell that = ( Cell )other;
+			return
+					( this.x == that.x ) &&
+					( this.y == that.y ) &&
+					( this.z == that.z );
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			final long value = ( z * 31 + y ) * 31 + x;
+			return ( int )( value ^ ( value >>> 32 ) );
+		}
+	}
+	
+	final protected File file;
+	final protected String identity;
+	final protected int cellBytes;
+	final protected int numSlots;
+	final protected int slotsPerSegment;
+	final protected long dataOffset;
+	
+	final protected RandomAccessFile randomAccessFile;
+	final protected MappedByteBuffer index;
+	final protected MappedByteBuffer[] segments;
+	
+	final protected HashMap< Cell, Integer > slots = new HashMap< Cell, Integer >();
+	final protected Cell[] cells;
+	final protected int[] pins;
+	protected int clock;
+	
+	/**
+	 * Open or create a store.
+	 *
+	 * @param file
+	 * @param identity the dataset and level of the cubes, at most 1004
+	 * 		bytes in UTF-8
+	 * @param cellBytes size of a cube in bytes
+	 * @param numSlots maximum number of cubes in the store
+	 * @throws IOException
+	 */
+	public MappedCubeStore( final File file, final String identity, final int cellBytes, final int numSlots ) throws IOException
+	{
+		final byte[] identityBytes = identity.getBytes( Charset.forName( "UTF-8" ) );
+		if ( identityBytes.length > maxIdentityBytes )
+			throw new IllegalArgumentException( "identity must have at most " + maxIdentityBytes + " bytes" );
+		
+		this.file = file;
+		this.identity = identity;
+		this.cellBytes = cellBytes;
+		this.numSlots = numSlots;
+		slotsPerSegment = Math.max( 1, maxSegmentBytes / cellBytes );
+		
+		/* page aligned data */
+		final long indexBytes = headerBytes + ( long )recordBytes * numSlots;
+		dataOffset = ( indexBytes + 4095 ) / 4096 * 4096;
+		
+		final File dir = file.getAbsoluteFile().getParentFile();
+		if ( dir != null )
+			dir.mkdirs();
+		
+		randomAccessFile = new RandomAccessFile( file, "rw" );
+		final FileChannel channel = randomAccessFile.getChannel();
+		index = channel.map( FileChannel.MapMode.READ_WRITE, 0, indexBytes );
+		
+		final int numSegments = ( numSlots + slotsPerSegment - 1 ) / slotsPerSegment;
+		segments = new MappedByteBuffer[ numSegments ];
+		for ( int i = 0; i < numSegments; ++i )
+		{
+			final int n = Math.min( slotsPerSegment, numSlots - i * slotsPerSegment );
+			segments[ i ] = channel.map(
+					FileChannel.MapMode.READ_WRITE,
+					dataOffset + ( long )i * slotsPerSegment * cellBytes,
+					( long )n * cellBytes );
+		}
+		
+		cells = new Cell[ numSlots ];
+		pins = new int[ numSlots ];
+		
+		if (
+				index.getInt( 0 ) == MAGIC &&
+				index.getInt( 4 ) == cellBytes &&
+				index.getInt( 8 ) == numSlots &&
+				Arrays.equals( readIdentity(), identityBytes ) )
+		{
+			clock = index.getInt( 12 );
+			for ( int slot = 0; slot < numSlots; ++slot )
+			{
+				final int offset = headerBytes + slot * recordBytes;
+				if ( index.getInt( offset + 24 ) == VALID )
+				{
+					final Cell cell = new Cell( index.getLong( offset ), index.getLong( offset + 8 ), index.getLong( offset + 16 ) );
+					cells[ slot ] = cell;
+					slots.put( cell, slot );
+				}
+			}
+		}
+		else
+		{
+			for ( int slot = 0; slot < numSlots; ++slot )
+				index.putInt( headerBytes + slot * recordBytes + 24, EMPTY );
+			clock = 0;
+			index.putInt( 12, clock );
+			index.putInt( 16, identityBytes.length );
+			final ByteBuffer identityBuffer = index.duplicate();
+			identityBuffer.position( 20 );
+			identityBuffer.put( identityBytes );
+			index.putInt( 8, numSlots );
+			index.putInt( 4, cellBytes );
+			index.putInt( 0, MAGIC );
+		}
+	}
+	
+	/**
+	 * @return the identity bytes in the header, null if there are none
+	 */
+	protected byte[] readIdentity()
+	{
+		final int n = index.getInt( 16 );
+		if ( n < 0 || n > maxIdentityBytes )
+			return null;
+		final byte[] bytes = new byte[ n ];
+		final ByteBuffer identityBuffer = index.duplicate();
+		identityBuffer.position( 20 );
+		identityBuffer.get( bytes );
+		return bytes;
+	}
+	
+	public String getIdentity()
+	{
+		return identity;
+	}
+	
+	public int getCellBytes()
+	{
+		return cellBytes;
+	}
+	
+	public int getNumSlots()
+	{
+		return numSlots;
+	}
+	
+	/**
+	 * A view of the slot, positioned at 0 with limit and capacity cellBytes.
+	 */
+	protected ByteBuffer view( final int slot )
+	{
+		final ByteBuffer segment = segments[ slot / slotsPerSegment ].duplicate();
+		final int offset = ( slot % slotsPerSegment ) * cellBytes;
+		segment.limit( offset + cellBytes );
+		segment.position( offset );
+		return segment.slice();
+	}
+	
+	/**
+	 * Find the slot of a cube and pin it.
+	 *
+	 * @return the slot or -1 if the cube is not stored
+	 */
+	synchronized public int get( final long x, final long y, final long z )
+	{
+		final Integer slot = slots.get( new Cell( x, y, z ) );
+		if ( slot == null )
+			return -1;
+		++pins[ slot ];
+		return slot;
+	}
+	
+	/**
+	 * Copy a cube into a free or the least recently filled unpinned slot
+	 * and pin it.
+	 *
+	 * @return the slot or -1 if all slots are pinned
+	 */
+	synchronized public int put( final long x, final long y, final long z, final byte[] bytes )
+	{
+		final Cell cell = new Cell( x, y, z );
+		final Integer existing = slots.get( cell );
+		if ( existing != null )
+		{
+			++pins[ existing ];
+			return existing;
+		}
+		
+		int slot = -1;
+		for ( int i = 0; i < numSlots && slot < 0; ++i )
+		{
+			if ( pins[ clock ] == 0 )
+				slot = clock;
+			clock = ( clock + 1 ) % numSlots;
+		}
+		if ( slot < 0 )
+			return -1;
+		
+		final int offset = headerBytes + slot * recordBytes;
+		if ( cells[ slot ] != null )
+			slots.remove( cells[ slot ] );
+		
+		/* invalidate, write, validate such that a crash leaves no garbage cubes */
+		index.putInt( offset + 24, EMPTY );
+		view( slot ).put( bytes, 0, cellBytes );
+		index.putLong( offset, x );
+		index.putLong( offset + 8, y );
+		index.putLong( offset + 16, z );
+		index.putInt( offset + 24, VALID );
+		index.putInt( 12, clock );
+		
+		cells[ slot ] = cell;
+		slots.put( cell, slot );
+		++pins[ slot ];
+		return slot;
+	}
+	
+	/**
+	 * @return a view of a slot that was pinned by {@link #get(long, long, long)}
+	 * 		or {@link #put(long, long, long, byte[])}
+	 */
+	public ByteBuffer getView( final int slot )
+	{
+		return view( slot );
+	}
+	
+	/**
+	 * Unpin a slot such that it can be reused.
+	 */
+	synchronized public void release( final int slot )
+	{
+		if ( pins[ slot ] > 0 )
+			--pins[ slot ];
+	}
+	
+	/**
+	 * Write all changes to disk.
+	 */
+	synchronized public void force()
+	{
+		index.force();
+		for ( final MappedByteBuffer segment : segments )
+			segment.force();
+	}
+	
+	/**
+	 * Write all changes to disk and close the file.  The mapping remains
+	 * valid until it is garbage collected.
+	 */
+	synchronized public void close()
+	{
+		force();
+		try
+		{
+			randomAccessFile.close();
+		}
+		catch ( final IOException e )
+		{
+			System.out.println( "failed closing " + file );
+		}
+	}
+}
@@ -16,8 +16,12 @@
  */
 package net.imglib2.remote.openconnectome;
 
+import java.nio.ByteBuffer;
+
 import net.imglib2.Interval;
+import net.imglib2.remote.ArrayPool;
 import net.imglib2.remote.Cache;
+import net.imglib2.remote.SharedTileStore;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 
 /**
@@ -33,6 +37,15 @@ import net.imglib2.type.numeric.integer.UnsignedByteType;
  * 0-coordinate in <em>z</em> and should point to the first slice of the
  * dataset.</p> 
  * 
+ * <p>Optionally, loaded cubes are kept in a {@link MappedCubeStore} and
+ * read directly from the mapped file on later requests, even after a
+ * restart.</p>
+ * 
+ * <p>Otherwise, unpacked cubes are shared with other sources of the same
+ * dataset and level through a {@link SharedTileStore}, e.g. with a
+ * {@link VolatileOpenConnectomeRandomAccessibleInterval} that displays the
+ * data that is analyzed here.</p>
+ * 
  * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
  */
 public class OpenConnectomeRandomAccessibleInterval extends
@@ -42,18 +55,58 @@ public class OpenConnectomeRandomAccessibleInterval extends
 		AbstractOpenConnectomeRandomAccessibleInterval< UnsignedByteType, Entry >.Key,
 		Entry >
 	{
-		final public byte[] data;
+		final public ByteBuffer data;
+		
+		/* slot in the cube store or -1 if data is on the heap */
+		final protected int slot;
+		
+		/* store that data is shared through, null if data is owned by this entry */
+		final protected SharedTileStore< byte[] > sharedStore;
 		
-		public Entry( final Key key, final byte[] data )
+		protected Entry( final Key key, final ByteBuffer data, final int slot, final SharedTileStore< byte[] > sharedStore )
 		{
 			super( key, cache );
 			this.data = data;
+			this.slot = slot;
+			this.sharedStore = sharedStore;
+		}
+		
+		public Entry( final Key key, final ByteBuffer data, final int slot )
+		{
+			this( key, data, slot, null );
+		}
+		
+		public Entry( final Key key, final ByteBuffer data )
+		{
+			this( key, data, -1 );
+		}
+		
+		/**
+		 * @param key
+		 * @param data holds one reference from sharedStore that is released
+		 * 		when the entry is finalized
+		 * @param sharedStore
+		 */
+		public Entry( final Key key, final ByteBuffer data, final SharedTileStore< byte[] > sharedStore )
+		{
+			this( key, data, -1, sharedStore );
+		}
+		
+		@Override
+		public void finalize()
+		{
+			if ( slot >= 0 )
+				cubeStore.release( slot );
+			else if ( sharedStore != null && sharedStore.release( data.array() ) )
+				ArrayPool.byteArrays( data.capacity() ).recycle( data.array() );
+			super.finalize();
 		}
 	}
 	
 	public class OpenConnectomeRandomAccess extends AbstractOpenConnectomeRandomAccess
 	{
-		protected byte[] pixels;
+		/* held such that its slot or shared array is not reused while this RandomAccess reads it */
+		protected Entry entry;
 		
 		public OpenConnectomeRandomAccess()
 		{
@@ -63,13 +116,13 @@ public class OpenConnectomeRandomAccessibleInterval extends
 		public OpenConnectomeRandomAccess( final OpenConnectomeRandomAccess template )
 		{
 			super( template );
-			pixels = template.pixels;
+			entry = template.entry;
 		}
 		
 		@Override
 		public UnsignedByteType get()
 		{
-			t.set( 0xff & pixels[ ( zMod * cellHeight + yMod ) * cellWidth + xMod ] );
+			t.set( 0xff & entry.data.get( ( zMod * cellHeight + yMod ) * cellWidth + xMod ) );
 			return t;
 		}
 
@@ -88,11 +141,15 @@ public class OpenConnectomeRandomAccessibleInterval extends
 		@Override
 		protected void fetchPixels()
 		{
-			final Entry entry = OpenConnectomeRandomAccessibleInterval.this.fetchPixels( xDiv, yDiv, zDiv );
-			pixels = entry.data;
+			entry = OpenConnectomeRandomAccessibleInterval.this.fetchPixels( xDiv, yDiv, zDiv );
 		}
 	}
 	
+	protected MappedCubeStore cubeStore = null;
+	
+	/* milliseconds to wait for a shared cell that another source is loading */
+	protected long sharedTimeout = 10000;
+	
 	public OpenConnectomeRandomAccessibleInterval( final String url, final long width, final long height, final long depth, final int cellWidth, final int cellHeight, final int cellDepth, final long minZ, final int level )
 	{
 		super( url, width, height, depth, cellWidth, cellHeight, cellDepth, minZ, level );
@@ -108,6 +165,53 @@ public class OpenConnectomeRandomAccessibleInterval extends
 		this( url, width, height, depth, 0, level );
 	}
 	
+	public MappedCubeStore getCubeStore()
+	{
+		return cubeStore;
+	}
+	
+	/**
+	 * @return the identity of a {@link MappedCubeStore} for the cubes of this
+	 * 		interval, i.e. its dataset, level and cell size
+	 */
+	public String getCubeStoreIdentity()
+	{
+		return tileSource.getDataset() + "/" + level + "/" + cellWidth + "x" + cellHeight + "x" + cellDepth;
+	}
+	
+	/**
+	 * Keep cubes in a {@link MappedCubeStore} whose identity must be
+	 * {@link #getCubeStoreIdentity()} and whose cube size must match the
+	 * cell size of this interval.  Set before accessing pixels.
+	 * 
+	 * @param cubeStore null to keep cubes on the heap
+	 */
+	public void setCubeStore( final MappedCubeStore cubeStore )
+	{
+		if ( cubeStore != null && cubeStore.getCellBytes() != cellWidth * cellHeight * cellDepth )
+			throw new IllegalArgumentException( "cube store has cubes of " + cubeStore.getCellBytes() + " bytes but cells have " + cellWidth * cellHeight * cellDepth + " bytes" );
+		if ( cubeStore != null && !cubeStore.getIdentity().equals( getCubeStoreIdentity() ) )
+			throw new IllegalArgumentException( "cube store holds " + cubeStore.getIdentity() + " but this interval is " + getCubeStoreIdentity() );
+		this.cubeStore = cubeStore;
+	}
+	
+	public long getSharedTimeout()
+	{
+		return sharedTimeout;
+	}
+	
+	/**
+	 * Wait at most sharedTimeout milliseconds for a cell that another source
+	 * is loading into the {@link SharedTileStore}, then load it here without
+	 * sharing it.
+	 * 
+	 * @param sharedTimeout
+	 */
+	public void setSharedTimeout( final long sharedTimeout )
+	{
+		this.sharedTimeout = sharedTimeout;
+	}
+	
 	@Override
 	public OpenConnectomeRandomAccess randomAccess()
 	{
@@ -123,20 +227,157 @@ public class OpenConnectomeRandomAccessibleInterval extends
 	@Override
 	protected Entry fetchPixels2( final long x, final long y, final long z )
 	{
-		final Entry entry;
-		final byte[] bytes;
+		final Key key = new Key( x, y, z );
+		final MappedCubeStore store = cubeStore;
+		if ( store == null )
+		{
+			final SharedTileStore< byte[] > sharedStore = this.sharedStore;
+			if ( sharedStore != null )
+				return fetchShared( sharedStore, key );
+			
+			final Entry entry;
+			final byte[] bytes;
+			synchronized ( cache )
+			{
+				final Entry cachedEntry = cache.get( key );
+				if ( cachedEntry != null )
+					return cachedEntry;
+				
+				bytes = new byte[ cellWidth * cellHeight * cellDepth ];
+				entry = new Entry( key, ByteBuffer.wrap( bytes ) );
+				cache.putSoft( key, entry );
+			}
+			/* keep the empty cell only if it is missing, otherwise it is retried after the backoff */
+			if ( !fetchPixels3( bytes, x, y, z ) && !failures.isMissing( key ) )
+			{
+				synchronized ( cache )
+				{
+					cache.remove( key );
+				}
+			}
+			return entry;
+		}
+		
+		synchronized ( cache )
+		{
+			final Entry cachedEntry = cache.get( key );
+			if ( cachedEntry != null )
+				return cachedEntry;
+			
+			final int slot = store.get( x, y, z );
+			if ( slot >= 0 )
+			{
+				final Entry entry = new Entry( key, store.getView( slot ), slot );
+				cache.putSoft( key, entry );
+				return entry;
+			}
+		}
+		
+		/* load without holding the cache, concurrent loads of the same cube are resolved below */
+		final byte[] bytes = new byte[ cellWidth * cellHeight * cellDepth ];
+		final boolean loaded = fetchPixels3( bytes, x, y, z );
+		final int slot = loaded ? store.put( x, y, z, bytes ) : -1;
+		
 		synchronized ( cache )
 		{
-			final Key key = new Key( x, y, z );
 			final Entry cachedEntry = cache.get( key );
 			if ( cachedEntry != null )
+			{
+				if ( slot >= 0 )
+					store.release( slot );
 				return cachedEntry;
+			}
 			
+			final Entry entry = slot >= 0 ?
+					new Entry( key, store.getView( slot ), slot ) :
+					new Entry( key, ByteBuffer.wrap( bytes ) );
+			
+			/* keep the empty cell only if it is missing, otherwise it is retried after the backoff */
+			if ( loaded || failures.isMissing( key ) )
+				cache.putSoft( key, entry );
+			return entry;
+		}
+	}
+	
+	/**
+	 * Get a cell from the {@link SharedTileStore} or, if it is neither there
+	 * nor being loaded by another source, load it and put it there.  If
+	 * another source is loading it, wait for it at most
+	 * {@link #sharedTimeout} milliseconds.  If it fails or does not arrive
+	 * in time, load it without sharing it.
+	 */
+	protected Entry fetchShared( final SharedTileStore< byte[] > sharedStore, final Key key )
+	{
+		synchronized ( cache )
+		{
+			final Entry cachedEntry = cache.get( key );
+			if ( cachedEntry != null )
+				return cachedEntry;
+		}
+		
+		final String dataset = tileSource.getDataset();
+		final String tile = tileName( key );
+		final ArrayPool.ByteArrays arrayPool = ArrayPool.byteArrays( cellWidth * cellHeight * cellDepth );
+		byte[] bytes = null;
+		boolean shared = false;
+		boolean interrupted = false;
+		if ( sharedStore.claim( dataset, level, tile, null ) )
+		{
+			/* recycled by the source that releases the last reference */
+			bytes = arrayPool.get();
+			try
+			{
+				shared = fetchPixels3( bytes, key.x, key.y, key.z );
+			}
+			finally
+			{
+				/* settle the claim even if loading threw, waiters would wait for nothing otherwise */
+				if ( shared )
+					sharedStore.put( dataset, level, tile, bytes );
+				else
+					sharedStore.fail( dataset, level, tile, failures.isMissing( key ) );
+			}
+		}
+		else
+		{
+			try
+			{
+				bytes = sharedStore.await( dataset, level, tile, sharedTimeout );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+				interrupted = true;
+			}
+			shared = bytes != null;
+		}
+		
+		boolean loaded = shared;
+		if ( bytes == null )
+		{
 			bytes = new byte[ cellWidth * cellHeight * cellDepth ];
-			entry = new Entry( key, bytes );
-			cache.putSoft( key, entry );
+			if ( !interrupted )
+				loaded = fetchPixels3( bytes, key.x, key.y, key.z );
+		}
+		
+		final Entry cachedEntry;
+		synchronized ( cache )
+		{
+			cachedEntry = cache.get( key );
+			if ( cachedEntry == null )
+			{
+				final Entry entry = new Entry( key, ByteBuffer.wrap( bytes ), shared ? sharedStore : null );
+				
+				/* keep the empty cell only if it is missing, otherwise it is retried after the backoff */
+				if ( loaded || failures.isMissing( key ) )
+					cache.putSoft( key, entry );
+				return entry;
+			}
 		}
-		fetchPixels3( bytes, x, y, z );
-		return entry;
+		
+		/* cached by another thread in the meantime */
+		if ( shared && sharedStore.release( bytes ) )
+			arrayPool.recycle( bytes );
+		return cachedEntry;
 	}
 }
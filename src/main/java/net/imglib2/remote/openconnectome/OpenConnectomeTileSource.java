@@ -0,0 +1,123 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote.openconnectome;
+
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import net.imglib2.remote.AbstractRemoteRandomAccessibleInterval;
+import net.imglib2.remote.TileSource;
+
+/**
+ * Cubes served by the Open Connectome Volume Cutout Service as zipped raw
+ * bytes at <code>url/zip/level/x0,x1/y0,y1/z0,z1/</code>.  The cell of a
+ * cube is its (x, y, z) index in the grid of cubes, z is offset by minZ.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class OpenConnectomeTileSource implements TileSource< byte[] >
+{
+	final protected String baseUrl;
+	final protected int cellWidth, cellHeight, cellDepth;
+	final protected long minZ;
+	
+	/**
+	 * @param url the dataset, e.g. http://openconnecto.me/emca/kasthuri11
+	 * @param cellWidth
+	 * @param cellHeight
+	 * @param cellDepth
+	 * @param minZ
+	 */
+	public OpenConnectomeTileSource( final String url, final int cellWidth, final int cellHeight, final int cellDepth, final long minZ )
+	{
+		this.baseUrl = url + "/zip/";
+		this.cellWidth = cellWidth;
+		this.cellHeight = cellHeight;
+		this.cellDepth = cellDepth;
+		this.minZ = minZ;
+	}
+	
+	@Override
+	public String getDataset()
+	{
+		return baseUrl;
+	}
+	
+	@Override
+	public String tileName( final long level, final long[] cell )
+	{
+		final long x0 = cellWidth * cell[ 0 ];
+		final long y0 = cellHeight * cell[ 1 ];
+		final long z0 = cellDepth * cell[ 2 ] + minZ;
+		return new StringBuffer().
+				append( x0 ).append( "," ).append( x0 + cellWidth ).append( "_" ).
+				append( y0 ).append( "," ).append( y0 + cellHeight ).append( "_" ).
+				append( z0 ).append( "," ).append( z0 + cellDepth ).
+				toString();
+	}
+	
+	@Override
+	public String url( final long level, final long[] cell )
+	{
+		final long x0 = cellWidth * cell[ 0 ];
+		final long y0 = cellHeight * cell[ 1 ];
+		final long z0 = cellDepth * cell[ 2 ] + minZ;
+		
+		final StringBuffer url = new StringBuffer( baseUrl );
+		url.append( level );
+		url.append( "/" );
+		url.append( x0 );
+		url.append( "," );
+		url.append( x0 + cellWidth );
+		url.append( "/" );
+		url.append( y0 );
+		url.append( "," );
+		url.append( y0 + cellHeight );
+		url.append( "/" );
+		url.append( z0 );
+		url.append( "," );
+		url.append( z0 + cellDepth );
+		url.append( "/" );
+		return url.toString();
+	}
+	
+	@Override
+	public byte[] read( final long level, final long[] cell, final int priority ) throws IOException
+	{
+		return AbstractRemoteRandomAccessibleInterval.readBytes( url( level, cell ), priority );
+	}
+	
+	@Override
+	public void decode( final byte[] bytes, final byte[] pixels ) throws IOException
+	{
+		final Inflater inflater = new Inflater();
+		try
+		{
+			inflater.setInput( bytes );
+			inflater.inflate( pixels );
+		}
+		catch ( final DataFormatException e )
+		{
+			throw new IOException( "failed unpacking: " + e.getMessage() );
+		}
+		finally
+		{
+			inflater.end();
+		}
+	}
+}
@@ -16,20 +16,32 @@
  */
 package net.imglib2.remote.openconnectome;
 
-import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStream;
 import java.lang.ref.Reference;
 import java.lang.ref.WeakReference;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.NoSuchElementException;
-import java.util.zip.DataFormatException;
-import java.util.zip.Inflater;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 import net.imglib2.Interval;
 import net.imglib2.display.VolatileRealType;
+import net.imglib2.remote.ArrayPool;
 import net.imglib2.remote.Cache;
+import net.imglib2.remote.CachePolicy;
+import net.imglib2.remote.CompressedTileCache;
+import net.imglib2.remote.DiskCache;
+import net.imglib2.remote.Prefetchable;
+import net.imglib2.remote.RateLimiter;
+import net.imglib2.remote.SharedTileStore;
+import net.imglib2.remote.SlabAllocator;
+import net.imglib2.remote.TileLoader;
+import net.imglib2.remote.TileSource;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 
 /**
@@ -45,27 +57,147 @@ import net.imglib2.type.numeric.integer.UnsignedByteType;
  * 0-coordinate in <em>z</em> and should point to the first slice of the
  * dataset.</p> 
  * 
+ * <p>Unless cells are kept off-heap, unpacked cells are shared with other
+ * sources of the same dataset and level through a {@link SharedTileStore},
+ * e.g. with an {@link OpenConnectomeRandomAccessibleInterval} that analyzes
+ * the data that is displayed here.</p>
+ * 
  * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
  */
 public class VolatileOpenConnectomeRandomAccessibleInterval extends
 		AbstractOpenConnectomeRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, VolatileOpenConnectomeRandomAccessibleInterval.Entry >
+		implements Prefetchable
 {
 	public class Entry extends Cache.Entry<
 			AbstractOpenConnectomeRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, Entry >.Key,
 			Entry >
 	{
-		public boolean valid;
-		final public byte[] data;
+		public volatile boolean valid;
+		
+		/* released when the entry becomes valid */
+		final protected CountDownLatch loaded = new CountDownLatch( 1 );
+		
+		/* set once, in the constructor or, for shared cells, when they are loaded */
+		protected volatile ByteBuffer data;
+		
+		/* allocator of data if it is an off-heap block, null if data is on the heap */
+		final protected SlabAllocator blockAllocator;
+		
+		/* store that data is shared through, null if data is owned by this entry */
+		final protected SharedTileStore< byte[] > sharedStore;
+		
+		/* true if the block of data was returned to the allocator */
+		protected boolean released = false;
+		
+		/* the cell as served, i.e. zipped, kept for demotion */
+		protected volatile byte[] served = null;
 		
-		public Entry( final Key key, final byte[] data, final boolean valid )
+		@Override
+		public void finalize()
+		{
+			if ( blockAllocator != null )
+				release();
+			else if ( sharedStore == null )
+				arrayPool.recycle( data.array() );
+			else if ( data != emptyCell && sharedStore.release( data.array() ) )
+				arrayPool.recycle( data.array() );
+			super.finalize();
+		}
+		
+		/**
+		 * @param key
+		 * @param block off-heap block from {@link #allocator} for the pixels,
+		 * 		null to store them on the heap, shared if a
+		 * 		{@link SharedTileStore} is set
+		 * @param valid
+		 */
+		public Entry( final Key key, final ByteBuffer block, final boolean valid )
 		{
 			super( key, cache );
-			this.data = data;
+			if ( block == null )
+			{
+				blockAllocator = null;
+				sharedStore = VolatileOpenConnectomeRandomAccessibleInterval.this.sharedStore;
+				/* shared cells are set when they are loaded, until then the entry shows the empty cell */
+				data = sharedStore == null ? ByteBuffer.wrap( arrayPool.get() ) : emptyCell;
+			}
+			else
+			{
+				blockAllocator = allocator;
+				sharedStore = null;
+				data = block;
+			}
 			this.valid = valid;
+			if ( valid )
+				loaded.countDown();
 		}
 		
+		/**
+		 * Return the off-heap block to the allocator.  The entry is invalid
+		 * after and must not be read anymore.
+		 */
+		synchronized protected void release()
+		{
+			if ( blockAllocator == null || released )
+				return;
+			valid = false;
+			released = true;
+			blockAllocator.free( data );
+		}
+		
+		/**
+		 * Show a shared cell that was loaded.  The entry holds the reference
+		 * to it from the {@link SharedTileStore} until it is finalized.
+		 * 
+		 * @param shared
+		 * @return false if the entry shows a shared cell already, then the
+		 * 		caller must release the reference
+		 */
+		synchronized protected boolean share( final byte[] shared )
+		{
+			if ( data != emptyCell )
+				return false;
+			data = ByteBuffer.wrap( shared );
+			return true;
+		}
+		
+		public ByteBuffer getData() { return data; }
+		
 		public boolean isValid() { return valid; }
-		public void setValid( final boolean valid ) { this.valid = valid; }
+		
+		public void setValid( final boolean valid )
+		{
+			this.valid = valid;
+			if ( valid )
+				loaded.countDown();
+		}
+		
+		/**
+		 * Wait until the entry is valid or the timeout is over.
+		 * 
+		 * @param timeoutMillis
+		 * @return true if the entry is valid
+		 * @throws InterruptedException
+		 */
+		public boolean await( final long timeoutMillis ) throws InterruptedException
+		{
+			return valid || loaded.await( timeoutMillis, TimeUnit.MILLISECONDS );
+		}
+		
+		/**
+		 * Set all pixels to 0, off-heap blocks are not cleared when they are
+		 * allocated.
+		 */
+		public void clear()
+		{
+			/* shared cells show the empty cell until they are loaded */
+			if ( sharedStore != null )
+				return;
+			final ByteBuffer pixels = data.duplicate();
+			pixels.clear();
+			while ( pixels.hasRemaining() )
+				pixels.put( ( byte )0 );
+		}
 	}
 	
 	protected class Fetcher extends Thread
@@ -77,16 +209,28 @@ public class VolatileOpenConnectomeRandomAccessibleInterval extends
 			{
 //				System.out.println( "Queue size: " + queue.size() );
 				Reference< Entry > ref;
+				Key prefetchKey = null;
+				final long retryWait;
 				synchronized ( cache )
 				{
+					retryWait = requeueRetries();
 					try { ref = queue.pop(); }
-					catch ( final NoSuchElementException e ) { ref = null; }
+					catch ( final NoSuchElementException e )
+					{
+						ref = null;
+						/* visible cells first, prefetch only when nothing else is pending */
+						if ( !prefetchQueue.isEmpty() )
+						{
+							prefetchKey = prefetchQueue.pop();
+							prefetchKeys.remove( prefetchKey );
+						}
+					}
 				}
-				if ( ref == null )
+				if ( ref == null && prefetchKey == null )
 				{
 					synchronized ( this )
 					{
-						try { wait(); }
+						try { wait( retryWait ); }
 						catch ( final InterruptedException e )
 						{
 							break;
@@ -95,79 +239,187 @@ public class VolatileOpenConnectomeRandomAccessibleInterval extends
 				}
 				else
 				{
-					final Entry entry;
+					/* allocate off-heap memory before locking the cache, an exhausted allocator evicts tiles one lock at a time */
+					final SlabAllocator allocator = VolatileOpenConnectomeRandomAccessibleInterval.this.allocator;
+					ByteBuffer block = prefetchKey == null ? null : allocateBlock();
+					Entry entry = null;
 					synchronized ( cache )
 					{
-						entry = ref.get();
-						if ( entry != null )
+						if ( ref != null )
 						{
-							/* replace WeakReferences by SoftReferences which promotes cache entries from third to second class citizens */
-							synchronized ( cache )
+							entry = ref.get();
+							if ( entry != null )
 							{
+								/* replace WeakReferences by SoftReferences which promotes cache entries from third to second class citizens */
 								cache.remove( entry.key );
 								cache.putSoft( entry.key, entry );
+								
+								/* failed recently, present it as empty if it is missing or try again when the backoff is over */
+								if ( failures.isMissing( entry.key ) )
+								{
+									entry.clear();
+									entry.setValid( true );
+									entry = null;
+								}
+								else if ( !failures.mayLoad( entry.key ) )
+								{
+									retries.add( new WeakReference< Entry >( entry ) );
+									entry = null;
+								}
 							}
 						}
+						else if ( cache.get( prefetchKey ) == null && failures.mayLoad( prefetchKey ) )
+						{
+							/* prefetched entries are nobody's working set yet, so they start as second class citizens */
+							entry = new Entry( prefetchKey, block, false );
+							cache.putSoft( prefetchKey, entry );
+							block = null;
+						}
 					}
+					if ( block != null )
+						allocator.free( block );
 					
 					if ( entry != null )
-					{	
-						final long x0 = cellWidth * entry.key.x;
-						final long y0 = cellHeight * entry.key.y;
-						final long z0 = cellDepth * entry.key.z + minZ;
-						
-						final StringBuffer url = new StringBuffer( baseUrl );
-						url.append( level );
-						url.append( "/" );
-						url.append( x0 );
-						url.append( "," );
-						url.append( x0 + cellWidth );
-						url.append( "/" );
-						url.append( y0 );
-						url.append( "," );
-						url.append( y0 + cellHeight );
-						url.append( "/" );
-						url.append( z0 );
-						url.append( "," );
-						url.append( z0 + cellDepth );
-						url.append( "/" );
-						
-						try
-						{
-//							System.out.println( url.toString() );
-							final URL file = new URL( url.toString() );
-							final InputStream in = file.openStream();
-							final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-							final byte[] chunk = new byte[ 4096 ];
-							int l;
-							for ( l = in.read( chunk ); l > 0; l = in.read( chunk ) )
-							    byteStream.write( chunk, 0, l );
+						load( entry, ref == null ? RateLimiter.PREFETCH : RateLimiter.VISIBLE );
+				}
+			}
+			synchronized ( cache )
+			{
+				queue.clear();
+				prefetchQueue.clear();
+				prefetchKeys.clear();
+			}
+		}
+		
+		/**
+		 * @param entry
+		 * @param priority {@link RateLimiter} priority of the request
+		 */
+		protected void load( final Entry entry, final int priority )
+		{
+			final TileSource< byte[] > tileSource = VolatileOpenConnectomeRandomAccessibleInterval.this.tileSource;
+			final long[] cell = cell( entry.key );
+			final String urlString = tileSource.url( level, cell );
+			final String dataset = tileSource.getDataset();
+			final String tile = tileSource.tileName( level, cell );
+			final DiskCache diskCache = VolatileOpenConnectomeRandomAccessibleInterval.this.diskCache;
+			final TileLoader asyncLoader = VolatileOpenConnectomeRandomAccessibleInterval.this.asyncLoader;
 			
-							final byte[] zippedBytes = byteStream.toByteArray();
-							final Inflater inflater = new Inflater();
-							inflater.setInput( zippedBytes );
-							inflater.inflate( entry.data );
-							entry.setValid( true );
-								
-							inflater.end();
-							byteStream.close();
-							
-							//System.out.println( "cached x=" + x + " y=" + y + " z=" + z + " url(" + url.toString() + ")" );
-						}
-						catch (final IOException e)
+			/* loaded or being loaded by another source, the listener completes the entry */
+			if ( entry.sharedStore != null && !entry.sharedStore.claim( dataset, level, tile, new SharedTileStore.Listener< byte[] >()
+				{
+					@Override
+					public void loaded( final byte[] data )
+					{
+						if ( !entry.share( data ) && entry.sharedStore.release( data ) )
+							arrayPool.recycle( data );
+						entry.setValid( true );
+						failures.succeeded( entry.key );
+					}
+					
+					@Override
+					public void failed( final boolean missing )
+					{
+						VolatileOpenConnectomeRandomAccessibleInterval.this.failed( entry, missing );
+					}
+				} ) )
+				return;
+			
+			/* demoted by the cache policy, held only in compressed form until now */
+			final CompressedTileCache< Key > compressedCache = VolatileOpenConnectomeRandomAccessibleInterval.this.compressedCache;
+			byte[] zippedBytes = compressedCache == null ? null : compressedCache.take( entry.key );
+			if ( zippedBytes == null && diskCache != null )
+				zippedBytes = diskCache.get( dataset, level, tile );
+			if ( zippedBytes == null && asyncLoader != null && urlString != null )
+			{
+				/* unpacked by the loader when it arrives, this thread goes on with the next cell */
+				try
+				{
+					asyncLoader.submit( urlString, priority, new TileLoader.Callback()
+					{
+						@Override
+						public void loaded( final byte[] bytes )
 						{
-							System.out.println( "failed loading x=" + entry.key.x + " y=" + entry.key.y + " z=" + entry.key.z + " url(" + url.toString() + ")" );
+							if ( diskCache != null )
+								diskCache.put( dataset, level, tile, bytes );
+							unpack( entry, bytes, urlString );
 						}
-						catch( final DataFormatException e )
+						
+						@Override
+						public void failed( final IOException e )
 						{
-							System.out.println( "failed unpacking x=" + entry.key.x + " y=" + entry.key.y + " z=" + entry.key.z + " url(" + url.toString() + ")" );
+							System.out.println( "failed loading x=" + entry.key.x + " y=" + entry.key.y + " z=" + entry.key.z + " url(" + urlString + ")" );
+							claimFailed( entry, e instanceof FileNotFoundException );
 						}
+					} );
+				}
+				catch ( final InterruptedException e )
+				{
+					claimFailed( entry, false );
+					interrupt();
+				}
+				return;
+			}
+			
+			if ( zippedBytes == null )
+			{
+				try
+				{
+//					System.out.println( urlString );
+					zippedBytes = fetchBytes( diskCache, tileSource, level, cell, priority );
+				}
+				catch (final IOException e)
+				{
+					System.out.println( "failed loading x=" + entry.key.x + " y=" + entry.key.y + " z=" + entry.key.z + " url(" + urlString + ")" );
+					claimFailed( entry, e instanceof FileNotFoundException );
+					return;
+				}
+			}
+			unpack( entry, zippedBytes, urlString );
+		}
+		
+		protected void unpack( final Entry entry, final byte[] zippedBytes, final String urlString )
+		{
+			try
+			{
+				final TileSource< byte[] > tileSource = VolatileOpenConnectomeRandomAccessibleInterval.this.tileSource;
+				byte[] shared = null;
+				if ( entry.sharedStore != null )
+				{
+					/* recycled by the source that releases the last reference */
+					shared = arrayPool.get();
+					try
+					{
+						tileSource.decode( zippedBytes, shared );
 					}
+					catch ( final IOException e )
+					{
+						arrayPool.recycle( shared );
+						throw e;
+					}
+					entry.share( shared );
 				}
+				else if ( entry.data.hasArray() )
+					tileSource.decode( zippedBytes, entry.data.array() );
+				else
+				{
+					final byte[] bytes = new byte[ cellWidth * cellHeight * cellDepth ];
+					tileSource.decode( zippedBytes, bytes );
+					entry.data.duplicate().put( bytes );
+				}
+				entry.served = zippedBytes;
+				entry.setValid( true );
+				failures.succeeded( entry.key );
+				
+				if ( shared != null )
+					entry.sharedStore.put( tileSource.getDataset(), level, tileName( entry.key ), shared );
+				
+				//System.out.println( "cached x=" + x + " y=" + y + " z=" + z + " url(" + url.toString() + ")" );
 			}
-			synchronized ( cache )
+			catch( final IOException e )
 			{
-				queue.clear();
+				System.out.println( "failed unpacking x=" + entry.key.x + " y=" + entry.key.y + " z=" + entry.key.z + " url(" + urlString + ")" );
+				claimFailed( entry, false );
 			}
 		}
 	}
@@ -176,21 +428,47 @@ public class VolatileOpenConnectomeRandomAccessibleInterval extends
 	{
 		protected Entry entry;
 		
-		public VolatileOpenConnectomeRandomAccess()
+		/* cells of the accessed region that are queued ahead of a blocking RandomAccess */
+		final protected long[] regionMin, regionMax;
+		
+		/* cells queued ahead, held until the next cells are queued such that they are not collected before they are loaded */
+		protected Entry[] ahead = new Entry[ 0 ];
+		
+		public VolatileOpenConnectomeRandomAccess( final Interval interval )
 		{
 			super( new VolatileRealType< UnsignedByteType >( new UnsignedByteType() ) );
+			regionMin = new long[]{ 0, 0, 0 };
+			regionMax = new long[]{ width - 1, height - 1, depth - 1 };
+			if ( interval != null )
+			{
+				final int[] cellSize = new int[]{ cellWidth, cellHeight, cellDepth };
+				for ( int d = 0; d < Math.min( 3, interval.numDimensions() ); ++d )
+				{
+					regionMin[ d ] = Math.max( 0, interval.min( d ) / cellSize[ d ] );
+					regionMax[ d ] = Math.min( regionMax[ d ], interval.max( d ) / cellSize[ d ] );
+				}
+			}
+		}
+		
+		public VolatileOpenConnectomeRandomAccess()
+		{
+			this( ( Interval )null );
 		}
 		
 		public VolatileOpenConnectomeRandomAccess( final VolatileOpenConnectomeRandomAccess template )
 		{
 			super( template );
+			regionMin = template.regionMin.clone();
+			regionMax = template.regionMax.clone();
 		}
 		
 		@Override
 		public VolatileRealType< UnsignedByteType > get()
 		{
-			t.get().set( 0xff & entry.data[ ( zMod * cellHeight + yMod ) * cellWidth + xMod ] );
-			t.setValid( entry.valid );
+			/* valid before data, a valid shared cell shows its loaded data */
+			final boolean valid = entry.valid;
+			t.get().set( 0xff & entry.data.get( ( zMod * cellHeight + yMod ) * cellWidth + xMod ) );
+			t.setValid( valid );
 			return t;
 		}
 
@@ -210,16 +488,92 @@ public class VolatileOpenConnectomeRandomAccessibleInterval extends
 		protected void fetchPixels()
 		{
 			entry = VolatileOpenConnectomeRandomAccessibleInterval.this.fetchPixels( xDiv, yDiv, zDiv );
+			
+			final long timeout = blockingTimeout;
+			if ( timeout > 0 && !entry.valid )
+			{
+				/* the region is not set yet when the super constructor fetches the first cell */
+				if ( regionMin != null )
+					queueAhead();
+				try
+				{
+					entry.await( timeout );
+				}
+				catch ( final InterruptedException e )
+				{
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+		
+		/**
+		 * Queue the next {@link #blockingLookAhead} cells of the region in
+		 * raster order behind the current cell, such that they load while
+		 * this RandomAccess waits for the current cell.
+		 */
+		protected void queueAhead()
+		{
+			final int n = blockingLookAhead;
+			if ( ahead.length != n )
+				ahead = new Entry[ n ];
+			long ax = xDiv, ay = yDiv, az = zDiv;
+			for ( int i = 0; i < n; ++i )
+			{
+				if ( ++ax > regionMax[ 0 ] )
+				{
+					ax = regionMin[ 0 ];
+					if ( ++ay > regionMax[ 1 ] )
+					{
+						ay = regionMin[ 1 ];
+						if ( ++az > regionMax[ 2 ] )
+						{
+							Arrays.fill( ahead, i, n, null );
+							break;
+						}
+					}
+				}
+				ahead[ i ] = fetchPixels2( ax, ay, az, true );
+			}
 		}
 	}
 	
 	final protected Fetcher fetcher;
+	
+	/* recycles the pixel arrays of collected entries that were on the heap */
+	final protected ArrayPool.ByteArrays arrayPool;
+	
+	/* pixels of shared entries that are not loaded yet or missing */
+	final protected ByteBuffer emptyCell;
+	
 	final protected LinkedList< Reference< Entry > > queue = new LinkedList< Reference< Entry > >();
+	final protected LinkedList< Key > prefetchQueue = new LinkedList< Key >();
+	
+	/* the keys in prefetchQueue, such that each is queued once */
+	final protected HashSet< Key > prefetchKeys = new HashSet< Key >();
+	
+	/* entries that failed to load and wait for their backoff to be over */
+	final protected LinkedList< Reference< Entry > > retries = new LinkedList< Reference< Entry > >();
+	
+	/* maximum number of pending prefetch requests, older requests are dropped first */
+	protected int maxPrefetchQueueSize = 1024;
 	
 	public VolatileOpenConnectomeRandomAccessibleInterval( final String url, final long width, final long height, final long depth, final int cellWidth, final int cellHeight, final int cellDepth, final long minZ, final int level )
 	{
 		super( url, width, height, depth, cellWidth, cellHeight, cellDepth, minZ, level );
 		
+		arrayPool = ArrayPool.byteArrays( cellWidth * cellHeight * cellDepth );
+		emptyCell = ByteBuffer.wrap( new byte[ cellWidth * cellHeight * cellDepth ] ).asReadOnlyBuffer();
+		
+		cache.setEvictionListener( new Cache.EvictionListener< Entry >()
+		{
+			@Override
+			public boolean evicted( final Entry entry )
+			{
+				final boolean demoted = demote( entry );
+				return releaseBlock( entry ) || demoted;
+			}
+		} );
+		
 		fetcher = new Fetcher();
 		fetcher.start();
 	}
@@ -250,37 +604,255 @@ public class VolatileOpenConnectomeRandomAccessibleInterval extends
 	@Override
 	public VolatileOpenConnectomeRandomAccess randomAccess( final Interval interval )
 	{
-		return randomAccess();
+		return new VolatileOpenConnectomeRandomAccess( interval );
 	}
 		
 	@Override
 	protected Entry fetchPixels2( final long x, final long y, final long z )
 	{
-		final Reference< Entry > ref;
-		final Key key;
+		return fetchPixels2( x, y, z, false );
+	}
+	
+	/**
+	 * @param x
+	 * @param y
+	 * @param z
+	 * @param ahead true to queue the cell behind the pending visible cells,
+	 * 		e.g. the look-ahead of a blocking RandomAccess, false to load it
+	 * 		next
+	 */
+	protected Entry fetchPixels2( final long x, final long y, final long z, final boolean ahead )
+	{
+		final Key key = new Key( x, y, z );
+		final SlabAllocator allocator = this.allocator;
+		Entry entry = null;
+		ByteBuffer block = null;
+		boolean allocated = allocator == null;
+		while ( entry == null )
+		{
+			synchronized ( cache )
+			{
+				final Entry cachedEntry = cache.get( key );
+				if ( cachedEntry != null )
+				{
+					if ( block != null )
+						allocator.free( block );
+					cache.use( key, cachedEntry );
+					return cachedEntry;
+				}
+				
+				if ( allocated )
+				{
+					/* hold the new entry strongly until it is returned, the WeakReference may be cleared before */
+					entry = new Entry( key, block, false );
+					/* the working set of this frame must not be collected before it is loaded and painted */
+					cache.use( key, entry );
+					
+					/* known to be missing, present it as empty instead of requesting it again */
+					if ( failures.isMissing( key ) )
+					{
+						entry.clear();
+						entry.setValid( true );
+						cache.putSoft( key, entry );
+						return entry;
+					}
+					
+					final Reference< Entry > ref = new WeakReference< Entry >( entry );
+					//final Reference< Entry > ref = new SoftReference< Entry >( entry );
+					cache.putReference( key, ref );
+					if ( ahead )
+						queue.addLast( ref );
+					else
+						queue.push( ref );
+				}
+			}
+			if ( !allocated )
+			{
+				/* allocate off-heap memory outside of the lock, an exhausted allocator evicts tiles one lock at a time */
+				block = allocateBlock();
+				allocated = true;
+			}
+		}
+		synchronized ( fetcher )
+		{
+			fetcher.notify();
+		}
+		
+		return entry;
+	}
+	
+	/**
+	 * Move a cell that the {@link CachePolicy} evicted into the
+	 * {@link CompressedTileCache} in the zipped form that it was served in.
+	 * Called while the cache is locked, nothing is compressed here.
+	 * 
+	 * @param entry
+	 * @return true if the cell was demoted and its decoded form can be
+	 * 		dropped
+	 */
+	protected boolean demote( final Entry entry )
+	{
+		final CompressedTileCache< Key > compressedCache = this.compressedCache;
+		final byte[] served = entry.served;
+		if ( compressedCache == null || served == null || !entry.valid )
+			return false;
+		
+		compressedCache.put( entry.key, served );
+		return true;
+	}
+	
+	/**
+	 * Return the off-heap block of a cell that the {@link CachePolicy}
+	 * evicted to the allocator.  This is safe only while pinning is enabled
+	 * because then all cells in use are pinned and no evicted cell is read
+	 * anymore.  Called while the cache is locked.
+	 * 
+	 * @param entry
+	 * @return true if the block was released and the entry must be dropped
+	 */
+	protected boolean releaseBlock( final Entry entry )
+	{
+		if ( entry.blockAllocator == null || !entry.valid || !cache.isPinning() )
+			return false;
+		entry.release();
+		return true;
+	}
+	
+	/**
+	 * Record a failed load.  A missing cell is presented as empty and valid,
+	 * others are retried when their backoff is over.
+	 * 
+	 * @param entry
+	 * @param permanent true if the cell does not exist
+	 */
+	protected void failed( final Entry entry, final boolean permanent )
+	{
+		if ( failures.failed( entry.key, permanent ) )
+		{
+			entry.clear();
+			entry.setValid( true );
+		}
+		else
+		{
+			synchronized ( cache )
+			{
+				retries.add( new WeakReference< Entry >( entry ) );
+			}
+		}
+	}
+	
+	/**
+	 * Record a failed load of a cell that was claimed in the
+	 * {@link SharedTileStore} and pass the failure on to the sources that
+	 * wait for it.
+	 * 
+	 * @param entry
+	 * @param permanent true if the cell does not exist
+	 */
+	protected void claimFailed( final Entry entry, final boolean permanent )
+	{
+		if ( entry.sharedStore != null )
+			entry.sharedStore.fail( tileSource.getDataset(), level, tileName( entry.key ), permanent );
+		failed( entry, permanent );
+	}
+	
+	/**
+	 * Move entries whose backoff is over from {@link #retries} to the end of
+	 * the queue.  Must be called while synchronized on the cache.
+	 * 
+	 * @return milliseconds until the next retry is due, 0 if none is pending
+	 */
+	protected long requeueRetries()
+	{
+		final long now = System.currentTimeMillis();
+		long next = Long.MAX_VALUE;
+		for ( final Iterator< Reference< Entry > > i = retries.iterator(); i.hasNext(); )
+		{
+			final Reference< Entry > ref = i.next();
+			final Entry entry = ref.get();
+			if ( entry == null )
+				i.remove();
+			else
+			{
+				final long retryTime = failures.getRetryTime( entry.key );
+				if ( retryTime <= now )
+				{
+					i.remove();
+					queue.addLast( ref );
+				}
+				else
+					next = Math.min( next, retryTime );
+			}
+		}
+		return next == Long.MAX_VALUE ? 0 : Math.max( 1, next - now );
+	}
+	
+	/**
+	 * Queue cell (x, y, z) for loading at background priority unless it is
+	 * cached already.  A cell that is queued already moves to the front of
+	 * the queue.  Requests for cells outside of the interval are ignored.
+	 * 
+	 * @param x
+	 * @param y
+	 * @param z
+	 */
+	public void prefetch( final long x, final long y, final long z )
+	{
+		if ( x < 0 || x >= width || y < 0 || y >= height || z < 0 || z >= depth )
+			return;
+		
 		synchronized ( cache )
 		{
-			key = new Key( x, y, z );
-			final Entry cachedEntry = cache.get( key );
-			if ( cachedEntry != null )
-				return cachedEntry;
+			final Key key = new Key( x, y, z );
+			if ( cache.get( key ) != null || !failures.mayLoad( key ) )
+				return;
 			
-			final byte[] bytes = new byte[ cellWidth * cellHeight * cellDepth ];
-			ref = new WeakReference< Entry >( new Entry( key, bytes, false ) );
-			//ref = new SoftReference< Entry >( new Entry( key, bytes, false ) );
-			cache.putReference( key, ref );
-			queue.push( ref );
+			/* queued already, move it to the front */
+			if ( !prefetchKeys.add( key ) )
+				prefetchQueue.remove( key );
+			prefetchQueue.push( key );
+			if ( prefetchQueue.size() > maxPrefetchQueueSize )
+				prefetchKeys.remove( prefetchQueue.removeLast() );
 		}
 		synchronized ( fetcher )
 		{
 			fetcher.notify();
 		}
+	}
+	
+	@Override
+	public int getCellDimension( final int d )
+	{
+		return d == 0 ? cellWidth : d == 1 ? cellHeight : cellDepth;
+	}
+	
+	@Override
+	public void prefetch( final long[] min, final long[] max )
+	{
+		if ( max[ 0 ] < 0 || max[ 1 ] < 0 || max[ 2 ] < 0 )
+			return;
 		
-		final Entry entry = ref.get();
-		if ( entry != null )
-			return entry;
-		else
-			return new Entry( key, new byte[ cellWidth * cellHeight * cellDepth ], false );
+		final long x0 = Math.max( 0, min[ 0 ] / cellWidth );
+		final long x1 = Math.min( width - 1, max[ 0 ] / cellWidth );
+		final long y0 = Math.max( 0, min[ 1 ] / cellHeight );
+		final long y1 = Math.min( height - 1, max[ 1 ] / cellHeight );
+		final long z0 = Math.max( 0, min[ 2 ] / cellDepth );
+		final long z1 = Math.min( depth - 1, max[ 2 ] / cellDepth );
+		
+		for ( long z = z0; z <= z1; ++z )
+			for ( long y = y0; y <= y1; ++y )
+				for ( long x = x0; x <= x1; ++x )
+					prefetch( x, y, z );
+	}
+	
+	public int getMaxPrefetchQueueSize()
+	{
+		return maxPrefetchQueueSize;
+	}
+	
+	public void setMaxPrefetchQueueSize( final int maxPrefetchQueueSize )
+	{
+		this.maxPrefetchQueueSize = maxPrefetchQueueSize;
 	}
 	
 	@Override
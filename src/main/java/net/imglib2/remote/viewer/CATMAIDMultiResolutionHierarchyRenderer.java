@@ -33,7 +33,18 @@ import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineSet;
 import net.imglib2.realtransform.RealViews;
+import net.imglib2.remote.AsyncTileLoader;
+import net.imglib2.remote.CacheManager;
+import net.imglib2.remote.CompressedTileCache;
+import net.imglib2.remote.DiskCache;
+import net.imglib2.remote.RateLimiter;
+import net.imglib2.remote.SlabAllocator;
+import net.imglib2.remote.TileLoader;
+import net.imglib2.remote.TileSource;
+import net.imglib2.remote.catmaid.DownsamplingTileSource;
 import net.imglib2.remote.catmaid.VolatileCATMAIDRandomAccessibleInterval;
+import net.imglib2.remote.chunked.ChunkedVolumeTileSource;
+import net.imglib2.remote.viewer.CompositeHierarchyProjector.Blending;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.ui.AbstractMultiResolutionRenderer;
 import net.imglib2.ui.AffineTransformType;
@@ -68,8 +79,12 @@ public class CATMAIDMultiResolutionHierarchyRenderer< A extends AffineSet & Affi
 		final protected InteractiveDisplayCanvasComponent< ? > canvas;
 		
 		final ArrayList< ExtendedRandomAccessibleInterval< VolatileNumericType< ARGBType >, ? > > sources = new ArrayList< ExtendedRandomAccessibleInterval< VolatileNumericType< ARGBType >, ? > >();
+		final ArrayList< VolatileCATMAIDRandomAccessibleInterval > volatileSources = new ArrayList< VolatileCATMAIDRandomAccessibleInterval >();
 		final ArrayList< B > sourceTransforms = new ArrayList< B >();
 		final ArrayList< B > sourceToScreens = new ArrayList< B >();
+		
+		/* distributes the memory for retained tiles over the levels, null if not used */
+		protected CacheManager cacheManager = null;
 		final double[] levelScales;
 		
 		final protected double[] screenScales;
@@ -80,6 +95,8 @@ public class CATMAIDMultiResolutionHierarchyRenderer< A extends AffineSet & Affi
 
 		final protected int numRenderingThreads;
 		
+		final protected String baseUrl;
+		
 		final static public int getNumScales( long width, long height, final long tileWidth, final long tileHeight )
 		{
 			int i = 0;
@@ -112,6 +129,7 @@ public class CATMAIDMultiResolutionHierarchyRenderer< A extends AffineSet & Affi
 			this.targetRenderNanos = targetRenderNanos;
 			this.doubleBuffered = doubleBuffered;
 			this.numRenderingThreads = numRenderingThreads;
+			this.baseUrl = baseUrl;
 			levelScales = new double[ getNumScales( width, height, tileWidth, tileHeight ) ];
 			
 			for ( int level = 0; level < levelScales.length; level++ )
@@ -138,6 +156,7 @@ public class CATMAIDMultiResolutionHierarchyRenderer< A extends AffineSet & Affi
 						level,
 						tileWidth,
 						tileHeight );
+				volatileSources.add( source );
 				
 				final ExtendedRandomAccessibleInterval< VolatileNumericType< ARGBType >, ? > extendedSource =
 						Views.extendValue( source, new VolatileNumericType< ARGBType >( new ARGBType( 0xff0000c0 ), true ) );
@@ -148,11 +167,193 @@ public class CATMAIDMultiResolutionHierarchyRenderer< A extends AffineSet & Affi
 			}
 		}
 		
+		/**
+		 * Prefetch k slices on either side of each requested tile at all
+		 * levels.
+		 * 
+		 * @param zPrefetchRadius k, 0 disables z-prefetch
+		 */
+		public void setZPrefetchRadius( final int zPrefetchRadius )
+		{
+			for ( final VolatileCATMAIDRandomAccessibleInterval source : volatileSources )
+				source.setZPrefetchRadius( zPrefetchRadius );
+		}
+		
+		/**
+		 * Keep tiles that the cache policy evicted in compressed form in a
+		 * {@link CompressedTileCache} per level such that they are decoded
+		 * again instead of being loaded again.  Requires a policy, see
+		 * {@link #setRetainedTiles(int)} and {@link #setCacheBudget(long)}.
+		 * 
+		 * @param maxBytes size limit of all levels together, 0 disables the
+		 * 		compressed cache
+		 */
+		public void setCompressedCacheBytes( final long maxBytes )
+		{
+			for ( final VolatileCATMAIDRandomAccessibleInterval source : volatileSources )
+				source.setCompressedCacheBytes( maxBytes / volatileSources.size() );
+		}
+		
+		/**
+		 * Store the pixels of new tiles off-heap in a {@link SlabAllocator}
+		 * per level.
+		 * 
+		 * @param maxBytes size limit of all levels together, 0 stores tiles
+		 * 		on the heap
+		 */
+		public void setOffHeapBytes( final long maxBytes )
+		{
+			for ( final VolatileCATMAIDRandomAccessibleInterval source : volatileSources )
+				source.setAllocator( maxBytes > 0 ?
+						new SlabAllocator( source.getTileWidth() * source.getTileHeight() * 4, maxBytes / volatileSources.size() ) :
+						null );
+		}
+		
+		/**
+		 * Retain the most frequently and recently used tiles of each level
+		 * in memory such that flying through the data does not evict the
+		 * tiles that are visited repeatedly.
+		 * 
+		 * @param capacity number of retained tiles per level, 0 leaves
+		 * 		all tiles to the garbage collector
+		 */
+		public void setRetainedTiles( final int capacity )
+		{
+			for ( final VolatileCATMAIDRandomAccessibleInterval source : volatileSources )
+				source.setRetainedTiles( capacity );
+		}
+		
+		/**
+		 * Share one memory budget for retained tiles between all levels.
+		 * Half of the budget is reserved in equal parts for each level, which
+		 * keeps the few tiles of the coarse levels resident, the rest is
+		 * distributed by demand.
+		 * 
+		 * @param maxBytes 0 leaves all tiles to the garbage collector
+		 */
+		public void setCacheBudget( final long maxBytes )
+		{
+			if ( cacheManager != null )
+				cacheManager.stop();
+			cacheManager = null;
+			if ( maxBytes <= 0 )
+			{
+				setRetainedTiles( 0 );
+				return;
+			}
+			
+			cacheManager = new CacheManager( maxBytes );
+			for ( final VolatileCATMAIDRandomAccessibleInterval source : volatileSources )
+				cacheManager.add( source, source.getTileWidth() * source.getTileHeight() * 4, 0.5 / volatileSources.size() );
+			cacheManager.start();
+		}
+		
+		public CacheManager getCacheManager()
+		{
+			return cacheManager;
+		}
+		
+		/**
+		 * Read the tiles of all levels from another backend, e.g. a local
+		 * mirror in a {@link ChunkedVolumeTileSource}.
+		 * 
+		 * @param tileSource serves all levels, its level index is the level
+		 * 		of the source
+		 */
+		public void setTileSource( final TileSource< int[] > tileSource )
+		{
+			for ( final VolatileCATMAIDRandomAccessibleInterval source : volatileSources )
+				source.setTileSource( tileSource );
+		}
+		
+		/**
+		 * Compute all levels beyond the first numServedLevels from finer
+		 * levels by a {@link DownsamplingTileSource} on top of the current
+		 * {@link TileSource}, e.g. for servers that do not provide the full
+		 * pyramid.
+		 * 
+		 * @param numServedLevels
+		 */
+		public void setNumServedLevels( final int numServedLevels )
+		{
+			final VolatileCATMAIDRandomAccessibleInterval level0 = volatileSources.get( 0 );
+			setTileSource(
+					new DownsamplingTileSource(
+							level0.getTileSource(),
+							level0.dimension( 0 ),
+							level0.dimension( 1 ),
+							level0.getTileWidth(),
+							level0.getTileHeight(),
+							numServedLevels ) );
+		}
+		
+		/**
+		 * Keep the raw tiles of all levels in a {@link DiskCache} such that
+		 * memory misses and restarts do not go back to the server.
+		 * 
+		 * @param diskCache null disables the disk cache
+		 */
+		public void setDiskCache( final DiskCache diskCache )
+		{
+			for ( final VolatileCATMAIDRandomAccessibleInterval source : volatileSources )
+				source.setDiskCache( diskCache );
+		}
+		
+		/**
+		 * Load tiles of all levels by one {@link TileLoader}, e.g. an
+		 * {@link AsyncTileLoader}, such that
+		 * many tiles are in flight at a time on high latency links.
+		 * 
+		 * @param asyncLoader null loads tiles one by one per level
+		 */
+		public void setAsyncLoader( final TileLoader asyncLoader )
+		{
+			for ( final VolatileCATMAIDRandomAccessibleInterval source : volatileSources )
+				source.setAsyncLoader( asyncLoader );
+		}
+		
+		/**
+		 * Limit the rate of requests to the host of the dataset, shared by
+		 * all levels and all sources on the same host, see
+		 * {@link RateLimiter}.
+		 * 
+		 * @param requestsPerSecond 0 removes the limit
+		 * @param burst number of requests that can be sent at once
+		 */
+		public void setRateLimit( final double requestsPerSecond, final int burst )
+		{
+			RateLimiter.getDefault().setRate( RateLimiter.host( baseUrl ), requestsPerSecond, burst );
+		}
+		
+		/**
+		 * A channel of the levels of this factory for a
+		 * {@link CompositeMultiResolutionRenderer}, e.g. to overlay this
+		 * dataset with others.
+		 * 
+		 * @param converter
+		 * @param blending
+		 * @return
+		 */
+		public CompositeMultiResolutionRenderer.Channel< VolatileNumericType< ARGBType >, B > createChannel(
+				final Converter< ? super VolatileNumericType< ARGBType >, ARGBType > converter,
+				final Blending blending )
+		{
+			return new CompositeMultiResolutionRenderer.Channel< VolatileNumericType< ARGBType >, B >(
+					transformType,
+					sources,
+					volatileSources,
+					sourceTransforms,
+					levelScales,
+					converter,
+					blending );
+		}
+		
 		@Override
 		public CATMAIDMultiResolutionHierarchyRenderer< B > create( final RenderTarget display, final PainterThread painterThread )
 		{
 			final CATMAIDMultiResolutionHierarchyRenderer< B > renderer = new CATMAIDMultiResolutionHierarchyRenderer< B >(
 					sources,
+					volatileSources,
 					sourceTransforms,
 					sourceToScreens,
 					levelScales,
@@ -187,6 +388,12 @@ public class CATMAIDMultiResolutionHierarchyRenderer< A extends AffineSet & Affi
 	final protected ArrayList< A > sourceToScreens = new ArrayList< A >();
 	final double[] levelScales;
 	
+	/* the sources, pins are released for each frame */
+	final protected ArrayList< VolatileCATMAIDRandomAccessibleInterval > volatileSources = new ArrayList< VolatileCATMAIDRandomAccessibleInterval >();
+	
+	/* predicts and prefetches the next views */
+	final protected Prefetcher< A > prefetcher;
+	
 	/* transformed sources */
 	final protected ArrayList< RandomAccessible< VolatileNumericType< ARGBType > > > transformedSources = new ArrayList< RandomAccessible< VolatileNumericType< ARGBType > > >();
 	
@@ -196,6 +403,7 @@ public class CATMAIDMultiResolutionHierarchyRenderer< A extends AffineSet & Affi
 	
 	public CATMAIDMultiResolutionHierarchyRenderer(
 			final ArrayList< ExtendedRandomAccessibleInterval< VolatileNumericType< ARGBType >, ? > > sources,
+			final ArrayList< VolatileCATMAIDRandomAccessibleInterval > volatileSources,
 			final ArrayList< A > sourceTransforms,
 			final ArrayList< A > sourceToScreens,
 			final double[] levelScales,
@@ -212,6 +420,16 @@ public class CATMAIDMultiResolutionHierarchyRenderer< A extends AffineSet & Affi
 		this.sourceTransforms.addAll( sourceTransforms );
 		this.sourceToScreens.addAll( sourceToScreens );
 		this.levelScales = levelScales;
+		prefetcher = new Prefetcher< A >( transformType, volatileSources, this.sourceTransforms );
+		
+		this.volatileSources.addAll( volatileSources );
+		for ( final VolatileCATMAIDRandomAccessibleInterval source : volatileSources )
+			source.setPinning( true );
+	}
+	
+	public Prefetcher< A > getPrefetcher()
+	{
+		return prefetcher;
 	}
 	
 	protected synchronized int getOptimalScaleIndex( final A viewerTransform )
@@ -270,7 +488,12 @@ public class CATMAIDMultiResolutionHierarchyRenderer< A extends AffineSet & Affi
 			final A screenScaleTransform,
 			final ARGBScreenImage screenImage )
 	{
+		/* tiles of the last frame stay pinned until this one is painted */
+		for ( final VolatileCATMAIDRandomAccessibleInterval source : volatileSources )
+			source.releasePins();
+		
 		interpolateAndTransform( viewerTransform, screenScaleTransform );
+		prefetcher.prefetch( viewerTransform, getOptimalScaleIndex( viewerTransform ), display.getWidth(), display.getHeight() );
 		
 		final VolatileHierarchyProjector< ARGBType, VolatileNumericType< ARGBType >, ARGBType > p =
 				new VolatileHierarchyProjector< ARGBType, VolatileNumericType< ARGBType >, ARGBType >(
@@ -37,9 +37,12 @@
 
 package net.imglib2.remote.viewer;
 
+import java.io.File;
+
 import net.imglib2.FinalInterval;
 import net.imglib2.display.VolatileNumericType;
 import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.remote.DiskCache;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.ui.AffineTransformType3D;
 import net.imglib2.ui.InteractiveDisplayCanvasComponent;
@@ -109,6 +112,10 @@ public class CATMAIDViewer
 						Defaults.targetRenderNanos,
 						Defaults.doubleBuffered,
 						Defaults.numRenderingThreads );
+		rendererFactory.setZPrefetchRadius( 2 );
+		rendererFactory.setCacheBudget( Runtime.getRuntime().maxMemory() / 3 );
+		rendererFactory.setCompressedCacheBytes( Runtime.getRuntime().maxMemory() / 4 );
+		rendererFactory.setDiskCache( new DiskCache( new File( System.getProperty( "user.home" ), ".imglib2-remote/cache" ), 4l << 30 ) );
 		
 		
 		final InteractiveRealViewer< VolatileNumericType< ARGBType >, AffineTransform3D, InteractiveDisplayCanvasComponent< AffineTransform3D > > viewer =
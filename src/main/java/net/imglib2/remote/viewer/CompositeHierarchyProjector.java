@@ -0,0 +1,323 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote.viewer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import net.imglib2.RandomAccess;
+import net.imglib2.RandomAccessible;
+import net.imglib2.RandomAccessibleInterval;
+import net.imglib2.converter.Converter;
+import net.imglib2.display.Projector;
+import net.imglib2.display.Volatile;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.ui.AbstractInterruptibleProjector;
+import net.imglib2.ui.util.StopWatch;
+
+/**
+ * {@link Projector} that composites several channels, each a hierarchy of
+ * {@link Volatile} inputs, into one ARGB target.  Like the
+ * {@link VolatileHierarchyProjector}, each channel keeps a mask of the
+ * hierarchy level that each of its pixels was mapped from, and each
+ * {@link #map()} call revisits only those pixels that were not mapped from
+ * the best level yet.  All channels are mapped and blended in the same
+ * pass over the target.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class CompositeHierarchyProjector extends AbstractInterruptibleProjector< Object, ARGBType >
+{
+	/**
+	 * How a channel is blended over the channels before it.
+	 */
+	static public enum Blending
+	{
+		/* add the color components, saturating at 255 */
+		ADD,
+		/* alpha-composite the channel over the channels before it */
+		OVER
+	}
+	
+	/**
+	 * A hierarchy of sources, best first, converted to ARGB.
+	 */
+	static public class Channel< A extends Volatile< ? > >
+	{
+		final protected ArrayList< RandomAccessible< A > > sources = new ArrayList< RandomAccessible< A > >();
+		final protected Converter< ? super A, ARGBType > converter;
+		final protected Blending blending;
+		
+		public Channel(
+				final List< ? extends RandomAccessible< A > > sources,
+				final Converter< ? super A, ARGBType > converter,
+				final Blending blending )
+		{
+			this.sources.addAll( sources );
+			this.converter = converter;
+			this.blending = blending;
+		}
+	}
+	
+	final protected ArrayList< Channel< ? > > channels = new ArrayList< Channel< ? > >();
+	
+	/* ARGB pixels of each channel */
+	final protected int[][] pixels;
+	
+	/* hierarchy level of each pixel of each channel, Integer.MAX_VALUE if not mapped */
+	final protected int[][] masks;
+	
+	protected boolean valid = false;
+	int s = 0;
+	
+	final int width;
+	final int height;
+	
+	public CompositeHierarchyProjector(
+			final List< ? extends Channel< ? > > channels,
+			final RandomAccessibleInterval< ARGBType > target,
+			final int numThreads )
+	{
+		super( Math.max( 2, channels.get( 0 ).sources.get( 0 ).numDimensions() ), null, target, numThreads );
+		
+		this.channels.addAll( channels );
+		
+		for ( int d = 2; d < min.length; ++d )
+			min[ d ] = max[ d ] = 0;
+		
+		max[ 0 ] = target.max( 0 );
+		max[ 1 ] = target.max( 1 );
+		
+		width = ( int )target.dimension( 0 );
+		height = ( int )target.dimension( 1 );
+		
+		pixels = new int[ channels.size() ][ width * height ];
+		masks = new int[ channels.size() ][ width * height ];
+		
+		clearMask();
+	}
+	
+	/**
+	 * @return true if all mapped pixels of all channels were
+	 * 		{@link Volatile#isValid() valid}.
+	 */
+	public boolean isValid()
+	{
+		return valid;
+	}
+	
+	/**
+	 * Set all masks to Integer.MAX_VALUE.
+	 */
+	public void clearMask()
+	{
+		for ( final int[] mask : masks )
+			Arrays.fill( mask, Integer.MAX_VALUE );
+		
+		s = 0;
+		for ( final Channel< ? > channel : channels )
+			s = Math.max( s, channel.sources.size() );
+	}
+	
+	@Override
+	public boolean map()
+	{
+		interrupted.set( false );
+		
+		final StopWatch stopWatch = new StopWatch();
+		stopWatch.start();
+		
+		final int numTasks;
+		if ( numThreads > 1 )
+		{
+			numTasks = Math.max( numThreads * 10, height );
+		}
+		else
+			numTasks = 1;
+		final double taskHeight = ( double )height / numTasks;
+		
+		int i;
+		
+		valid = false;
+		
+		for ( i = 0; i < s && !valid; ++i )
+		{
+			final int iFinal = i;
+			
+			valid = true;
+			
+			final ExecutorService ex = Executors.newFixedThreadPool( numThreads );
+			
+			for ( int taskNum = 0; taskNum < numTasks; ++taskNum )
+			{
+				final int myMinY = ( int )( taskNum * taskHeight );
+				final int myHeight = ( ( taskNum == numTasks - 1 ) ? height : ( int )( ( taskNum + 1 ) * taskHeight ) ) - myMinY;
+				
+				final Runnable r = new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						if ( interrupted.get() )
+							return;
+						
+						for ( int c = 0; c < channels.size(); ++c )
+							if ( !mapChannel( channels.get( c ), c, iFinal, myMinY, myHeight ) )
+								valid = false;
+						
+						if ( interrupted.get() )
+							return;
+						
+						composite( myMinY, myHeight );
+					}
+				};
+				ex.execute( r );
+			}
+			ex.shutdown();
+			try
+			{
+				ex.awaitTermination( 1, TimeUnit.HOURS );
+			}
+			catch ( final InterruptedException e )
+			{
+				e.printStackTrace();
+			}
+		}
+		
+		lastFrameRenderNanoTime = stopWatch.nanoTime();
+		
+		if ( valid )
+			s = i - 1;
+		valid = s == 0;
+		
+		return !interrupted.get();
+	}
+	
+	/**
+	 * Map the rows [minY, minY + h) of channel c from hierarchy level i
+	 * where its mask is coarser than i.
+	 * 
+	 * @return false if a pixel was not valid
+	 */
+	protected < A extends Volatile< ? > > boolean mapChannel( final Channel< A > channel, final int c, final int i, final int minY, final int h )
+	{
+		if ( i >= channel.sources.size() )
+			return true;
+		
+		final int[] channelPixels = pixels[ c ];
+		final int[] mask = masks[ c ];
+		final ARGBType argb = new ARGBType();
+		final RandomAccess< A > sourceRandomAccess = channel.sources.get( i ).randomAccess();
+		
+		sourceRandomAccess.setPosition( min );
+		sourceRandomAccess.setPosition( min[ 1 ] + minY, 1 );
+		
+		boolean channelValid = true;
+		for ( int y = 0, index = minY * width; y < h; ++y )
+		{
+			if ( interrupted.get() )
+				return channelValid;
+			
+			for ( int x = 0; x < width; ++x, ++index )
+			{
+				if ( mask[ index ] > i )
+				{
+					final A a = sourceRandomAccess.get();
+					if ( a.isValid() )
+					{
+						channel.converter.convert( a, argb );
+						channelPixels[ index ] = argb.get();
+						mask[ index ] = i;
+					}
+					else
+						channelValid = false;
+				}
+				sourceRandomAccess.fwd( 0 );
+			}
+			sourceRandomAccess.move( -width, 0 );
+			sourceRandomAccess.fwd( 1 );
+		}
+		return channelValid;
+	}
+	
+	/**
+	 * Blend all channels of the rows [minY, minY + h) into the target.
+	 */
+	protected void composite( final int minY, final int h )
+	{
+		final RandomAccess< ARGBType > targetRandomAccess = target.randomAccess( target );
+		targetRandomAccess.setPosition( min[ 0 ], 0 );
+		targetRandomAccess.setPosition( min[ 1 ] + minY, 1 );
+		
+		final int numChannels = channels.size();
+		final Blending[] blendings = new Blending[ numChannels ];
+		for ( int c = 0; c < numChannels; ++c )
+			blendings[ c ] = channels.get( c ).blending;
+		
+		for ( int y = 0, index = minY * width; y < h; ++y )
+		{
+			for ( int x = 0; x < width; ++x, ++index )
+			{
+				int argb = 0;
+				for ( int c = 0; c < numChannels; ++c )
+					argb = blend( argb, pixels[ c ][ index ], blendings[ c ] );
+				targetRandomAccess.get().set( argb );
+				targetRandomAccess.fwd( 0 );
+			}
+			targetRandomAccess.move( -width, 0 );
+			targetRandomAccess.fwd( 1 );
+		}
+	}
+	
+	/**
+	 * Blend an ARGB value over another.
+	 * 
+	 * @param dst
+	 * @param src
+	 * @param blending
+	 * @return
+	 */
+	static public int blend( final int dst, final int src, final Blending blending )
+	{
+		final int sa = ( src >>> 24 ) & 0xff;
+		final int da = ( dst >>> 24 ) & 0xff;
+		final int sr = ( src >> 16 ) & 0xff, sg = ( src >> 8 ) & 0xff, sb = src & 0xff;
+		final int dr = ( dst >> 16 ) & 0xff, dg = ( dst >> 8 ) & 0xff, db = dst & 0xff;
+		
+		if ( blending == Blending.ADD )
+		{
+			final int a = Math.max( sa, da );
+			final int r = Math.min( 255, sr + dr );
+			final int g = Math.min( 255, sg + dg );
+			final int b = Math.min( 255, sb + db );
+			return ( a << 24 ) | ( r << 16 ) | ( g << 8 ) | b;
+		}
+		else
+		{
+			final int ia = 255 - sa;
+			final int a = sa + ( da * ia + 127 ) / 255;
+			final int r = ( sr * sa + dr * ia + 127 ) / 255;
+			final int g = ( sg * sa + dg * ia + 127 ) / 255;
+			final int b = ( sb * sa + db * ia + 127 ) / 255;
+			return ( a << 24 ) | ( r << 16 ) | ( g << 8 ) | b;
+		}
+	}
+}
@@ -0,0 +1,299 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote.viewer;
+
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.imglib2.RandomAccessible;
+import net.imglib2.RealRandomAccessible;
+import net.imglib2.concatenate.Concatenable;
+import net.imglib2.converter.Converter;
+import net.imglib2.display.ARGBScreenImage;
+import net.imglib2.display.Volatile;
+import net.imglib2.interpolation.InterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NLinearInterpolatorFactory;
+import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineSet;
+import net.imglib2.realtransform.RealViews;
+import net.imglib2.remote.AbstractRemoteRandomAccessibleInterval;
+import net.imglib2.remote.Prefetchable;
+import net.imglib2.remote.viewer.CompositeHierarchyProjector.Blending;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.NumericType;
+import net.imglib2.ui.AbstractMultiResolutionRenderer;
+import net.imglib2.ui.AffineTransformType;
+import net.imglib2.ui.InteractiveDisplayCanvasComponent;
+import net.imglib2.ui.PainterThread;
+import net.imglib2.ui.RenderTarget;
+import net.imglib2.ui.RendererFactory;
+import net.imglib2.view.Views;
+
+/**
+ * An {@link AbstractMultiResolutionRenderer} that overlays several
+ * hierarchies of sources, e.g. an EM dataset and a segmentation, by one
+ * {@link CompositeHierarchyProjector}.  Each {@link Channel} has its own
+ * levels, converter and {@link Blending}, channels are blended in the order
+ * in which they were added.  It considers rendering complete when all
+ * pixels of all channels were rendered at screen scale level 0 from the
+ * optimal hierarchy source of their channel.
+ * 
+ * @param <A>
+ *            transform type
+ *            
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class CompositeMultiResolutionRenderer< A extends AffineSet & AffineGet & Concatenable< AffineGet > >
+		extends AbstractMultiResolutionRenderer< A >
+{
+	/**
+	 * A hierarchy of volatile sources with its transforms, converter and
+	 * {@link Blending}.  The sources are usually the levels of an
+	 * existing renderer factory, see e.g.
+	 * {@link OpenConnectomeMultiResolutionHierarchyRenderer.Factory#createChannel(Converter, Blending)}.
+	 */
+	static public class Channel< V extends Volatile< ? > & NumericType< V >, A extends AffineSet & AffineGet & Concatenable< AffineGet > >
+	{
+		final protected ArrayList< RandomAccessible< V > > sources = new ArrayList< RandomAccessible< V > >();
+		final protected ArrayList< A > sourceTransforms = new ArrayList< A >();
+		final protected double[] levelScales;
+		final protected Converter< ? super V, ARGBType > converter;
+		final protected Blending blending;
+		
+		/* the remote sources, pins are released for each frame */
+		final protected ArrayList< AbstractRemoteRandomAccessibleInterval< ?, ?, ? > > volatileSources = new ArrayList< AbstractRemoteRandomAccessibleInterval< ?, ?, ? > >();
+		
+		/* predicts and prefetches the next views */
+		final protected Prefetcher< A > prefetcher;
+		
+		protected InterpolatorFactory< V, RandomAccessible< V > > interpolatorFactory = new NearestNeighborInterpolatorFactory< V >();
+		
+		/**
+		 * @param transformType
+		 * @param sources extended sources, one per level
+		 * @param volatileSources the remote sources of the levels
+		 * @param sourceTransforms source to global transform per level
+		 * @param levelScales <em>x</em>-scale per level
+		 * @param converter
+		 * @param blending
+		 */
+		public < S extends AbstractRemoteRandomAccessibleInterval< ?, ?, ? > & Prefetchable > Channel(
+				final AffineTransformType< A > transformType,
+				final List< ? extends RandomAccessible< V > > sources,
+				final List< S > volatileSources,
+				final List< A > sourceTransforms,
+				final double[] levelScales,
+				final Converter< ? super V, ARGBType > converter,
+				final Blending blending )
+		{
+			this.sources.addAll( sources );
+			this.volatileSources.addAll( volatileSources );
+			this.sourceTransforms.addAll( sourceTransforms );
+			this.levelScales = levelScales.clone();
+			this.converter = converter;
+			this.blending = blending;
+			prefetcher = new Prefetcher< A >( transformType, volatileSources, this.sourceTransforms );
+		}
+		
+		public Prefetcher< A > getPrefetcher()
+		{
+			return prefetcher;
+		}
+		
+		protected int getOptimalScaleIndex( final A viewerTransform )
+		{
+			double screenPixelLength = 0;
+			final int n = viewerTransform.numDimensions();
+			for ( int d = 0; d < n; ++d )
+			{
+				final double x = viewerTransform.get( d, 0 );
+				screenPixelLength += x * x;
+			}
+			screenPixelLength = 1.0 / Math.sqrt( screenPixelLength );
+			
+			int i;
+			for ( i = 1; i < levelScales.length; ++i )
+				if ( levelScales[ i ] > screenPixelLength )
+					break;
+			
+			return i - 1;
+		}
+		
+		/**
+		 * The levels from the optimal level on, transformed to the screen.
+		 */
+		protected < B extends AffineSet & AffineGet & Concatenable< AffineGet > > CompositeHierarchyProjector.Channel< V > transform(
+				final AffineTransformType< B > transformType,
+				final B viewerTransform,
+				final B screenScaleTransform,
+				final int optimalLevel )
+		{
+			final ArrayList< RandomAccessible< V > > transformedSources = new ArrayList< RandomAccessible< V > >();
+			for ( int level = optimalLevel; level < sources.size(); level++ )
+			{
+				final B sourceToScreen = transformType.createTransform();
+				sourceToScreen.concatenate( screenScaleTransform );
+				sourceToScreen.concatenate( viewerTransform );
+				sourceToScreen.concatenate( sourceTransforms.get( level ) );
+				final RealRandomAccessible< V > interpolant = Views.interpolate( sources.get( level ), interpolatorFactory );
+				transformedSources.add( RealViews.affine( interpolant, sourceToScreen ) );
+			}
+			return new CompositeHierarchyProjector.Channel< V >( transformedSources, converter, blending );
+		}
+		
+		public void toggleInterpolation()
+		{
+			if ( interpolatorFactory instanceof NearestNeighborInterpolatorFactory )
+				interpolatorFactory = new NLinearInterpolatorFactory< V >();
+			else
+				interpolatorFactory = new NearestNeighborInterpolatorFactory< V >();
+		}
+	}
+	
+	public static class Factory< B extends AffineSet & AffineGet & Concatenable< AffineGet > > implements RendererFactory< B >
+	{
+		final protected AffineTransformType< B > transformType;
+		
+		final protected InteractiveDisplayCanvasComponent< ? > canvas;
+		
+		final protected ArrayList< Channel< ?, B > > channels = new ArrayList< Channel< ?, B > >();
+		
+		final protected double[] screenScales;
+		
+		final protected long targetRenderNanos;
+		
+		final protected boolean doubleBuffered;
+		
+		final protected int numRenderingThreads;
+		
+		public Factory(
+				final AffineTransformType< B > transformType,
+				final InteractiveDisplayCanvasComponent< ? > canvas,
+				final double[] screenScales,
+				final long targetRenderNanos,
+				final boolean doubleBuffered,
+				final int numRenderingThreads )
+		{
+			this.transformType = transformType;
+			this.canvas = canvas;
+			this.screenScales = screenScales;
+			this.targetRenderNanos = targetRenderNanos;
+			this.doubleBuffered = doubleBuffered;
+			this.numRenderingThreads = numRenderingThreads;
+		}
+		
+		/**
+		 * Add a channel that is blended over the channels added before.
+		 * 
+		 * @param channel
+		 */
+		public void addChannel( final Channel< ?, B > channel )
+		{
+			channels.add( channel );
+		}
+		
+		@Override
+		public CompositeMultiResolutionRenderer< B > create( final RenderTarget display, final PainterThread painterThread )
+		{
+			final CompositeMultiResolutionRenderer< B > renderer = new CompositeMultiResolutionRenderer< B >(
+					channels,
+					transformType,
+					display,
+					painterThread,
+					screenScales,
+					targetRenderNanos,
+					doubleBuffered,
+					numRenderingThreads );
+			
+			final InteractiveDisplayCanvasComponent< ? > target = display instanceof InteractiveDisplayCanvasComponent ?
+					( InteractiveDisplayCanvasComponent< ? > )display : canvas;
+			
+			// add KeyHandler for toggling interpolation
+			target.addHandler( new KeyAdapter() {
+				@Override
+				public void keyPressed( final KeyEvent e )
+				{
+					if ( e.getKeyCode() == KeyEvent.VK_I )
+					{
+						renderer.toggleInterpolation();
+						renderer.requestRepaint();
+					}
+				}
+			});
+			
+			return renderer;
+		}
+	}
+	
+	final protected ArrayList< Channel< ?, A > > channels = new ArrayList< Channel< ?, A > >();
+	
+	public CompositeMultiResolutionRenderer(
+			final List< Channel< ?, A > > channels,
+			final AffineTransformType< A > transformType,
+			final RenderTarget display,
+			final PainterThread painterThread,
+			final double[] screenScales,
+			final long targetRenderNanos,
+			final boolean doubleBuffered,
+			final int numRenderingThreads )
+	{
+		super( transformType, display, painterThread, screenScales, targetRenderNanos, doubleBuffered, numRenderingThreads );
+		this.channels.addAll( channels );
+		for ( final Channel< ?, A > channel : channels )
+			for ( final AbstractRemoteRandomAccessibleInterval< ?, ?, ? > source : channel.volatileSources )
+				source.setPinning( true );
+	}
+	
+	@Override
+	protected boolean isComplete()
+	{
+		return requestedScreenScaleIndex == 0 && ( ( CompositeHierarchyProjector )projector ).isValid();
+	}
+	
+	@Override
+	protected synchronized CompositeHierarchyProjector createProjector(
+			final A viewerTransform,
+			final A screenScaleTransform,
+			final ARGBScreenImage screenImage )
+	{
+		final ArrayList< CompositeHierarchyProjector.Channel< ? > > transformedChannels = new ArrayList< CompositeHierarchyProjector.Channel< ? > >();
+		for ( final Channel< ?, A > channel : channels )
+		{
+			/* tiles of the last frame stay pinned until this one is painted */
+			for ( final AbstractRemoteRandomAccessibleInterval< ?, ?, ? > source : channel.volatileSources )
+				source.releasePins();
+			
+			final int level = channel.getOptimalScaleIndex( viewerTransform );
+			transformedChannels.add( channel.transform( transformType, viewerTransform, screenScaleTransform, level ) );
+			channel.prefetcher.prefetch( viewerTransform, level, display.getWidth(), display.getHeight() );
+		}
+		
+		return new CompositeHierarchyProjector(
+				transformedChannels,
+				screenImage,
+				Runtime.getRuntime().availableProcessors() );
+	}
+	
+	public synchronized void toggleInterpolation()
+	{
+		for ( final Channel< ?, A > channel : channels )
+			channel.toggleInterpolation();
+	}
+}
@@ -0,0 +1,131 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote.viewer;
+
+import java.io.File;
+import java.util.ArrayList;
+
+import net.imglib2.FinalInterval;
+import net.imglib2.display.VolatileRealType;
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.remote.DiskCache;
+import net.imglib2.remote.viewer.OpenConnectomeMultiResolutionHierarchyRenderer.Plane;
+import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.ui.AffineTransformType3D;
+import net.imglib2.ui.InteractiveDisplayCanvasComponent;
+import net.imglib2.ui.PainterThread;
+import net.imglib2.ui.RenderTarget;
+import net.imglib2.ui.Renderer;
+import net.imglib2.ui.RendererFactory;
+import net.imglib2.ui.TransformEventHandler3D;
+import net.imglib2.ui.overlay.BoxOverlayRenderer;
+import net.imglib2.ui.overlay.LogoPainter;
+import net.imglib2.ui.util.Defaults;
+import net.imglib2.ui.viewer.InteractiveRealViewer;
+
+/**
+ * Three synchronized panels showing the <em>xy</em>-, <em>xz</em>- and
+ * <em>yz</em>-planes through the same point of the Open Connectome
+ * dataset of {@link OpenConnectomeViewer}.  All panels render from the
+ * sources of one renderer factory, i.e. they share tiles, caches, fetcher
+ * threads and loaders, and each tile is loaded once.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class OpenConnectomeMultiPanelViewer
+{
+	final static public void main( final String[] args )
+	{
+		final int w = 600, h = 450;
+		final long[][] levelDimensions = OpenConnectomeViewer.levelDimensions;
+		final double[][] levelScales = OpenConnectomeViewer.levelScales;
+		final Plane[] planes = new Plane[]{ Plane.XY, Plane.XZ, Plane.YZ };
+		
+		final AffineTransform3D initial = new AffineTransform3D();
+		initial.set(
+			1.0, 0.0, 0.0, -levelDimensions[ 0 ][ 0 ] * levelScales[ 0 ][ 0 ] / 2.0,
+			0.0, 1.0, 0.0, -levelDimensions[ 0 ][ 1 ] * levelScales[ 0 ][ 1 ] / 2.0,
+			0.0, 0.0, 1.0, -levelDimensions[ 0 ][ 2 ] * levelScales[ 0 ][ 2 ] / 2.0 );
+		
+		final FinalInterval sourceInterval = new FinalInterval(
+				( long )Math.round( levelDimensions[ 0 ][ 0 ] * levelScales[ 0 ][ 0 ] ),
+				( long )Math.round( levelDimensions[ 0 ][ 1 ] * levelScales[ 0 ][ 1 ] ),
+				( long )Math.round( levelDimensions[ 0 ][ 2 ] * levelScales[ 0 ][ 2 ] ) );
+		
+		final ArrayList< InteractiveDisplayCanvasComponent< AffineTransform3D > > canvases = new ArrayList< InteractiveDisplayCanvasComponent< AffineTransform3D > >();
+		for ( int i = 0; i < planes.length; ++i )
+			canvases.add( new InteractiveDisplayCanvasComponent< AffineTransform3D >( w, h, TransformEventHandler3D.factory() ) );
+		
+		/* one factory for all panels */
+		final OpenConnectomeMultiResolutionHierarchyRenderer.Factory< AffineTransform3D > rendererFactory =
+				new OpenConnectomeMultiResolutionHierarchyRenderer.Factory< AffineTransform3D >(
+						new AffineTransformType3D(),
+						canvases.get( 0 ),
+						"http://openconnecto.me/emca/kasthuri11",
+						levelDimensions,
+						levelScales,
+						OpenConnectomeViewer.levelCellDimensions,
+						initial,
+						Defaults.screenScales,
+						Defaults.targetRenderNanos,
+						Defaults.doubleBuffered,
+						Defaults.numRenderingThreads );
+		rendererFactory.setNumRenderers( planes.length );
+		rendererFactory.setCacheBudget( Runtime.getRuntime().maxMemory() / 3 );
+		rendererFactory.setCompressedCacheBytes( Runtime.getRuntime().maxMemory() / 4 );
+//		rendererFactory.setAsyncLoader( new AsyncTileLoader( 256 ) );
+		rendererFactory.setDiskCache( new DiskCache( new File( System.getProperty( "user.home" ), ".imglib2-remote/cache" ), 4l << 30 ) );
+		
+		/* remember the renderer of each panel */
+		final ArrayList< OpenConnectomeMultiResolutionHierarchyRenderer< AffineTransform3D > > renderers = new ArrayList< OpenConnectomeMultiResolutionHierarchyRenderer< AffineTransform3D > >();
+		final RendererFactory< AffineTransform3D > panelFactory = new RendererFactory< AffineTransform3D >()
+		{
+			@Override
+			public Renderer< AffineTransform3D > create( final RenderTarget display, final PainterThread painterThread )
+			{
+				final OpenConnectomeMultiResolutionHierarchyRenderer< AffineTransform3D > renderer = rendererFactory.create( display, painterThread );
+				renderers.add( renderer );
+				return renderer;
+			}
+		};
+		
+		final PanelSynchronizer synchronizer = new PanelSynchronizer();
+		for ( int i = 0; i < planes.length; ++i )
+		{
+			final InteractiveDisplayCanvasComponent< AffineTransform3D > canvas = canvases.get( i );
+			final InteractiveRealViewer< VolatileRealType< UnsignedByteType >, AffineTransform3D, InteractiveDisplayCanvasComponent< AffineTransform3D > > viewer =
+					new InteractiveRealViewer< VolatileRealType< UnsignedByteType >, AffineTransform3D, InteractiveDisplayCanvasComponent< AffineTransform3D > >(
+							AffineTransformType3D.instance,
+							canvas,
+							panelFactory );
+			viewer.getFrame().setTitle( "Open Connectome " + planes[ i ] );
+			viewer.getFrame().setLocation( i * ( w + 16 ), 0 );
+			
+			final BoxOverlayRenderer box = new BoxOverlayRenderer( w, h );
+			box.setSource( sourceInterval, initial );
+			canvas.addTransformListener( box );
+			canvas.addOverlayRenderer( box );
+			canvas.addOverlayRenderer( new LogoPainter() );
+			
+			synchronizer.add( canvas, planes[ i ], renderers.get( i ) );
+		}
+		
+		/* show the orthogonal planes through the center of the first panel */
+		final InteractiveDisplayCanvasComponent< AffineTransform3D > first = canvases.get( 0 );
+		synchronizer.synchronize( 0, first.getTransformEventHandler().getTransform() );
+	}
+}
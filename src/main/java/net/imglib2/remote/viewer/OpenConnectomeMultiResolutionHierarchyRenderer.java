@@ -19,11 +19,13 @@ package net.imglib2.remote.viewer;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
 import java.util.ArrayList;
+import java.util.EnumMap;
 
 import net.imglib2.ExtendedRandomAccessibleInterval;
 import net.imglib2.RandomAccessible;
 import net.imglib2.RealRandomAccessible;
 import net.imglib2.concatenate.Concatenable;
+import net.imglib2.converter.Converter;
 import net.imglib2.display.ARGBScreenImage;
 import net.imglib2.display.RealARGBConverter;
 import net.imglib2.display.VolatileRealType;
@@ -33,7 +35,18 @@ import net.imglib2.interpolation.randomaccess.NearestNeighborInterpolatorFactory
 import net.imglib2.realtransform.AffineGet;
 import net.imglib2.realtransform.AffineSet;
 import net.imglib2.realtransform.RealViews;
+import net.imglib2.remote.AsyncTileLoader;
+import net.imglib2.remote.CacheManager;
+import net.imglib2.remote.CompressedTileCache;
+import net.imglib2.remote.DiskCache;
+import net.imglib2.remote.RateLimiter;
+import net.imglib2.remote.SlabAllocator;
+import net.imglib2.remote.TileLoader;
+import net.imglib2.remote.TileSource;
+import net.imglib2.remote.chunked.ChunkedVolumeTileSource;
+import net.imglib2.remote.openconnectome.OpenConnectomeTileSource;
 import net.imglib2.remote.openconnectome.VolatileOpenConnectomeRandomAccessibleInterval;
+import net.imglib2.remote.viewer.CompositeHierarchyProjector.Blending;
 import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.ui.AbstractMultiResolutionRenderer;
@@ -47,7 +60,9 @@ import net.imglib2.view.Views;
 /**
  * An {@link AbstractMultiResolutionRenderer} for a hierarchy of sources.
  * It considers rendering complete when all pixels were rendered at screen
- * scale level 0 from the optimal hierarchy source. 
+ * scale level 0 from the optimal hierarchy source.  Views of an
+ * axis-aligned {@link Plane} are rendered from a hierarchy with cells that
+ * are thin along the normal of that plane.
  * 
  * @param <A>
  *            transform type
@@ -62,15 +77,106 @@ public class OpenConnectomeMultiResolutionHierarchyRenderer< A extends AffineSet
 		NEAREST_NEIGHBOR, N_LINEAR
 	}
 	
-	public static class Factory< B extends AffineSet & AffineGet & Concatenable< AffineGet > > implements RendererFactory< B >
+	/**
+	 * Axis-aligned planes of the source, each is rendered from cells that
+	 * are thin along its normal.
+	 */
+	static public enum Plane
+	{
+		XY( 2 ), XZ( 1 ), YZ( 0 );
+		
+		/* the source axis orthogonal to the plane */
+		final public int normal;
+		
+		private Plane( final int normal )
+		{
+			this.normal = normal;
+		}
+		
+		/**
+		 * The cell dimensions for this plane, i.e. the dimensions of cells
+		 * for the <em>xy</em>-plane with <em>z</em> and the normal swapped.
+		 * 
+		 * @param xyCellDimensions per level
+		 * @return
+		 */
+		public int[][] cellDimensions( final int[][] xyCellDimensions )
+		{
+			final int[][] cellDimensions = new int[ xyCellDimensions.length ][];
+			for ( int level = 0; level < cellDimensions.length; ++level )
+			{
+				cellDimensions[ level ] = xyCellDimensions[ level ].clone();
+				cellDimensions[ level ][ normal ] = xyCellDimensions[ level ][ 2 ];
+				cellDimensions[ level ][ 2 ] = xyCellDimensions[ level ][ normal ];
+			}
+			return cellDimensions;
+		}
+		
+		/**
+		 * Detect the plane that is shown on screen.
+		 * 
+		 * @param sourceToScreen
+		 * @return the plane or null if the screen is oblique to all planes
+		 */
+		static public Plane detect( final AffineGet sourceToScreen )
+		{
+			/* the screen z-row is the normal of the screen in source coordinates */
+			final double[] normal = new double[ 3 ];
+			double length = 0;
+			for ( int d = 0; d < 3; ++d )
+			{
+				normal[ d ] = sourceToScreen.get( 2, d );
+				length += normal[ d ] * normal[ d ];
+			}
+			length = Math.sqrt( length );
+			for ( final Plane plane : values() )
+				if ( Math.abs( normal[ plane.normal ] ) >= ( 1.0 - planeTolerance ) * length )
+					return plane;
+			return null;
+		}
+	}
+	
+	/* relative deviation of the screen normal from a source axis that is still considered aligned */
+	final static public double planeTolerance = 1e-6;
+	
+	/**
+	 * Provides the levels of a {@link Plane} when it is first rendered, such
+	 * that the levels of planes that are never viewed are not created.
+	 */
+	static public interface PlaneSources
+	{
+		public ArrayList< ExtendedRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, ? > > getSources( final Plane plane );
+		
+		public ArrayList< VolatileOpenConnectomeRandomAccessibleInterval > getVolatileSources( final Plane plane );
+		
+		/**
+		 * Release the pins of the sources of all planes that were created,
+		 * called once per frame by each renderer such that the count of
+		 * {@link VolatileOpenConnectomeRandomAccessibleInterval#setNumRenderers(int)}
+		 * holds for planes that only some renderers show.
+		 */
+		public void releasePins();
+	}
+	
+	public static class Factory< B extends AffineSet & AffineGet & Concatenable< AffineGet > > implements RendererFactory< B >, PlaneSources
 	{
 		final protected AffineTransformType< B > transformType;
 		
 		final protected InteractiveDisplayCanvasComponent< ? > canvas;
 		
-		final ArrayList< ExtendedRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, ? > > sources = new ArrayList< ExtendedRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, ? > >();
+		/* the levels for each plane that was created, oblique views use the XY levels */
+		final EnumMap< Plane, ArrayList< ExtendedRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, ? > > > sources =
+				new EnumMap< Plane, ArrayList< ExtendedRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, ? > > >( Plane.class );
+		final EnumMap< Plane, ArrayList< VolatileOpenConnectomeRandomAccessibleInterval > > planeSources =
+				new EnumMap< Plane, ArrayList< VolatileOpenConnectomeRandomAccessibleInterval > >( Plane.class );
+		
+		/* the levels of all planes that were created */
+		final ArrayList< VolatileOpenConnectomeRandomAccessibleInterval > volatileSources = new ArrayList< VolatileOpenConnectomeRandomAccessibleInterval >();
 		final ArrayList< B > sourceTransforms = new ArrayList< B >();
 		final ArrayList< B > sourceToScreens = new ArrayList< B >();
+		
+		/* distributes the memory for retained tiles over the levels, null if not used */
+		protected CacheManager cacheManager = null;
 		final double[][] levelScales;
 		
 		final protected double[] screenScales;
@@ -81,13 +187,38 @@ public class OpenConnectomeMultiResolutionHierarchyRenderer< A extends AffineSet
 
 		final protected int numRenderingThreads;
 		
+		final protected String baseUrl;
+		
+		/* levels of the xz- and yz-planes are created when they are first rendered */
+		final protected long[][] levelDimensions;
+		final protected int[][][] planeCellDimensions;
+		
+		/* settings for the levels of planes that are created later */
+		protected long compressedCacheBytes = 0;
+		protected long offHeapBytes = 0;
+		protected int retainedTiles = 0;
+		
+		/* backends of the planes that are not read from the server, see setTileSource(Plane, TileSource) */
+		final protected EnumMap< Plane, TileSource< byte[] > > tileSources = new EnumMap< Plane, TileSource< byte[] > >( Plane.class );
+		protected DiskCache diskCache = null;
+		protected TileLoader asyncLoader = null;
+		protected int numRenderers = 1;
+		
+		/**
+		 * Only the levels of the <em>xy</em>-plane are created here, those of
+		 * the <em>xz</em>- and <em>yz</em>-planes when a view of that plane
+		 * is first rendered.
+		 * 
+		 * @param planeCellDimensions the cell dimensions per level for each
+		 * 		{@link Plane}, indexed by its ordinal
+		 */
 		public Factory(
 				final AffineTransformType< B > transformType,
 				final InteractiveDisplayCanvasComponent< ? > canvas,
 				final String baseUrl,
 				final long[][] levelDimensions,
 				final double[][] levelScales,
-				final int[][] levelCellDimensions,
+				final int[][][] planeCellDimensions,
 				final B sourceTransform,
 				final double[] screenScales,
 				final long targetRenderNanos,
@@ -100,6 +231,9 @@ public class OpenConnectomeMultiResolutionHierarchyRenderer< A extends AffineSet
 			this.targetRenderNanos = targetRenderNanos;
 			this.doubleBuffered = doubleBuffered;
 			this.numRenderingThreads = numRenderingThreads;
+			this.baseUrl = baseUrl;
+			this.levelDimensions = levelDimensions;
+			this.planeCellDimensions = planeCellDimensions;
 			this.levelScales = new double[ levelScales.length ][];
 			
 			for ( int level = 0; level < levelScales.length; level++ )
@@ -117,6 +251,28 @@ public class OpenConnectomeMultiResolutionHierarchyRenderer< A extends AffineSet
 				
 				sourceTransforms.add( sourceCopy );
 				
+				final B sourceToScreen = transformType.createTransform();
+				sourceToScreens.add( sourceToScreen );
+			}
+			
+			createPlane( Plane.XY );
+		}
+		
+		/**
+		 * Create the levels of a plane unless they exist and apply the
+		 * settings of this factory.
+		 */
+		synchronized protected void createPlane( final Plane plane )
+		{
+			if ( sources.containsKey( plane ) )
+				return;
+			
+			final int[][] levelCellDimensions = planeCellDimensions[ plane.ordinal() ];
+			final ArrayList< ExtendedRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, ? > > levels =
+					new ArrayList< ExtendedRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, ? > >();
+			final ArrayList< VolatileOpenConnectomeRandomAccessibleInterval > volatileLevels = new ArrayList< VolatileOpenConnectomeRandomAccessibleInterval >();
+			for ( int level = 0; level < levelScales.length; level++ )
+			{
 				final VolatileOpenConnectomeRandomAccessibleInterval source = new VolatileOpenConnectomeRandomAccessibleInterval(
 						baseUrl,
 						levelDimensions[ level ][ 0 ],
@@ -126,21 +282,328 @@ public class OpenConnectomeMultiResolutionHierarchyRenderer< A extends AffineSet
 						levelCellDimensions[ level ][ 1 ],
 						levelCellDimensions[ level ][ 2 ],
 						1, level );
+				configure( source, plane );
+				volatileLevels.add( source );
+				volatileSources.add( source );
 				
 				final ExtendedRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, ? > extendedSource =
 						Views.extendValue( source, new VolatileRealType< UnsignedByteType >( new UnsignedByteType( 127 ), true ) );
-				sources.add( extendedSource );
-				
-				final B sourceToScreen = transformType.createTransform();
-				sourceToScreens.add( sourceToScreen );
+				levels.add( extendedSource );
 			}
+			sources.put( plane, levels );
+			planeSources.put( plane, volatileLevels );
+		}
+		
+		/**
+		 * Apply the settings of this factory to a new level of plane.
+		 */
+		protected void configure( final VolatileOpenConnectomeRandomAccessibleInterval source, final Plane plane )
+		{
+			source.setRetainedTiles( retainedTiles );
+			source.setCompressedCacheBytes( compressedCacheBytes / numSources() );
+			source.setAllocator( offHeapBytes > 0 ?
+					new SlabAllocator( source.getCellWidth() * source.getCellHeight() * source.getCellDepth(), offHeapBytes / numSources() ) :
+					null );
+			final TileSource< byte[] > tileSource = tileSources.get( plane );
+			if ( tileSource != null )
+				source.setTileSource( tileSource );
+			source.setDiskCache( diskCache );
+			source.setAsyncLoader( asyncLoader );
+			source.setNumRenderers( numRenderers );
+			if ( cacheManager != null )
+				cacheManager.add( source, source.getCellWidth() * source.getCellHeight() * source.getCellDepth(), 0.5 / numSources() );
+		}
+		
+		/**
+		 * @return the number of levels of all planes, including planes that
+		 * 		are not created yet, memory limits are divided by it
+		 */
+		protected int numSources()
+		{
+			return levelScales.length * Plane.values().length;
+		}
+		
+		/**
+		 * @return the plane whose levels render views of plane, the
+		 * 		<em>xy</em>-plane if only the <em>xy</em>-plane is read from
+		 * 		another backend because its cells do not fit the other planes
+		 */
+		protected Plane levelsPlane( final Plane plane )
+		{
+			if ( tileSources.containsKey( Plane.XY ) && !tileSources.containsKey( plane ) )
+				return Plane.XY;
+			return plane;
+		}
+		
+		@Override
+		synchronized public ArrayList< ExtendedRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, ? > > getSources( final Plane plane )
+		{
+			final Plane levelsPlane = levelsPlane( plane );
+			createPlane( levelsPlane );
+			return sources.get( levelsPlane );
+		}
+		
+		@Override
+		synchronized public ArrayList< VolatileOpenConnectomeRandomAccessibleInterval > getVolatileSources( final Plane plane )
+		{
+			final Plane levelsPlane = levelsPlane( plane );
+			createPlane( levelsPlane );
+			return planeSources.get( levelsPlane );
+		}
+		
+		@Override
+		synchronized public void releasePins()
+		{
+			for ( final VolatileOpenConnectomeRandomAccessibleInterval source : volatileSources )
+				source.releasePins();
+		}
+		
+		/**
+		 * Views of the <em>xz</em>- and <em>yz</em>-planes are rendered from
+		 * cells with the dimensions of levelCellDimensions and <em>z</em>
+		 * swapped with the normal of the plane, see
+		 * {@link Plane#cellDimensions(int[][])}.
+		 * 
+		 * @param levelCellDimensions cell dimensions per level for views of
+		 * 		the <em>xy</em>-plane and oblique views
+		 */
+		public Factory(
+				final AffineTransformType< B > transformType,
+				final InteractiveDisplayCanvasComponent< ? > canvas,
+				final String baseUrl,
+				final long[][] levelDimensions,
+				final double[][] levelScales,
+				final int[][] levelCellDimensions,
+				final B sourceTransform,
+				final double[] screenScales,
+				final long targetRenderNanos,
+				final boolean doubleBuffered,
+				final int numRenderingThreads )
+		{
+			this(
+					transformType,
+					canvas,
+					baseUrl,
+					levelDimensions,
+					levelScales,
+					new int[][][]{
+							Plane.XY.cellDimensions( levelCellDimensions ),
+							Plane.XZ.cellDimensions( levelCellDimensions ),
+							Plane.YZ.cellDimensions( levelCellDimensions ) },
+					sourceTransform,
+					screenScales,
+					targetRenderNanos,
+					doubleBuffered,
+					numRenderingThreads );
+		}
+		
+		/**
+		 * Keep tiles that the cache policy evicted in compressed form in a
+		 * {@link CompressedTileCache} per level such that they are decoded
+		 * again instead of being loaded again.  Requires a policy, see
+		 * {@link #setRetainedTiles(int)} and {@link #setCacheBudget(long)}.
+		 * 
+		 * @param maxBytes size limit of all levels together, 0 disables the
+		 * 		compressed cache
+		 */
+		synchronized public void setCompressedCacheBytes( final long maxBytes )
+		{
+			compressedCacheBytes = maxBytes;
+			for ( final VolatileOpenConnectomeRandomAccessibleInterval source : volatileSources )
+				source.setCompressedCacheBytes( maxBytes / numSources() );
+		}
+		
+		/**
+		 * Store the pixels of new tiles off-heap in a {@link SlabAllocator}
+		 * per level.
+		 * 
+		 * @param maxBytes size limit of all levels together, 0 stores tiles
+		 * 		on the heap
+		 */
+		synchronized public void setOffHeapBytes( final long maxBytes )
+		{
+			offHeapBytes = maxBytes;
+			for ( final VolatileOpenConnectomeRandomAccessibleInterval source : volatileSources )
+				source.setAllocator( maxBytes > 0 ?
+						new SlabAllocator( source.getCellWidth() * source.getCellHeight() * source.getCellDepth(), maxBytes / numSources() ) :
+						null );
+		}
+		
+		/**
+		 * Retain the most frequently and recently used tiles of each level
+		 * in memory such that flying through the data does not evict the
+		 * tiles that are visited repeatedly.
+		 * 
+		 * @param capacity number of retained tiles per level, 0 leaves
+		 * 		all tiles to the garbage collector
+		 */
+		synchronized public void setRetainedTiles( final int capacity )
+		{
+			retainedTiles = capacity;
+			for ( final VolatileOpenConnectomeRandomAccessibleInterval source : volatileSources )
+				source.setRetainedTiles( capacity );
+		}
+		
+		/**
+		 * Share one memory budget for retained tiles between all levels.
+		 * Half of the budget is reserved in equal parts for each level, which
+		 * keeps the few tiles of the coarse levels resident, the rest is
+		 * distributed by demand.
+		 * 
+		 * @param maxBytes 0 leaves all tiles to the garbage collector
+		 */
+		synchronized public void setCacheBudget( final long maxBytes )
+		{
+			if ( cacheManager != null )
+				cacheManager.stop();
+			cacheManager = null;
+			if ( maxBytes <= 0 )
+			{
+				setRetainedTiles( 0 );
+				return;
+			}
+			
+			cacheManager = new CacheManager( maxBytes );
+			for ( final VolatileOpenConnectomeRandomAccessibleInterval source : volatileSources )
+				cacheManager.add( source, source.getCellWidth() * source.getCellHeight() * source.getCellDepth(), 0.5 / numSources() );
+			cacheManager.start();
+		}
+		
+		public CacheManager getCacheManager()
+		{
+			return cacheManager;
+		}
+		
+		/**
+		 * Read the cells of all levels of the <em>xy</em>-plane from another
+		 * backend, e.g. a local mirror in a {@link ChunkedVolumeTileSource}.
+		 * Views of the <em>xz</em>- and <em>yz</em>-planes are then rendered
+		 * from the <em>xy</em> cells too unless their planes have their own
+		 * backend, see {@link #setTileSource(Plane, TileSource)}.  Set before
+		 * rendering.
+		 * 
+		 * @param tileSource serves all levels, its level index is the level
+		 * 		of the source, its cells must have the dimensions of the
+		 * 		<em>xy</em> cells
+		 */
+		public void setTileSource( final TileSource< byte[] > tileSource )
+		{
+			setTileSource( Plane.XY, tileSource );
+		}
+		
+		/**
+		 * Read the cells of all levels of one plane from another backend.
+		 * Set before rendering.
+		 * 
+		 * @param plane
+		 * @param tileSource serves all levels, its cells must have the
+		 * 		dimensions of the cells of plane and its tile names must
+		 * 		differ from those of the other planes in a shared
+		 * 		{@link DiskCache}, e.g. a {@link ChunkedVolumeTileSource} with
+		 * 		the block dimensions of plane, null to read the plane from the
+		 * 		server
+		 */
+		synchronized public void setTileSource( final Plane plane, final TileSource< byte[] > tileSource )
+		{
+			if ( tileSource == null )
+				tileSources.remove( plane );
+			else
+				tileSources.put( plane, tileSource );
+			final ArrayList< VolatileOpenConnectomeRandomAccessibleInterval > levels = planeSources.get( plane );
+			if ( levels != null )
+				for ( final VolatileOpenConnectomeRandomAccessibleInterval source : levels )
+					source.setTileSource( tileSource == null ?
+							new OpenConnectomeTileSource( baseUrl, source.getCellWidth(), source.getCellHeight(), source.getCellDepth(), 1 ) :
+							tileSource );
+		}
+		
+		/**
+		 * Keep the raw tiles of all levels in a {@link DiskCache} such that
+		 * memory misses and restarts do not go back to the server.
+		 * 
+		 * @param diskCache null disables the disk cache
+		 */
+		synchronized public void setDiskCache( final DiskCache diskCache )
+		{
+			this.diskCache = diskCache;
+			for ( final VolatileOpenConnectomeRandomAccessibleInterval source : volatileSources )
+				source.setDiskCache( diskCache );
+		}
+		
+		/**
+		 * Load tiles of all levels by one {@link TileLoader}, e.g. an
+		 * {@link AsyncTileLoader}, such that
+		 * many tiles are in flight at a time on high latency links.
+		 * 
+		 * @param asyncLoader null loads tiles one by one per level
+		 */
+		synchronized public void setAsyncLoader( final TileLoader asyncLoader )
+		{
+			this.asyncLoader = asyncLoader;
+			for ( final VolatileOpenConnectomeRandomAccessibleInterval source : volatileSources )
+				source.setAsyncLoader( asyncLoader );
+		}
+		
+		/**
+		 * Limit the rate of requests to the host of the dataset, shared by
+		 * all levels and all sources on the same host, see
+		 * {@link RateLimiter}.
+		 * 
+		 * @param requestsPerSecond 0 removes the limit
+		 * @param burst number of requests that can be sent at once
+		 */
+		public void setRateLimit( final double requestsPerSecond, final int burst )
+		{
+			RateLimiter.getDefault().setRate( RateLimiter.host( baseUrl ), requestsPerSecond, burst );
+		}
+		
+		/**
+		 * Let several renderers, e.g. the panels of a multi-panel viewer,
+		 * render from the sources of this factory, i.e. share their tiles,
+		 * caches and loaders.  Each renderer keeps the tiles of its last
+		 * frame pinned.
+		 * 
+		 * @param numRenderers the number of renderers created by this
+		 * 		factory
+		 */
+		synchronized public void setNumRenderers( final int numRenderers )
+		{
+			this.numRenderers = numRenderers;
+			for ( final VolatileOpenConnectomeRandomAccessibleInterval source : volatileSources )
+				source.setNumRenderers( numRenderers );
+		}
+		
+		/**
+		 * A channel of the levels of the <em>xy</em>-plane for a
+		 * {@link CompositeMultiResolutionRenderer}, e.g. to overlay this
+		 * dataset with others.
+		 * 
+		 * @param converter
+		 * @param blending
+		 * @return
+		 */
+		public CompositeMultiResolutionRenderer.Channel< VolatileRealType< UnsignedByteType >, B > createChannel(
+				final Converter< ? super VolatileRealType< UnsignedByteType >, ARGBType > converter,
+				final Blending blending )
+		{
+			final double[] xScales = new double[ levelScales.length ];
+			for ( int level = 0; level < xScales.length; ++level )
+				xScales[ level ] = levelScales[ level ][ 0 ];
+			return new CompositeMultiResolutionRenderer.Channel< VolatileRealType< UnsignedByteType >, B >(
+					transformType,
+					getSources( Plane.XY ),
+					getVolatileSources( Plane.XY ),
+					sourceTransforms,
+					xScales,
+					converter,
+					blending );
 		}
 		
 		@Override
 		public OpenConnectomeMultiResolutionHierarchyRenderer< B > create( final RenderTarget display, final PainterThread painterThread )
 		{
 			final OpenConnectomeMultiResolutionHierarchyRenderer< B > renderer = new OpenConnectomeMultiResolutionHierarchyRenderer< B >(
-					sources,
+					this,
 					sourceTransforms,
 					sourceToScreens,
 					levelScales,
@@ -152,8 +615,12 @@ public class OpenConnectomeMultiResolutionHierarchyRenderer< A extends AffineSet
 					doubleBuffered,
 					numRenderingThreads );
 			
+			/* the canvas of this renderer if several renderers are created for several canvases */
+			final InteractiveDisplayCanvasComponent< ? > target = display instanceof InteractiveDisplayCanvasComponent ?
+					( InteractiveDisplayCanvasComponent< ? > )display : canvas;
+			
 			// add KeyHandler for toggling interpolation
-			canvas.addHandler( new KeyAdapter() {
+			target.addHandler( new KeyAdapter() {
 				@Override
 				public void keyPressed( final KeyEvent e )
 				{
@@ -162,6 +629,11 @@ public class OpenConnectomeMultiResolutionHierarchyRenderer< A extends AffineSet
 						renderer.toggleInterpolation();
 						renderer.requestRepaint();
 					}
+					else if ( e.getKeyCode() == KeyEvent.VK_O )
+					{
+						renderer.setOrthogonalCells( !renderer.isOrthogonalCells() );
+						renderer.requestRepaint();
+					}
 				}
 			});
 			
@@ -169,12 +641,32 @@ public class OpenConnectomeMultiResolutionHierarchyRenderer< A extends AffineSet
 		}		
 	}
 	
-	/* original sources */
-	final protected ArrayList< ExtendedRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, ? > > sources = new ArrayList< ExtendedRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, ? > >();
+	/* creates the sources of a plane when it is first rendered */
+	final protected PlaneSources planeSources;
+	
+	/* original sources for each plane that was rendered */
+	final protected EnumMap< Plane, ArrayList< ExtendedRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, ? > > > sources =
+			new EnumMap< Plane, ArrayList< ExtendedRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, ? > > >( Plane.class );
 	final protected ArrayList< A > sourceTransforms = new ArrayList< A >();
 	final protected ArrayList< A > sourceToScreens = new ArrayList< A >();
 	final double[][] levelScales;
 	
+	/* the sources for each plane that was rendered, pins are released for each frame */
+	final protected EnumMap< Plane, ArrayList< VolatileOpenConnectomeRandomAccessibleInterval > > volatileSources =
+			new EnumMap< Plane, ArrayList< VolatileOpenConnectomeRandomAccessibleInterval > >( Plane.class );
+	
+	/* predicts and prefetches the next views for each plane */
+	final protected EnumMap< Plane, Prefetcher< A > > prefetchers = new EnumMap< Plane, Prefetcher< A > >( Plane.class );
+	
+	/* render views of the xz- and yz-planes from the cells of that plane */
+	protected boolean orthogonalCells = true;
+	
+	/* the plane whose sources are rendered */
+	protected Plane plane = Plane.XY;
+	
+	/* prefetch the neighborhood and predicted next view */
+	protected boolean prefetching = true;
+	
 	/* transformed sources */
 	final protected ArrayList< RandomAccessible< VolatileRealType< UnsignedByteType > > > transformedSources = new ArrayList< RandomAccessible< VolatileRealType< UnsignedByteType > > >();
 	
@@ -183,7 +675,7 @@ public class OpenConnectomeMultiResolutionHierarchyRenderer< A extends AffineSet
 	protected InterpolatorFactory< VolatileRealType< UnsignedByteType >, RandomAccessible< VolatileRealType< UnsignedByteType > > > interpolatorFactory = new NearestNeighborInterpolatorFactory< VolatileRealType<UnsignedByteType> >();
 	
 	public OpenConnectomeMultiResolutionHierarchyRenderer(
-			final ArrayList< ExtendedRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, ? > > sources,
+			final PlaneSources planeSources,
 			final ArrayList< A > sourceTransforms,
 			final ArrayList< A > sourceToScreens,
 			final double[][] levelScales,
@@ -196,10 +688,144 @@ public class OpenConnectomeMultiResolutionHierarchyRenderer< A extends AffineSet
 			final int numRenderingThreads )
 	{
 		super( transformType, display, painterThread, screenScales, targetRenderNanos, doubleBuffered, numRenderingThreads );
-		this.sources.addAll( sources );
+		this.planeSources = planeSources;
 		this.sourceTransforms.addAll( sourceTransforms );
 		this.sourceToScreens.addAll( sourceToScreens );
 		this.levelScales = levelScales;
+		addPlane( Plane.XY );
+	}
+	
+	public OpenConnectomeMultiResolutionHierarchyRenderer(
+			final EnumMap< Plane, ArrayList< ExtendedRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, ? > > > sources,
+			final EnumMap< Plane, ArrayList< VolatileOpenConnectomeRandomAccessibleInterval > > volatileSources,
+			final ArrayList< A > sourceTransforms,
+			final ArrayList< A > sourceToScreens,
+			final double[][] levelScales,
+			final AffineTransformType< A > transformType,
+			final RenderTarget display,
+			final PainterThread painterThread,
+			final double[] screenScales,
+			final long targetRenderNanos,
+			final boolean doubleBuffered,
+			final int numRenderingThreads )
+	{
+		this(
+				new PlaneSources()
+				{
+					@Override
+					public ArrayList< ExtendedRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, ? > > getSources( final Plane plane )
+					{
+						return sources.get( plane );
+					}
+					
+					@Override
+					public ArrayList< VolatileOpenConnectomeRandomAccessibleInterval > getVolatileSources( final Plane plane )
+					{
+						return volatileSources.get( plane );
+					}
+					
+					@Override
+					public void releasePins()
+					{
+						for ( final ArrayList< VolatileOpenConnectomeRandomAccessibleInterval > levels : volatileSources.values() )
+							for ( final VolatileOpenConnectomeRandomAccessibleInterval source : levels )
+								source.releasePins();
+					}
+				},
+				sourceTransforms,
+				sourceToScreens,
+				levelScales,
+				transformType,
+				display,
+				painterThread,
+				screenScales,
+				targetRenderNanos,
+				doubleBuffered,
+				numRenderingThreads );
+	}
+	
+	/**
+	 * Get the sources of a plane from {@link #planeSources} unless it was
+	 * rendered before and set up its {@link Prefetcher}.
+	 */
+	synchronized protected void addPlane( final Plane plane )
+	{
+		if ( sources.containsKey( plane ) )
+			return;
+		
+		final ArrayList< VolatileOpenConnectomeRandomAccessibleInterval > levels = planeSources.getVolatileSources( plane );
+		sources.put( plane, planeSources.getSources( plane ) );
+		volatileSources.put( plane, levels );
+		final Prefetcher< A > prefetcher = new Prefetcher< A >( transformType, levels, sourceTransforms );
+		prefetcher.setNormalAxis( plane.normal );
+		prefetchers.put( plane, prefetcher );
+		for ( final VolatileOpenConnectomeRandomAccessibleInterval source : levels )
+			source.setPinning( true );
+	}
+	
+	/**
+	 * @return the {@link Prefetcher} of views of the <em>xy</em>-plane and
+	 * 		oblique views
+	 */
+	public Prefetcher< A > getPrefetcher()
+	{
+		return prefetchers.get( Plane.XY );
+	}
+	
+	synchronized public Prefetcher< A > getPrefetcher( final Plane plane )
+	{
+		addPlane( plane );
+		return prefetchers.get( plane );
+	}
+	
+	public boolean isPrefetching()
+	{
+		return prefetching;
+	}
+	
+	/**
+	 * Enable or disable prefetching, e.g. disable it for panels of a
+	 * multi-panel viewer that the user is not navigating in, such that
+	 * their prefetch requests do not compete with the active panel.
+	 * Visible tiles are always loaded before prefetched tiles.
+	 * 
+	 * @param prefetching
+	 */
+	public void setPrefetching( final boolean prefetching )
+	{
+		this.prefetching = prefetching;
+	}
+	
+	public boolean isOrthogonalCells()
+	{
+		return orthogonalCells;
+	}
+	
+	/**
+	 * Render views of the <em>xz</em>- and <em>yz</em>-planes from cells
+	 * that are thin along the normal of the plane instead of the cells of
+	 * the <em>xy</em>-plane, such that each screen row does not cut through
+	 * a new row of cells.
+	 * 
+	 * @param orthogonalCells
+	 */
+	public void setOrthogonalCells( final boolean orthogonalCells )
+	{
+		this.orthogonalCells = orthogonalCells;
+	}
+	
+	/**
+	 * @return the plane whose sources are rendered for viewerTransform
+	 */
+	protected Plane detectPlane( final A viewerTransform )
+	{
+		if ( !orthogonalCells )
+			return Plane.XY;
+		final A sourceToScreen = transformType.createTransform();
+		sourceToScreen.concatenate( viewerTransform );
+		sourceToScreen.concatenate( sourceTransforms.get( 0 ) );
+		final Plane plane = Plane.detect( sourceToScreen );
+		return plane == null ? Plane.XY : plane;
 	}
 	
 	protected synchronized int getOptimalScaleIndex( final A viewerTransform )
@@ -239,6 +865,7 @@ public class OpenConnectomeMultiResolutionHierarchyRenderer< A extends AffineSet
 		transformedSources.clear();
 		sourceToScreens.clear();
 		
+		final ArrayList< ExtendedRandomAccessibleInterval< VolatileRealType< UnsignedByteType >, ? > > sources = this.sources.get( plane );
 		for ( int level = getOptimalScaleIndex( viewerTransform ); level < sources.size(); level++ )
 		{
 			final A sourceToScreen = transformType.createTransform();
@@ -258,7 +885,14 @@ public class OpenConnectomeMultiResolutionHierarchyRenderer< A extends AffineSet
 			final A screenScaleTransform,
 			final ARGBScreenImage screenImage )
 	{
+		plane = detectPlane( viewerTransform );
+		
+		/* tiles of the last frame stay pinned until this one is painted */
+		planeSources.releasePins();
+		addPlane( plane );
 		interpolateAndTransform( viewerTransform, screenScaleTransform );
+		if ( prefetching )
+			getPrefetcher( plane ).prefetch( viewerTransform, getOptimalScaleIndex( viewerTransform ), display.getWidth(), display.getHeight() );
 		
 		final VolatileHierarchyProjector< UnsignedByteType, VolatileRealType< UnsignedByteType >, ARGBType > p =
 				new VolatileHierarchyProjector< UnsignedByteType, VolatileRealType< UnsignedByteType >, ARGBType >(
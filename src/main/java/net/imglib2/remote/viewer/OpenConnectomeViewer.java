@@ -37,9 +37,12 @@
 
 package net.imglib2.remote.viewer;
 
+import java.io.File;
+
 import net.imglib2.FinalInterval;
 import net.imglib2.display.VolatileRealType;
 import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.remote.DiskCache;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
 import net.imglib2.ui.AffineTransformType3D;
 import net.imglib2.ui.InteractiveDisplayCanvasComponent;
@@ -139,6 +142,9 @@ public class OpenConnectomeViewer
 						Defaults.targetRenderNanos,
 						Defaults.doubleBuffered,
 						Defaults.numRenderingThreads );
+		rendererFactory.setCacheBudget( Runtime.getRuntime().maxMemory() / 3 );
+		rendererFactory.setCompressedCacheBytes( Runtime.getRuntime().maxMemory() / 4 );
+		rendererFactory.setDiskCache( new DiskCache( new File( System.getProperty( "user.home" ), ".imglib2-remote/cache" ), 4l << 30 ) );
 		
 		
 		final InteractiveRealViewer< VolatileRealType< UnsignedByteType >, AffineTransform3D, InteractiveDisplayCanvasComponent< AffineTransform3D > > viewer =
@@ -0,0 +1,199 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote.viewer;
+
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.util.ArrayList;
+
+import net.imglib2.realtransform.AffineTransform3D;
+import net.imglib2.remote.viewer.OpenConnectomeMultiResolutionHierarchyRenderer.Plane;
+import net.imglib2.ui.InteractiveDisplayCanvasComponent;
+import net.imglib2.ui.TransformListener;
+
+/**
+ * <p>Keeps the panels of a multi-panel viewer at the same point and scale,
+ * each panel showing its own axis-aligned {@link Plane} through that
+ * point.  When the user navigates in a panel, the point at the center of
+ * that panel becomes the center of all other panels.</p>
+ *
+ * <p>The panel that the user navigates in or that the mouse is over is the
+ * active panel.  Only the active panel prefetches, all panels load their
+ * visible tiles, which are loaded before prefetched tiles.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class PanelSynchronizer
+{
+	final protected ArrayList< InteractiveDisplayCanvasComponent< AffineTransform3D > > canvases = new ArrayList< InteractiveDisplayCanvasComponent< AffineTransform3D > >();
+	final protected ArrayList< Plane > planes = new ArrayList< Plane >();
+	final protected ArrayList< OpenConnectomeMultiResolutionHierarchyRenderer< AffineTransform3D > > renderers = new ArrayList< OpenConnectomeMultiResolutionHierarchyRenderer< AffineTransform3D > >();
+	
+	/* set while other panels are updated, their transform changes are not propagated */
+	protected boolean synchronizing = false;
+	
+	protected int active = -1;
+	
+	/**
+	 * Add a panel.
+	 * 
+	 * @param canvas
+	 * @param plane the plane that the panel shows
+	 * @param renderer the renderer of the panel
+	 */
+	synchronized public void add(
+			final InteractiveDisplayCanvasComponent< AffineTransform3D > canvas,
+			final Plane plane,
+			final OpenConnectomeMultiResolutionHierarchyRenderer< AffineTransform3D > renderer )
+	{
+		final int i = canvases.size();
+		canvases.add( canvas );
+		planes.add( plane );
+		renderers.add( renderer );
+		renderer.setPrefetching( active < 0 );
+		if ( active < 0 )
+			active = i;
+		
+		canvas.addTransformListener( new TransformListener< AffineTransform3D >()
+		{
+			@Override
+			public void transformChanged( final AffineTransform3D transform )
+			{
+				synchronize( i, transform );
+			}
+		} );
+		canvas.addMouseListener( new MouseAdapter()
+		{
+			@Override
+			public void mouseEntered( final MouseEvent e )
+			{
+				activate( i );
+			}
+		} );
+	}
+	
+	/**
+	 * Make panel i the active panel.
+	 */
+	synchronized public void activate( final int i )
+	{
+		if ( i == active )
+			return;
+		active = i;
+		for ( int j = 0; j < renderers.size(); ++j )
+			renderers.get( j ).setPrefetching( j == i );
+	}
+	
+	synchronized public int getActive()
+	{
+		return active;
+	}
+	
+	/**
+	 * Center all panels but panel i at the point at the center of panel i.
+	 * 
+	 * @param i
+	 * @param transform the viewer transform of panel i
+	 */
+	synchronized protected void synchronize( final int i, final AffineTransform3D transform )
+	{
+		if ( synchronizing )
+			return;
+		
+		activate( i );
+		synchronizing = true;
+		try
+		{
+			final InteractiveDisplayCanvasComponent< AffineTransform3D > canvas = canvases.get( i );
+			final double[] center = new double[ 3 ];
+			transform.applyInverse( center, new double[]{ 0.5 * canvas.getWidth(), 0.5 * canvas.getHeight(), 0 } );
+			
+			double scale = 0;
+			for ( int r = 0; r < 3; ++r )
+				scale += transform.get( r, 0 ) * transform.get( r, 0 );
+			scale = Math.sqrt( scale );
+			
+			for ( int j = 0; j < canvases.size(); ++j )
+			{
+				if ( j == i )
+					continue;
+				final InteractiveDisplayCanvasComponent< AffineTransform3D > other = canvases.get( j );
+				final AffineTransform3D otherTransform = orthogonalTransform(
+						planes.get( j ),
+						center,
+						scale,
+						0.5 * other.getWidth(),
+						0.5 * other.getHeight() );
+				other.getTransformEventHandler().setTransform( otherTransform );
+				other.transformChanged( otherTransform );
+			}
+		}
+		finally
+		{
+			synchronizing = false;
+		}
+	}
+	
+	/**
+	 * The viewer transform that shows plane at the given scale with center
+	 * at the screen position (cx, cy).
+	 * 
+	 * @param plane
+	 * @param center in global coordinates
+	 * @param scale
+	 * @param cx
+	 * @param cy
+	 * @return
+	 */
+	static public AffineTransform3D orthogonalTransform(
+			final Plane plane,
+			final double[] center,
+			final double scale,
+			final double cx,
+			final double cy )
+	{
+		/* rows are the screen axes in global coordinates */
+		final double[][] rotation;
+		switch ( plane )
+		{
+		case XZ:
+			rotation = new double[][]{ { 1, 0, 0 }, { 0, 0, 1 }, { 0, -1, 0 } };
+			break;
+		case YZ:
+			rotation = new double[][]{ { 0, 0, 1 }, { 0, 1, 0 }, { -1, 0, 0 } };
+			break;
+		default:
+			rotation = new double[][]{ { 1, 0, 0 }, { 0, 1, 0 }, { 0, 0, 1 } };
+		}
+		
+		final double[] screenCenter = new double[]{ cx, cy, 0 };
+		final double[] m = new double[ 12 ];
+		for ( int r = 0; r < 3; ++r )
+		{
+			double t = screenCenter[ r ];
+			for ( int c = 0; c < 3; ++c )
+			{
+				m[ 4 * r + c ] = scale * rotation[ r ][ c ];
+				t -= scale * rotation[ r ][ c ] * center[ c ];
+			}
+			m[ 4 * r + 3 ] = t;
+		}
+		final AffineTransform3D transform = new AffineTransform3D();
+		transform.set( m );
+		return transform;
+	}
+}
@@ -0,0 +1,200 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote.viewer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.imglib2.concatenate.Concatenable;
+import net.imglib2.realtransform.AffineGet;
+import net.imglib2.realtransform.AffineSet;
+import net.imglib2.remote.Prefetchable;
+import net.imglib2.ui.AffineTransformType;
+
+/**
+ * <p>Predicts the next views of a hierarchy renderer and asks the
+ * {@link Prefetchable} sources to load them in the background.</p>
+ *
+ * <p>The viewer transform is extrapolated linearly from its last change,
+ * i.e. panning, zooming or scrolling at constant speed will find the next
+ * view loaded already.  Additionally, the <em>z</em>&plusmn;<em>k</em>
+ * neighborhood of the current view is queued such that stepping through
+ * slices does not start cold.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class Prefetcher< A extends AffineSet & AffineGet & Concatenable< AffineGet > >
+{
+	final protected AffineTransformType< A > transformType;
+	final protected ArrayList< Prefetchable > sources = new ArrayList< Prefetchable >();
+	final protected List< A > sourceTransforms;
+	
+	/* number of neighboring cells in z to prefetch on either side */
+	protected int neighborRadius = 1;
+	
+	/* source axis along which neighboring slices are prefetched, the normal of the viewed plane */
+	protected int normalAxis = 2;
+	
+	/* a motion that stopped longer ago than this is not extrapolated */
+	protected long maxMotionNanos = 500000000l;
+	
+	protected A current = null;
+	protected A previous = null;
+	protected long lastChangeNanos = 0;
+	
+	/**
+	 * @param transformType
+	 * @param sources one {@link Prefetchable} per hierarchy level
+	 * @param sourceTransforms source to global transform for each hierarchy
+	 * 		level, the list is read at each call of {@link #prefetch} and can
+	 * 		thus be shared with the renderer
+	 */
+	public Prefetcher(
+			final AffineTransformType< A > transformType,
+			final List< ? extends Prefetchable > sources,
+			final List< A > sourceTransforms )
+	{
+		this.transformType = transformType;
+		this.sources.addAll( sources );
+		this.sourceTransforms = sourceTransforms;
+	}
+	
+	public int getNeighborRadius()
+	{
+		return neighborRadius;
+	}
+	
+	public void setNeighborRadius( final int neighborRadius )
+	{
+		this.neighborRadius = neighborRadius;
+	}
+	
+	public int getNormalAxis()
+	{
+		return normalAxis;
+	}
+	
+	/**
+	 * Prefetch neighboring slices along another source axis, e.g.
+	 * <em>y</em> for views of the <em>xz</em>-plane.
+	 * 
+	 * @param normalAxis
+	 */
+	public void setNormalAxis( final int normalAxis )
+	{
+		this.normalAxis = normalAxis;
+	}
+	
+	/**
+	 * Queue the predicted next view and the <em>z</em>&plusmn;<em>k</em>
+	 * cells neighborhood of the current view for background loading at
+	 * the given hierarchy level.
+	 *
+	 * @param viewerTransform global to screen
+	 * @param level hierarchy level that is rendered
+	 * @param width screen width
+	 * @param height screen height
+	 */
+	public synchronized void prefetch( final A viewerTransform, final int level, final int width, final int height )
+	{
+		if ( level < 0 || level >= sources.size() )
+			return;
+		
+		final double[] viewer = viewerTransform.getRowPackedCopy();
+		final long t = System.nanoTime();
+		if ( current == null || !Arrays.equals( current.getRowPackedCopy(), viewer ) )
+		{
+			previous = current;
+			current = transformType.createTransform();
+			transformType.set( current, viewerTransform );
+			lastChangeNanos = t;
+		}
+		
+		final A sourceTransform = sourceTransforms.get( level );
+		final Prefetchable prefetchable = sources.get( level );
+		
+		/* neighborhood of the current view, neighborRadius cells on either side */
+		final int n = viewerTransform.numDimensions();
+		final int dz = normalAxis < n ? neighborRadius * prefetchable.getCellDimension( normalAxis ) : 0;
+		final long[][] bounds = screenBounds( sourceToScreen( current, sourceTransform ), n, width, height, dz, normalAxis );
+		prefetchable.prefetch( bounds[ 0 ], bounds[ 1 ] );
+		
+		/* predicted next view, queued last because the prefetch queue is processed LIFO */
+		if ( previous != null && t - lastChangeNanos < maxMotionNanos )
+		{
+			final double[] c = current.getRowPackedCopy();
+			final double[] p = previous.getRowPackedCopy();
+			final double[] predictedValues = new double[ c.length ];
+			for ( int i = 0; i < predictedValues.length; ++i )
+				predictedValues[ i ] = 2 * c[ i ] - p[ i ];
+			final A predicted = transformType.createTransform();
+			predicted.set( predictedValues );
+			
+			final long[][] predictedBounds = screenBounds( sourceToScreen( predicted, sourceTransform ), n, width, height, 0, normalAxis );
+			prefetchable.prefetch( predictedBounds[ 0 ], predictedBounds[ 1 ] );
+		}
+	}
+	
+	protected A sourceToScreen( final A viewerTransform, final A sourceTransform )
+	{
+		final A sourceToScreen = transformType.createTransform();
+		sourceToScreen.concatenate( viewerTransform );
+		sourceToScreen.concatenate( sourceTransform );
+		return sourceToScreen;
+	}
+	
+	/**
+	 * Bounding box in source coordinates of the screen rectangle at screen
+	 * <em>z</em>=0, expanded by <code>dz</code> along the source's
+	 * <code>axis</code>.  The result is packed as {min, max}.
+	 */
+	static protected long[][] screenBounds( final AffineGet sourceToScreen, final int n, final int width, final int height, final int dz, final int axis )
+	{
+		final double[] min = new double[ n ];
+		final double[] max = new double[ n ];
+		Arrays.fill( min, Double.MAX_VALUE );
+		Arrays.fill( max, -Double.MAX_VALUE );
+		
+		final double[] corner = new double[ n ];
+		final double[] sourceCorner = new double[ n ];
+		for ( int i = 0; i < 4; ++i )
+		{
+			corner[ 0 ] = ( i & 1 ) == 0 ? 0 : width;
+			corner[ 1 ] = ( i & 2 ) == 0 ? 0 : height;
+			sourceToScreen.applyInverse( sourceCorner, corner );
+			for ( int d = 0; d < n; ++d )
+			{
+				min[ d ] = Math.min( min[ d ], sourceCorner[ d ] );
+				max[ d ] = Math.max( max[ d ], sourceCorner[ d ] );
+			}
+		}
+		
+		final long[][] bounds = new long[ 2 ][ n ];
+		for ( int d = 0; d < n; ++d )
+		{
+			bounds[ 0 ][ d ] = ( long )Math.floor( min[ d ] );
+			bounds[ 1 ][ d ] = ( long )Math.ceil( max[ d ] );
+		}
+		if ( axis < n )
+		{
+			bounds[ 0 ][ axis ] -= dz;
+			bounds[ 1 ][ axis ] += dz;
+		}
+		return bounds;
+	}
+}
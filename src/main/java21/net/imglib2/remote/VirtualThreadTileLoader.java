@@ -0,0 +1,168 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * <p>Loads tiles with one virtual thread per request.  Each request is a
+ * plain blocking {@link HttpTileClient} call that only parks its virtual
+ * thread while it waits for the server, so thousands of requests can be
+ * in flight without a selector loop or a large thread pool.  The number of
+ * requests in flight is bounded by a {@link Semaphore}:
+ * {@link #submit(String, int, Callback)} blocks while all permits are
+ * taken.  Callbacks run on the virtual thread of their request.</p>
+ *
+ * <p>Requires Java 21 and is only built by the java21 profile, see
+ * <code>mvn -Pjava21</code>.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class VirtualThreadTileLoader implements TileLoader
+{
+	final protected int maxInFlight;
+	final protected Semaphore slots;
+	final protected HttpTileClient client;
+	final protected ExecutorService executor;
+	
+	/* statistics */
+	protected long requests = 0;
+	protected long failures = 0;
+	protected long bytes = 0;
+	
+	/**
+	 * @param maxInFlight maximum number of requests in flight
+	 * @param client the client that loads the tiles, its number of
+	 * 		connections per host should not be smaller than maxInFlight
+	 */
+	public VirtualThreadTileLoader( final int maxInFlight, final HttpTileClient client )
+	{
+		this.maxInFlight = maxInFlight;
+		this.client = client;
+		slots = new Semaphore( maxInFlight, true );
+		executor = Executors.newThreadPerTaskExecutor( Thread.ofVirtual().name( "tile-loader-", 0 ).factory() );
+	}
+	
+	/**
+	 * Create a loader with its own {@link HttpTileClient} that opens up to
+	 * maxInFlight connections per host.
+	 * 
+	 * @param maxInFlight
+	 */
+	public VirtualThreadTileLoader( final int maxInFlight )
+	{
+		this( maxInFlight, new HttpTileClient() );
+		client.setMaxConnectionsPerHost( maxInFlight );
+	}
+	
+	public int getMaxInFlight()
+	{
+		return maxInFlight;
+	}
+	
+	public int getInFlight()
+	{
+		return maxInFlight - slots.availablePermits();
+	}
+	
+	public HttpTileClient getClient()
+	{
+		return client;
+	}
+	
+	@Override
+	public void submit( final String urlString, final int priority, final Callback callback ) throws InterruptedException
+	{
+		slots.acquire();
+		try
+		{
+			executor.execute( new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						load( urlString, priority, callback );
+					}
+					finally
+					{
+						slots.release();
+					}
+				}
+			} );
+		}
+		catch ( final RejectedExecutionException e )
+		{
+			slots.release();
+			callback.failed( new IOException( "loader is shut down" ) );
+		}
+	}
+	
+	protected void load( final String urlString, final int priority, final Callback callback )
+	{
+		final byte[] tileBytes;
+		try
+		{
+			tileBytes = client.get( urlString, priority );
+		}
+		catch ( final IOException e )
+		{
+			synchronized ( this )
+			{
+				++requests;
+				++failures;
+			}
+			callback.failed( e );
+			return;
+		}
+		synchronized ( this )
+		{
+			++requests;
+			bytes += tileBytes.length;
+		}
+		callback.loaded( tileBytes );
+	}
+	
+	/**
+	 * Stop loading.  Pending requests are interrupted and fail.
+	 */
+	@Override
+	public void shutdown()
+	{
+		executor.shutdownNow();
+	}
+	
+	synchronized public long getRequests()
+	{
+		return requests;
+	}
+	
+	synchronized public long getFailures()
+	{
+		return failures;
+	}
+	
+	synchronized public long getBytes()
+	{
+		return bytes;
+	}
+}
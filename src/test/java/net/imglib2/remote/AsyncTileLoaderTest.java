@@ -0,0 +1,266 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests {@link AsyncTileLoader} against a {@link LocalHttpServer} for each
+ * response framing, pipelining, retries after connection resets, and
+ * timeouts.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class AsyncTileLoaderTest
+{
+	final static protected int tileSize = 16 * 1024;
+	
+	/**
+	 * Collects the results of a request.
+	 */
+	static protected class Result implements TileLoader.Callback
+	{
+		final protected CountDownLatch done = new CountDownLatch( 1 );
+		protected byte[] bytes = null;
+		protected IOException e = null;
+		
+		@Override
+		public void loaded( final byte[] bytes )
+		{
+			this.bytes = bytes;
+			done.countDown();
+		}
+		
+		@Override
+		public void failed( final IOException e )
+		{
+			this.e = e;
+			done.countDown();
+		}
+		
+		public void await() throws InterruptedException
+		{
+			assertTrue( "no result", done.await( 10, TimeUnit.SECONDS ) );
+		}
+	}
+	
+	protected LocalHttpServer server = null;
+	protected AsyncTileLoader loader = null;
+	
+	@After
+	public void tearDown()
+	{
+		if ( loader != null )
+			loader.shutdown();
+		if ( server != null )
+			server.stop();
+	}
+	
+	protected Result[] load( final int numTiles ) throws InterruptedException
+	{
+		final Result[] results = new Result[ numTiles ];
+		for ( int i = 0; i < numTiles; ++i )
+		{
+			results[ i ] = new Result();
+			loader.submit( server.getBaseUrl() + "tile/" + i, results[ i ] );
+		}
+		for ( int i = 0; i < numTiles; ++i )
+		{
+			results[ i ].await();
+			assertNull( "tile " + i + " failed: " + results[ i ].e, results[ i ].e );
+			assertArrayEquals( "tile " + i, LocalHttpServer.tile( "/tile/" + i, tileSize ), results[ i ].bytes );
+		}
+		return results;
+	}
+	
+	@Test
+	public void testContentLength() throws Exception
+	{
+		server = new LocalHttpServer( new LocalHttpServer.Handler()
+		{
+			@Override
+			public boolean respond( final String path, final Socket socket, final OutputStream out ) throws IOException
+			{
+				LocalHttpServer.writeContentLength( out, 200, LocalHttpServer.tile( path, tileSize ) );
+				return true;
+			}
+		} );
+		loader = new AsyncTileLoader( 16, 2, 1, 2 );
+		load( 50 );
+		assertEquals( 50, loader.getRequests() );
+		assertEquals( 50l * tileSize, loader.getBytes() );
+		assertTrue( "connections must be kept alive", server.getNumConnections() <= 2 );
+	}
+	
+	@Test
+	public void testChunked() throws Exception
+	{
+		server = new LocalHttpServer( new LocalHttpServer.Handler()
+		{
+			@Override
+			public boolean respond( final String path, final Socket socket, final OutputStream out ) throws IOException
+			{
+				LocalHttpServer.writeChunked( out, 200, LocalHttpServer.tile( path, tileSize ), 1000 );
+				return true;
+			}
+		} );
+		loader = new AsyncTileLoader( 16, 2, 1, 2 );
+		load( 20 );
+		assertTrue( "connections must be kept alive", server.getNumConnections() <= 2 );
+	}
+	
+	@Test
+	public void testReadUntilClose() throws Exception
+	{
+		server = new LocalHttpServer( new LocalHttpServer.Handler()
+		{
+			@Override
+			public boolean respond( final String path, final Socket socket, final OutputStream out ) throws IOException
+			{
+				LocalHttpServer.writeUntilClose( out, 200, LocalHttpServer.tile( path, tileSize ) );
+				return false;
+			}
+		} );
+		loader = new AsyncTileLoader( 16, 2, 1, 2 );
+		load( 10 );
+		assertEquals( "each response closes its connection", 10, server.getNumConnections() );
+	}
+	
+	@Test
+	public void testPipelining() throws Exception
+	{
+		server = new LocalHttpServer( new LocalHttpServer.Handler()
+		{
+			@Override
+			public boolean respond( final String path, final Socket socket, final OutputStream out ) throws IOException
+			{
+				try
+				{
+					Thread.sleep( 20 );
+				}
+				catch ( final InterruptedException e ) {}
+				LocalHttpServer.writeContentLength( out, 200, LocalHttpServer.tile( path, tileSize ) );
+				return true;
+			}
+		} );
+		loader = new AsyncTileLoader( 16, 1, 4, 2 );
+		load( 20 );
+		assertEquals( 1, server.getNumConnections() );
+		assertTrue( "requests must be sent ahead of their responses", server.getMaxPending() > 1 );
+		assertTrue( "at most pipelineDepth requests in flight", server.getMaxPending() <= 4 );
+	}
+	
+	@Test
+	public void testRetryAfterReset() throws Exception
+	{
+		final HashMap< String, Integer > attempts = new HashMap< String, Integer >();
+		server = new LocalHttpServer( new LocalHttpServer.Handler()
+		{
+			@Override
+			public boolean respond( final String path, final Socket socket, final OutputStream out ) throws IOException
+			{
+				final int attempt;
+				synchronized ( attempts )
+				{
+					final Integer previous = attempts.get( path );
+					attempt = previous == null ? 1 : previous + 1;
+					attempts.put( path, attempt );
+				}
+				if ( attempt == 1 || path.endsWith( "reset" ) )
+				{
+					LocalHttpServer.reset( socket );
+					return false;
+				}
+				LocalHttpServer.writeContentLength( out, 200, LocalHttpServer.tile( path, tileSize ) );
+				return true;
+			}
+		} );
+		loader = new AsyncTileLoader( 16, 2, 1, 2 );
+		load( 5 );
+		for ( int i = 0; i < 5; ++i )
+			assertEquals( 2, attempts.get( "/tile/" + i ).intValue() );
+		
+		/* reset on every attempt, fails after maxAttempts */
+		final Result result = new Result();
+		loader.submit( server.getBaseUrl() + "reset", result );
+		result.await();
+		assertNotNull( result.e );
+		assertEquals( 3, attempts.get( "/reset" ).intValue() );
+	}
+	
+	@Test
+	public void testTimeout() throws Exception
+	{
+		server = new LocalHttpServer( new LocalHttpServer.Handler()
+		{
+			@Override
+			public boolean respond( final String path, final Socket socket, final OutputStream out ) throws IOException
+			{
+				server.hang();
+				return false;
+			}
+		} );
+		loader = new AsyncTileLoader( 16, 2, 1, 2 );
+		loader.setTimeout( 200 );
+		final Result result = new Result();
+		loader.submit( server.getBaseUrl() + "hang", result );
+		result.await();
+		assertTrue( "expected a timeout, got " + result.e, result.e instanceof SocketTimeoutException );
+		assertEquals( 1, loader.getFailures() );
+	}
+	
+	@Test
+	public void testErrorCodes() throws Exception
+	{
+		server = new LocalHttpServer( new LocalHttpServer.Handler()
+		{
+			@Override
+			public boolean respond( final String path, final Socket socket, final OutputStream out ) throws IOException
+			{
+				LocalHttpServer.writeContentLength( out, path.endsWith( "missing" ) ? 404 : 500, "error".getBytes() );
+				return true;
+			}
+		} );
+		loader = new AsyncTileLoader( 16, 2, 1, 2 );
+		final Result missing = new Result();
+		final Result error = new Result();
+		loader.submit( server.getBaseUrl() + "missing", missing );
+		loader.submit( server.getBaseUrl() + "error", error );
+		missing.await();
+		error.await();
+		assertTrue( missing.e instanceof FileNotFoundException );
+		assertNotNull( error.e );
+		assertTrue( !( error.e instanceof FileNotFoundException ) );
+		assertEquals( 2, loader.getFailures() );
+	}
+}
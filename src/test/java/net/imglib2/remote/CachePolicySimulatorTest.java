@@ -0,0 +1,181 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * <p>Replays traces of tile requests against {@link CachePolicy
+ * CachePolicies} and compares their hit ratios.</p>
+ * 
+ * <p>The traces are synthetic, not recorded from real sessions: browsing
+ * in a small region of the dataset, interrupted by fast flythroughs along
+ * <em>z</em> that request many tiles exactly once.  The hit ratios show
+ * how the policies behave on such a pattern, they do not predict the hit
+ * ratios of real users.  Traces of real sessions can be recorded with a
+ * {@link RecordingPolicy} and replayed by {@link #read(BufferedReader)} and
+ * {@link #hitRatio(CachePolicy, ArrayList)}.</p>
+ * 
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class CachePolicySimulatorTest
+{
+	final static protected int[] capacities = new int[]{ 128, 256, 512, 1024 };
+	
+	/**
+	 * @return the fraction of requests that were retained by the policy
+	 */
+	static public double hitRatio( final CachePolicy< String > policy, final ArrayList< String > trace )
+	{
+		final ArrayList< String > evicted = new ArrayList< String >();
+		long hits = 0;
+		for ( final String key : trace )
+		{
+			if ( policy.contains( key ) )
+				++hits;
+			policy.access( key );
+			if ( !policy.contains( key ) )
+			{
+				policy.add( key, evicted );
+				evicted.clear();
+			}
+		}
+		return ( double )hits / trace.size();
+	}
+	
+	/**
+	 * Read a trace with one request per line, e.g. "r c z", as written by a
+	 * {@link RecordingPolicy}.  Each distinct line is a tile.
+	 */
+	static public ArrayList< String > read( final BufferedReader in ) throws IOException
+	{
+		final ArrayList< String > trace = new ArrayList< String >();
+		for ( String line = in.readLine(); line != null; line = in.readLine() )
+		{
+			line = line.trim();
+			if ( line.length() > 0 )
+				trace.add( line );
+		}
+		return trace;
+	}
+	
+	static protected void view( final ArrayList< String > trace, final long r, final long c, final long z, final int rows, final int cols )
+	{
+		for ( long i = r; i < r + rows; ++i )
+			for ( long j = c; j < c + cols; ++j )
+				trace.add( i + " " + j + " " + z );
+	}
+	
+	/**
+	 * Synthetic navigation: a viewer of rows &times; cols tiles random-walks
+	 * through a region of size&times;size&times;size tiles, one tile step or
+	 * one slice per frame.  Every flythroughInterval frames, the user scrolls
+	 * through flythroughLength slices at a random location elsewhere, one
+	 * frame per slice, and then returns.
+	 */
+	static public ArrayList< String > synthetic(
+			final int frames,
+			final int rows,
+			final int cols,
+			final int size,
+			final int flythroughInterval,
+			final int flythroughLength,
+			final long seed )
+	{
+		final Random rnd = new Random( seed );
+		final ArrayList< String > trace = new ArrayList< String >();
+		long r = 0, c = 0, z = 0;
+		for ( int frame = 0; frame < frames; ++frame )
+		{
+			if ( frame % flythroughInterval == flythroughInterval - 1 )
+			{
+				final long fr = 1000 + rnd.nextInt( 1000 );
+				final long fc = 1000 + rnd.nextInt( 1000 );
+				final long fz = 1000 + rnd.nextInt( 1000 );
+				for ( int i = 0; i < flythroughLength; ++i )
+					view( trace, fr, fc, fz + i, rows, cols );
+			}
+			
+			switch ( rnd.nextInt( 6 ) )
+			{
+			case 0:
+				r = Math.max( 0, Math.min( size - rows, r + rnd.nextInt( 3 ) - 1 ) );
+				break;
+			case 1:
+				c = Math.max( 0, Math.min( size - cols, c + rnd.nextInt( 3 ) - 1 ) );
+				break;
+			case 2:
+			case 3:
+				z = Math.max( 0, Math.min( size - 1, z + rnd.nextInt( 3 ) - 1 ) );
+				break;
+			default:
+				/* looking */
+			}
+			view( trace, r, c, z, rows, cols );
+		}
+		return trace;
+	}
+	
+	static protected void assertTinyLfuBeatsLru( final ArrayList< String > trace )
+	{
+		for ( final int capacity : capacities )
+		{
+			final double lru = hitRatio( new LruPolicy< String >( capacity ), trace );
+			final double tinyLfu = hitRatio( new TinyLfuPolicy< String >( capacity ), trace );
+			assertTrue( "capacity " + capacity + ": TinyLFU " + tinyLfu + " <= LRU " + lru, tinyLfu > lru );
+		}
+	}
+	
+	@Test
+	public void testLongFlythroughs()
+	{
+		/* browsing 8^3 tiles, 50 slice flythrough every 50 frames */
+		assertTinyLfuBeatsLru( synthetic( 20000, 3, 4, 8, 50, 50, 0 ) );
+	}
+	
+	@Test
+	public void testFrequentFlythroughs()
+	{
+		/* browsing 12^3 tiles, 20 slice flythrough every 20 frames */
+		assertTinyLfuBeatsLru( synthetic( 20000, 3, 4, 12, 20, 20, 1 ) );
+	}
+	
+	@Test
+	public void testRecordedTraceReplays() throws IOException
+	{
+		final ArrayList< String > trace = synthetic( 2000, 3, 4, 8, 50, 50, 2 );
+		final StringWriter recorded = new StringWriter();
+		final PrintWriter out = new PrintWriter( recorded );
+		final double hitRatio = hitRatio( new RecordingPolicy< String >( new LruPolicy< String >( 256 ), out ), trace );
+		out.flush();
+		
+		final ArrayList< String > replayed = read( new BufferedReader( new StringReader( recorded.toString() ) ) );
+		assertEquals( trace, replayed );
+		assertEquals( hitRatio, hitRatio( new LruPolicy< String >( 256 ), replayed ), 0 );
+	}
+}
@@ -0,0 +1,143 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests slow start, additive increase, and multiplicative decrease at most
+ * once per latency of the {@link CongestionWindow}, and that an
+ * {@link AsyncTileLoader} reduces its window when the server answers 429 or
+ * 503.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class CongestionWindowTest
+{
+	protected LocalHttpServer server = null;
+	protected AsyncTileLoader loader = null;
+	
+	@After
+	public void tearDown()
+	{
+		if ( loader != null )
+			loader.shutdown();
+		if ( server != null )
+			server.stop();
+	}
+	
+	@Test
+	public void testSlowStart()
+	{
+		final CongestionWindow window = new CongestionWindow( 1, 1, 8 );
+		for ( int i = 0; i < 5; ++i )
+			window.served( 10, 1024 );
+		assertEquals( 6, window.getWindow() );
+		for ( int i = 0; i < 5; ++i )
+			window.served( 10, 1024 );
+		assertEquals( 8, window.getWindow() );
+		assertEquals( 0, window.getDecreases() );
+	}
+	
+	@Test
+	public void testAdditiveIncrease()
+	{
+		final CongestionWindow window = new CongestionWindow( 1, 32, 64 );
+		window.congested();
+		assertEquals( 16, window.getWindow() );
+		
+		/* one per window of responses after the decrease */
+		window.served( 10, 1024 );
+		assertEquals( 16, window.getWindow() );
+		for ( int i = 1; i < 20; ++i )
+			window.served( 10, 1024 );
+		assertEquals( 17, window.getWindow() );
+		assertEquals( 1, window.getDecreases() );
+	}
+	
+	@Test
+	public void testDecreaseOncePerLatency() throws InterruptedException
+	{
+		final CongestionWindow window = new CongestionWindow( 1, 32, 64 );
+		window.served( 100, 1024 );
+		assertEquals( 33, window.getWindow() );
+		
+		window.congested();
+		assertEquals( 16, window.getWindow() );
+		
+		/* responses to requests sent with the larger window */
+		window.congested();
+		window.congested();
+		assertEquals( 16, window.getWindow() );
+		assertEquals( 1, window.getDecreases() );
+		
+		Thread.sleep( 150 );
+		window.congested();
+		assertEquals( 8, window.getWindow() );
+		assertEquals( 2, window.getDecreases() );
+	}
+	
+	@Test
+	public void testLatencyIncrease()
+	{
+		final CongestionWindow window = new CongestionWindow( 1, 16, 64 );
+		window.served( 10, 1024 );
+		assertEquals( 17, window.getWindow() );
+		
+		/* smoothed latency exceeds twice the minimum */
+		window.served( 100, 1024 );
+		assertEquals( 12, window.getWindow() );
+		assertEquals( 1, window.getDecreases() );
+	}
+	
+	@Test
+	public void testThrottledResponses() throws Exception
+	{
+		server = new LocalHttpServer( new LocalHttpServer.Handler()
+		{
+			@Override
+			public boolean respond( final String path, final Socket socket, final OutputStream out ) throws IOException
+			{
+				LocalHttpServer.writeContentLength( out, path.endsWith( "429" ) ? 429 : 503, "slow down".getBytes() );
+				return true;
+			}
+		} );
+		final CongestionWindow window = new CongestionWindow( 1, 16, 16 );
+		loader = new AsyncTileLoader( window, 2, 1, 2 );
+		
+		final AsyncTileLoaderTest.Result tooManyRequests = new AsyncTileLoaderTest.Result();
+		loader.submit( server.getBaseUrl() + "429", tooManyRequests );
+		tooManyRequests.await();
+		assertEquals( 1, window.getDecreases() );
+		assertEquals( 8, window.getWindow() );
+		
+		final AsyncTileLoaderTest.Result unavailable = new AsyncTileLoaderTest.Result();
+		loader.submit( server.getBaseUrl() + "503", unavailable );
+		unavailable.await();
+		assertEquals( 2, window.getDecreases() );
+		assertEquals( 4, window.getWindow() );
+		assertTrue( tooManyRequests.e != null && unavailable.e != null );
+	}
+}
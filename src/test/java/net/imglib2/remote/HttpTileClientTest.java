@@ -0,0 +1,208 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link HttpTileClient} against a {@link LocalHttpServer}.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class HttpTileClientTest
+{
+	final static protected int tileSize = 64 * 1024;
+	
+	protected LocalHttpServer server;
+	protected HttpTileClient client;
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		server = new LocalHttpServer( new LocalHttpServer.Handler()
+		{
+			@Override
+			public boolean respond( final String path, final Socket socket, final OutputStream out ) throws IOException
+			{
+				if ( path.endsWith( "missing" ) )
+					LocalHttpServer.writeContentLength( out, 404, "not found".getBytes() );
+				else if ( path.endsWith( "gone" ) )
+					LocalHttpServer.writeContentLength( out, 410, "gone".getBytes() );
+				else if ( path.endsWith( "error" ) )
+					LocalHttpServer.writeContentLength( out, 500, "error".getBytes() );
+				else if ( path.endsWith( "hang" ) )
+				{
+					server.hang();
+					return false;
+				}
+				else
+					LocalHttpServer.writeContentLength( out, 200, LocalHttpServer.tile( path, tileSize ) );
+				return true;
+			}
+		} );
+		client = new HttpTileClient();
+		client.setRateLimiter( null );
+	}
+	
+	@After
+	public void tearDown()
+	{
+		server.stop();
+	}
+	
+	@Test
+	public void testContent() throws IOException
+	{
+		for ( int i = 0; i < 10; ++i )
+		{
+			final String path = "/tile/" + i;
+			assertArrayEquals( LocalHttpServer.tile( path, tileSize ), client.get( server.getBaseUrl() + path.substring( 1 ) ) );
+		}
+		assertEquals( 10, client.getRequests() );
+		assertEquals( 10l * tileSize, client.getBytes() );
+	}
+	
+	@Test
+	public void testKeepAlive() throws IOException
+	{
+		for ( int i = 0; i < 50; ++i )
+			client.get( server.getBaseUrl() + "tile/" + i );
+		assertEquals( 50, server.getNumRequests() );
+		assertEquals( "sequential requests must reuse one connection", 1, server.getNumConnections() );
+	}
+	
+	@Test
+	public void testKeepAliveAfterErrors() throws IOException
+	{
+		for ( int i = 0; i < 20; ++i )
+		{
+			try
+			{
+				client.get( server.getBaseUrl() + ( i % 2 == 0 ? "tile/" + i : "missing" ) );
+			}
+			catch ( final FileNotFoundException e ) {}
+		}
+		assertEquals( 20, server.getNumRequests() );
+		assertEquals( "error bodies must be drained to reuse the connection", 1, server.getNumConnections() );
+	}
+	
+	@Test
+	public void testConcurrentRequestsAreLimited() throws Exception
+	{
+		client.setMaxConnectionsPerHost( 4 );
+		final Thread[] threads = new Thread[ 16 ];
+		final boolean[] failed = new boolean[ 1 ];
+		for ( int t = 0; t < threads.length; ++t )
+		{
+			final int offset = t;
+			threads[ t ] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					for ( int i = offset; i < 400; i += threads.length )
+					{
+						try
+						{
+							client.get( server.getBaseUrl() + "tile/" + i );
+						}
+						catch ( final IOException e )
+						{
+							synchronized ( failed )
+							{
+								failed[ 0 ] = true;
+							}
+						}
+					}
+				}
+			};
+			threads[ t ].start();
+		}
+		for ( final Thread thread : threads )
+			thread.join();
+		assertFalse( failed[ 0 ] );
+		assertEquals( 400, client.getRequests() );
+		assertTrue( "at most 4 connections, got " + server.getNumConnections(), server.getNumConnections() <= 4 );
+	}
+	
+	@Test
+	public void testNotFound() throws IOException
+	{
+		try
+		{
+			client.get( server.getBaseUrl() + "missing" );
+			fail( "404 must throw" );
+		}
+		catch ( final FileNotFoundException e ) {}
+		try
+		{
+			client.get( server.getBaseUrl() + "gone" );
+			fail( "410 must throw" );
+		}
+		catch ( final FileNotFoundException e ) {}
+		assertEquals( 2, client.getFailures() );
+	}
+	
+	@Test
+	public void testServerError()
+	{
+		try
+		{
+			client.get( server.getBaseUrl() + "error" );
+			fail( "500 must throw" );
+		}
+		catch ( final FileNotFoundException e )
+		{
+			fail( "500 is not a missing tile" );
+		}
+		catch ( final IOException e )
+		{
+			assertTrue( e.getMessage(), e.getMessage().contains( "500" ) );
+		}
+	}
+	
+	@Test
+	public void testReadTimeout() throws IOException
+	{
+		client.setTimeouts( 1000, 200 );
+		final long t = System.currentTimeMillis();
+		try
+		{
+			client.get( server.getBaseUrl() + "hang" );
+			fail( "a request that is never answered must time out" );
+		}
+		catch ( final SocketTimeoutException e )
+		{
+			assertTrue( System.currentTimeMillis() - t < 5000 );
+		}
+		assertEquals( 1, client.getFailures() );
+	}
+}
@@ -0,0 +1,346 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedList;
+
+/**
+ * <p>A minimal HTTP/1.1 server on a local port for tests.  The
+ * {@link Handler} writes raw responses, such that tests control the framing
+ * of each response, and can reset or hang connections.</p>
+ *
+ * <p>Each connection is read by one thread and answered by another in the
+ * order of its requests, so pipelined requests are read ahead of their
+ * responses.  The server counts connections and requests, and records the
+ * maximum number of requests that waited on a connection.</p>
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class LocalHttpServer
+{
+	public interface Handler
+	{
+		/**
+		 * Answer a request.
+		 * 
+		 * @param path
+		 * @param socket the connection, e.g. to reset it
+		 * @param out
+		 * @return false to close the connection after the response
+		 * @throws IOException
+		 */
+		public boolean respond( final String path, final Socket socket, final OutputStream out ) throws IOException;
+	}
+	
+	final protected ServerSocket serverSocket;
+	final protected Handler handler;
+	final protected ArrayList< Socket > sockets = new ArrayList< Socket >();
+	
+	protected int numConnections = 0;
+	protected int numRequests = 0;
+	protected int maxPending = 0;
+	protected boolean stopped = false;
+	
+	public LocalHttpServer( final Handler handler ) throws IOException
+	{
+		this.handler = handler;
+		serverSocket = new ServerSocket( 0, 256, InetAddress.getByName( "localhost" ) );
+		final Thread acceptor = new Thread( "local http server" )
+		{
+			@Override
+			public void run()
+			{
+				while ( !serverSocket.isClosed() )
+				{
+					try
+					{
+						serve( serverSocket.accept() );
+					}
+					catch ( final IOException e ) {}
+				}
+			}
+		};
+		acceptor.setDaemon( true );
+		acceptor.start();
+	}
+	
+	public String getBaseUrl()
+	{
+		return "http://localhost:" + serverSocket.getLocalPort() + "/";
+	}
+	
+	synchronized public int getNumConnections()
+	{
+		return numConnections;
+	}
+	
+	synchronized public int getNumRequests()
+	{
+		return numRequests;
+	}
+	
+	/**
+	 * @return the maximum number of requests that were read on a
+	 * 		connection and waited while an earlier request was answered
+	 */
+	synchronized public int getMaxPending()
+	{
+		return maxPending;
+	}
+	
+	/**
+	 * Stop accepting connections and close all open connections.  Handlers
+	 * that wait on the server are notified.
+	 */
+	public void stop()
+	{
+		synchronized ( this )
+		{
+			stopped = true;
+			notifyAll();
+		}
+		try
+		{
+			serverSocket.close();
+		}
+		catch ( final IOException e ) {}
+		synchronized ( sockets )
+		{
+			for ( final Socket socket : sockets )
+			{
+				try
+				{
+					socket.close();
+				}
+				catch ( final IOException e ) {}
+			}
+		}
+	}
+	
+	/**
+	 * Block a handler until the server is stopped, i.e. never answer.
+	 */
+	synchronized public void hang()
+	{
+		while ( !stopped )
+		{
+			try
+			{
+				wait();
+			}
+			catch ( final InterruptedException e )
+			{
+				return;
+			}
+		}
+	}
+	
+	protected void serve( final Socket socket ) throws IOException
+	{
+		synchronized ( this )
+		{
+			++numConnections;
+		}
+		synchronized ( sockets )
+		{
+			sockets.add( socket );
+		}
+		final InputStream in = new BufferedInputStream( socket.getInputStream() );
+		final OutputStream out = socket.getOutputStream();
+		final LinkedList< String > pending = new LinkedList< String >();
+		
+		final Thread reader = new Thread( "local http server reader" )
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					for ( String path = readRequest( in ); path != null; path = readRequest( in ) )
+					{
+						synchronized ( LocalHttpServer.this )
+						{
+							++numRequests;
+						}
+						synchronized ( pending )
+						{
+							pending.add( path );
+							synchronized ( LocalHttpServer.this )
+							{
+								maxPending = Math.max( maxPending, pending.size() );
+							}
+							pending.notifyAll();
+						}
+					}
+				}
+				catch ( final IOException e ) {}
+				synchronized ( pending )
+				{
+					pending.add( null );
+					pending.notifyAll();
+				}
+			}
+		};
+		
+		final Thread responder = new Thread( "local http server responder" )
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					while ( true )
+					{
+						final String path;
+						synchronized ( pending )
+						{
+							while ( pending.isEmpty() )
+								pending.wait();
+							path = pending.removeFirst();
+						}
+						if ( path == null || !handler.respond( path, socket, out ) )
+							break;
+						out.flush();
+					}
+				}
+				catch ( final IOException e ) {}
+				catch ( final InterruptedException e ) {}
+				try
+				{
+					socket.close();
+				}
+				catch ( final IOException e ) {}
+			}
+		};
+		reader.setDaemon( true );
+		responder.setDaemon( true );
+		reader.start();
+		responder.start();
+	}
+	
+	/**
+	 * Read a request without body.
+	 * 
+	 * @return the path or null if the connection was closed
+	 */
+	static protected String readRequest( final InputStream in ) throws IOException
+	{
+		final String requestLine = readLine( in );
+		if ( requestLine == null )
+			return null;
+		for ( String line = readLine( in ); line != null && line.length() > 0; line = readLine( in ) );
+		final String[] parts = requestLine.split( " " );
+		return parts.length > 1 ? parts[ 1 ] : "/";
+	}
+	
+	static protected String readLine( final InputStream in ) throws IOException
+	{
+		final ByteArrayOutputStream line = new ByteArrayOutputStream();
+		for ( int b = in.read(); b >= 0; b = in.read() )
+		{
+			if ( b == '\n' )
+			{
+				final String s = line.toString( "ISO-8859-1" );
+				return s.endsWith( "\r" ) ? s.substring( 0, s.length() - 1 ) : s;
+			}
+			line.write( b );
+		}
+		return null;
+	}
+	
+	/**
+	 * Write a response with a Content-Length header.
+	 */
+	static public void writeContentLength( final OutputStream out, final int status, final byte[] body ) throws IOException
+	{
+		out.write( ( "HTTP/1.1 " + status + " " + reason( status ) + "\r\nContent-Length: " + body.length + "\r\n\r\n" ).getBytes( "ISO-8859-1" ) );
+		out.write( body );
+	}
+	
+	/**
+	 * Write a response with chunked transfer encoding.
+	 */
+	static public void writeChunked( final OutputStream out, final int status, final byte[] body, final int chunkSize ) throws IOException
+	{
+		out.write( ( "HTTP/1.1 " + status + " " + reason( status ) + "\r\nTransfer-Encoding: chunked\r\n\r\n" ).getBytes( "ISO-8859-1" ) );
+		for ( int i = 0; i < body.length; i += chunkSize )
+		{
+			final int n = Math.min( chunkSize, body.length - i );
+			out.write( ( Integer.toHexString( n ) + ";ext=1\r\n" ).getBytes( "ISO-8859-1" ) );
+			out.write( body, i, n );
+			out.write( "\r\n".getBytes( "ISO-8859-1" ) );
+		}
+		out.write( "0\r\nX-Trailer: done\r\n\r\n".getBytes( "ISO-8859-1" ) );
+	}
+	
+	/**
+	 * Write a response without length whose body ends when the connection
+	 * is closed.  The caller must close the connection after.
+	 */
+	static public void writeUntilClose( final OutputStream out, final int status, final byte[] body ) throws IOException
+	{
+		out.write( ( "HTTP/1.1 " + status + " " + reason( status ) + "\r\nConnection: close\r\n\r\n" ).getBytes( "ISO-8859-1" ) );
+		out.write( body );
+	}
+	
+	/**
+	 * Close a connection with a TCP reset instead of an orderly shutdown.
+	 */
+	static public void reset( final Socket socket ) throws IOException
+	{
+		socket.setSoLinger( true, 0 );
+		socket.close();
+	}
+	
+	static protected String reason( final int status )
+	{
+		switch ( status )
+		{
+		case 200:
+			return "OK";
+		case 404:
+			return "Not Found";
+		case 410:
+			return "Gone";
+		case 503:
+			return "Service Unavailable";
+		default:
+			return "Error";
+		}
+	}
+	
+	/**
+	 * @return a tile body whose bytes depend on the path
+	 */
+	static public byte[] tile( final String path, final int size )
+	{
+		final byte[] body = new byte[ size ];
+		final int seed = path.hashCode();
+		for ( int i = 0; i < size; ++i )
+			body[ i ] = ( byte )( seed + i * 31 );
+		return body;
+	}
+}
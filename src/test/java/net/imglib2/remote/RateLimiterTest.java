@@ -0,0 +1,141 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Tests the token buckets of the {@link RateLimiter}, and that waiting
+ * requests are served by priority and in order of arrival within the same
+ * priority.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class RateLimiterTest
+{
+	final static protected String host = "tiles.example.org";
+	
+	final protected RateLimiter limiter = new RateLimiter();
+	
+	/**
+	 * Acquire a token in a new thread and record name when it is granted.
+	 */
+	protected Thread acquire( final String name, final int priority, final List< String > granted )
+	{
+		final Thread thread = new Thread( name )
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					limiter.acquire( host, priority );
+					granted.add( name );
+				}
+				catch ( final InterruptedException e ) {}
+			}
+		};
+		thread.start();
+		return thread;
+	}
+	
+	protected void awaitWaiters( final int n ) throws InterruptedException
+	{
+		for ( int i = 0; i < 1000; ++i )
+		{
+			synchronized ( limiter )
+			{
+				if ( limiter.buckets.get( host ).waiters.size() >= n )
+					return;
+			}
+			Thread.sleep( 1 );
+		}
+		fail( "expected " + n + " waiting requests" );
+	}
+	
+	@Test
+	public void testUnlimitedHost() throws InterruptedException
+	{
+		for ( int i = 0; i < 100; ++i )
+			assertTrue( limiter.tryAcquire( host, RateLimiter.PREFETCH ) );
+		limiter.acquire( host, RateLimiter.PREFETCH );
+		assertEquals( 0, limiter.delayMillis( host ) );
+	}
+	
+	@Test
+	public void testBurst()
+	{
+		limiter.setRate( host, 1, 3 );
+		for ( int i = 0; i < 3; ++i )
+			assertTrue( limiter.tryAcquire( host, RateLimiter.VISIBLE ) );
+		assertFalse( limiter.tryAcquire( host, RateLimiter.VISIBLE ) );
+		assertTrue( limiter.delayMillis( host ) > 0 );
+	}
+	
+	@Test
+	public void testPriorityThenArrivalOrder() throws InterruptedException
+	{
+		limiter.setRate( host, 10, 1 );
+		assertTrue( limiter.tryAcquire( host, RateLimiter.VISIBLE ) );
+		
+		final List< String > granted = Collections.synchronizedList( new ArrayList< String >() );
+		final Thread[] threads = new Thread[ 4 ];
+		threads[ 0 ] = acquire( "prefetch 1", RateLimiter.PREFETCH, granted );
+		awaitWaiters( 1 );
+		threads[ 1 ] = acquire( "prefetch 2", RateLimiter.PREFETCH, granted );
+		awaitWaiters( 2 );
+		threads[ 2 ] = acquire( "visible 1", RateLimiter.VISIBLE, granted );
+		awaitWaiters( 3 );
+		threads[ 3 ] = acquire( "visible 2", RateLimiter.VISIBLE, granted );
+		awaitWaiters( 4 );
+		
+		for ( final Thread thread : threads )
+			thread.join( 5000 );
+		assertEquals( Arrays.asList( "visible 1", "visible 2", "prefetch 1", "prefetch 2" ), granted );
+	}
+	
+	@Test
+	public void testTryAcquireYieldsToWaiters() throws InterruptedException
+	{
+		limiter.setRate( host, 10, 1 );
+		assertTrue( limiter.tryAcquire( host, RateLimiter.PREFETCH ) );
+		
+		final List< String > granted = Collections.synchronizedList( new ArrayList< String >() );
+		final Thread waiter = acquire( "visible", RateLimiter.VISIBLE, granted );
+		awaitWaiters( 1 );
+		
+		/* no token is taken past a waiting request of the same or a higher priority */
+		assertFalse( limiter.tryAcquire( host, RateLimiter.VISIBLE ) );
+		assertFalse( limiter.tryAcquire( host, RateLimiter.PREFETCH ) );
+		
+		waiter.join( 5000 );
+		assertEquals( Arrays.asList( "visible" ), granted );
+		
+		Thread.sleep( limiter.delayMillis( host ) + 10 );
+		assertTrue( limiter.tryAcquire( host, RateLimiter.PREFETCH ) );
+	}
+}
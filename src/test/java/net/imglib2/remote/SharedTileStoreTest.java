@@ -0,0 +1,132 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Tests the claims and reference counts of the {@link SharedTileStore}.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class SharedTileStoreTest
+{
+	final protected SharedTileStore< byte[] > store = new SharedTileStore< byte[] >();
+	
+	@Test
+	public void testLastReleaseRemoves()
+	{
+		final byte[] data = new byte[ 16 ];
+		assertTrue( store.claim( "d", 0, "t", null ) );
+		assertFalse( store.claim( "d", 0, "t", null ) );
+		store.put( "d", 0, "t", data );
+		
+		assertSame( data, store.get( "d", 0, "t" ) );
+		assertFalse( store.release( data ) );
+		assertEquals( 1, store.size() );
+		assertTrue( store.release( data ) );
+		assertEquals( 0, store.size() );
+		assertNull( store.get( "d", 0, "t" ) );
+		assertFalse( store.release( data ) );
+	}
+	
+	@Test
+	public void testListenerHoldsReference()
+	{
+		final byte[] data = new byte[ 16 ];
+		final AtomicReference< byte[] > received = new AtomicReference< byte[] >();
+		final SharedTileStore.Listener< byte[] > listener = new SharedTileStore.Listener< byte[] >()
+		{
+			@Override
+			public void loaded( final byte[] data )
+			{
+				received.set( data );
+			}
+			
+			@Override
+			public void failed( final boolean missing ) {}
+		};
+		assertTrue( store.claim( "d", 0, "t", null ) );
+		assertFalse( store.claim( "d", 0, "t", listener ) );
+		store.put( "d", 0, "t", data );
+		assertSame( data, received.get() );
+		
+		assertFalse( store.release( data ) );
+		assertTrue( store.release( data ) );
+	}
+	
+	@Test
+	public void testAwait() throws InterruptedException
+	{
+		final byte[] data = new byte[ 16 ];
+		assertTrue( store.claim( "d", 0, "t", null ) );
+		
+		final AtomicReference< byte[] > received = new AtomicReference< byte[] >();
+		final Thread waiter = new Thread()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					received.set( store.await( "d", 0, "t", 10000 ) );
+				}
+				catch ( final InterruptedException e ) {}
+			}
+		};
+		waiter.start();
+		while ( waiter.getState() != Thread.State.TIMED_WAITING )
+			Thread.sleep( 1 );
+		store.put( "d", 0, "t", data );
+		waiter.join();
+		assertSame( data, received.get() );
+		
+		assertFalse( store.release( data ) );
+		assertTrue( store.release( data ) );
+	}
+	
+	@Test
+	public void testAwaitTimeout() throws InterruptedException
+	{
+		final byte[] data = new byte[ 16 ];
+		assertTrue( store.claim( "d", 0, "t", null ) );
+		final long t = System.currentTimeMillis();
+		assertNull( store.await( "d", 0, "t", 50 ) );
+		assertTrue( System.currentTimeMillis() - t >= 50 );
+		
+		/* the waiter that gave up holds no reference */
+		store.put( "d", 0, "t", data );
+		assertTrue( store.release( data ) );
+	}
+	
+	@Test
+	public void testAwaitFailed() throws InterruptedException
+	{
+		assertTrue( store.claim( "d", 0, "t", null ) );
+		store.fail( "d", 0, "t", true );
+		assertNull( store.await( "d", 0, "t", 50 ) );
+		assertTrue( store.claim( "d", 0, "t", null ) );
+	}
+}
@@ -0,0 +1,205 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote.catmaid;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import net.imglib2.remote.TileSource;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link DownsamplingTileSource} with a level 0 of 8x8 tiles that
+ * all have the same color.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class DownsamplingTileSourceTest
+{
+	final static protected int tileSize = 8;
+	final static protected int color = 0x10203040;
+	
+	static protected class ConstantTileSource implements TileSource< int[] >
+	{
+		final protected boolean missing;
+		final protected long latency;
+		final public AtomicInteger numReads = new AtomicInteger();
+		final public AtomicInteger numActive = new AtomicInteger();
+		final public AtomicInteger maxActive = new AtomicInteger();
+		
+		public ConstantTileSource( final boolean missing, final long latency )
+		{
+			this.missing = missing;
+			this.latency = latency;
+		}
+		
+		@Override
+		public String getDataset()
+		{
+			return "constant";
+		}
+		
+		@Override
+		public String tileName( final long level, final long[] cell )
+		{
+			return cell[ 2 ] + "/" + cell[ 1 ] + "_" + cell[ 0 ];
+		}
+		
+		@Override
+		public String url( final long level, final long[] cell )
+		{
+			return "local:" + level + "/" + tileName( level, cell );
+		}
+		
+		@Override
+		public byte[] read( final long level, final long[] cell, final int priority ) throws IOException
+		{
+			numReads.incrementAndGet();
+			final int active = numActive.incrementAndGet();
+			synchronized ( maxActive )
+			{
+				maxActive.set( Math.max( maxActive.get(), active ) );
+			}
+			try
+			{
+				Thread.sleep( latency );
+			}
+			catch ( final InterruptedException e )
+			{
+				Thread.currentThread().interrupt();
+			}
+			finally
+			{
+				numActive.decrementAndGet();
+			}
+			if ( missing )
+				throw new FileNotFoundException( url( level, cell ) );
+			return ByteBuffer.allocate( 4 ).putInt( color ).array();
+		}
+		
+		@Override
+		public void decode( final byte[] bytes, final int[] pixels ) throws IOException
+		{
+			Arrays.fill( pixels, ByteBuffer.wrap( bytes ).getInt() );
+		}
+	}
+	
+	@Test
+	public void testComputed() throws IOException
+	{
+		final ConstantTileSource source = new ConstantTileSource( false, 0 );
+		final DownsamplingTileSource downsampling = new DownsamplingTileSource( source, 64, 64, tileSize, tileSize, 1 );
+		
+		final int[] pixels = downsampling.pixels( 3, new long[]{ 0, 0, 0 }, 0 );
+		for ( final int pixel : pixels )
+			assertEquals( color, pixel );
+		
+		/* every served tile is read once */
+		assertEquals( 64, source.numReads.get() );
+	}
+	
+	@Test
+	public void testBoundedReaders() throws InterruptedException
+	{
+		final ConstantTileSource source = new ConstantTileSource( false, 5 );
+		final DownsamplingTileSource downsampling = new DownsamplingTileSource( source, 256, 256, tileSize, tileSize, 1, 4096 );
+		
+		final AtomicInteger numFailed = new AtomicInteger();
+		final Thread[] threads = new Thread[ 32 ];
+		for ( int i = 0; i < threads.length; ++i )
+		{
+			final long[] cell = new long[]{ i % 8, i / 8, 0 };
+			threads[ i ] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						downsampling.pixels( 2, cell, 0 );
+					}
+					catch ( final IOException e )
+					{
+						numFailed.incrementAndGet();
+					}
+				}
+			};
+			threads[ i ].start();
+		}
+		for ( final Thread thread : threads )
+			thread.join();
+		
+		assertEquals( 0, numFailed.get() );
+		assertEquals( 32 * 16, source.numReads.get() );
+		assertTrue( source.maxActive.get() <= DownsamplingTileSource.numReaders );
+	}
+	
+	@Test
+	public void testMissing() throws InterruptedException
+	{
+		final ConstantTileSource source = new ConstantTileSource( true, 20 );
+		final DownsamplingTileSource downsampling = new DownsamplingTileSource( source, 64, 64, tileSize, tileSize, 1 );
+		
+		final AtomicInteger numMissing = new AtomicInteger();
+		final Thread[] threads = new Thread[ 4 ];
+		for ( int i = 0; i < threads.length; ++i )
+		{
+			threads[ i ] = new Thread()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						downsampling.pixels( 2, new long[]{ 0, 0, 0 }, 0 );
+					}
+					catch ( final FileNotFoundException e )
+					{
+						numMissing.incrementAndGet();
+					}
+					catch ( final IOException e ) {}
+				}
+			};
+			threads[ i ].start();
+		}
+		for ( final Thread thread : threads )
+			thread.join();
+		
+		/* the threads that waited for the first one see the same missing tile */
+		assertEquals( threads.length, numMissing.get() );
+	}
+	
+	@Test
+	public void testMissingServed() throws IOException
+	{
+		final DownsamplingTileSource downsampling = new DownsamplingTileSource( new ConstantTileSource( true, 0 ), 64, 64, tileSize, tileSize, 1 );
+		try
+		{
+			downsampling.pixels( 0, new long[]{ 0, 0, 0 }, 0 );
+			fail( "missing tile was read" );
+		}
+		catch ( final FileNotFoundException e ) {}
+	}
+}
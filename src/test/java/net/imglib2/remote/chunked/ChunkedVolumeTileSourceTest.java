@@ -0,0 +1,117 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote.chunked;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that {@link ChunkedVolumeTileSource} rejects blocks that do not
+ * fit the tiles they are read for.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class ChunkedVolumeTileSourceTest
+{
+	protected File dir;
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		dir = File.createTempFile( "chunked", "" );
+		dir.delete();
+		dir.mkdirs();
+		for ( int level = 0; level < 2; ++level )
+		{
+			/* level 0 compressed, level 1 raw */
+			final ChunkedVolumeWriter writer = new ChunkedVolumeWriter(
+					ChunkedVolumeTileSource.levelFile( dir, level ),
+					new int[]{ 8, 8, 2 },
+					new long[]{ 2, 2, 1 },
+					level == 0 ? 6 : 0 );
+			writer.write( new long[]{ 0, 0, 0 }, block( 128 ) );
+			writer.close();
+		}
+	}
+	
+	@After
+	public void tearDown()
+	{
+		for ( final File file : dir.listFiles() )
+			file.delete();
+		dir.delete();
+	}
+	
+	static protected byte[] block( final int n )
+	{
+		final byte[] raw = new byte[ n ];
+		for ( int i = 0; i < n; ++i )
+			raw[ i ] = ( byte )( i * 7 );
+		return raw;
+	}
+	
+	@Test
+	public void testMatchingBlocks() throws IOException
+	{
+		final ChunkedVolumeTileSource.Bytes source = new ChunkedVolumeTileSource.Bytes( dir, new int[]{ 8, 8, 2 } );
+		for ( int level = 0; level < 2; ++level )
+		{
+			final byte[] pixels = new byte[ 128 ];
+			source.decode( source.read( level, new long[]{ 0, 0, 0 }, 0 ), pixels );
+			assertArrayEquals( block( 128 ), pixels );
+		}
+	}
+	
+	@Test
+	public void testOtherBlockDimensions()
+	{
+		final ChunkedVolumeTileSource.Bytes source = new ChunkedVolumeTileSource.Bytes( dir, new int[]{ 8, 2, 8 } );
+		try
+		{
+			source.read( 0, new long[]{ 0, 0, 0 }, 0 );
+			fail( "read a level with other blocks" );
+		}
+		catch ( final IOException e ) {}
+	}
+	
+	@Test
+	public void testOtherTileSize() throws IOException
+	{
+		/* not checked when the level is opened, but when the block is unpacked */
+		final ChunkedVolumeTileSource.Bytes source = new ChunkedVolumeTileSource.Bytes( dir );
+		for ( int level = 0; level < 2; ++level )
+		{
+			final byte[] bytes = source.read( level, new long[]{ 0, 0, 0 }, 0 );
+			for ( final int n : new int[]{ 64, 256 } )
+			{
+				try
+				{
+					source.decode( bytes, new byte[ n ] );
+					fail( "unpacked a block of 128 bytes into " + n + " bytes" );
+				}
+				catch ( final IOException e ) {}
+			}
+		}
+	}
+}
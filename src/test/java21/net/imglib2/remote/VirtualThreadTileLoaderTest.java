@@ -0,0 +1,168 @@
+/**
+ * License: GPL
+ *
+ * This program is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU General Public License 2
+ * as published by the Free Software Foundation.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 59 Temple Place - Suite 330, Boston, MA  02111-1307, USA.
+ */
+package net.imglib2.remote;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link VirtualThreadTileLoader} against a {@link LocalHttpServer}
+ * that answers after 100ms, i.e. a high latency link.  Requires Java 21
+ * and is only built by the java21 profile.
+ *
+ * @author Stephan Saalfeld <saalfeld@mpi-cbg.de>
+ */
+public class VirtualThreadTileLoaderTest
+{
+	final static protected int tileSize = 16 * 1024;
+	final static protected int latency = 100;
+	
+	/**
+	 * Collects the results of a request.
+	 */
+	static protected class Result implements TileLoader.Callback
+	{
+		final protected CountDownLatch done = new CountDownLatch( 1 );
+		protected byte[] bytes = null;
+		protected IOException e = null;
+		
+		@Override
+		public void loaded( final byte[] bytes )
+		{
+			this.bytes = bytes;
+			done.countDown();
+		}
+		
+		@Override
+		public void failed( final IOException e )
+		{
+			this.e = e;
+			done.countDown();
+		}
+		
+		public void await() throws InterruptedException
+		{
+			assertTrue( "no result", done.await( 10, TimeUnit.SECONDS ) );
+		}
+	}
+	
+	protected LocalHttpServer server;
+	protected VirtualThreadTileLoader loader = null;
+	
+	@Before
+	public void setUp() throws IOException
+	{
+		server = new LocalHttpServer( new LocalHttpServer.Handler()
+		{
+			@Override
+			public boolean respond( final String path, final Socket socket, final OutputStream out ) throws IOException
+			{
+				try
+				{
+					Thread.sleep( latency );
+				}
+				catch ( final InterruptedException e ) {}
+				if ( path.endsWith( "missing" ) )
+					LocalHttpServer.writeContentLength( out, 404, "not found".getBytes() );
+				else
+					LocalHttpServer.writeContentLength( out, 200, LocalHttpServer.tile( path, tileSize ) );
+				return true;
+			}
+		} );
+	}
+	
+	@After
+	public void tearDown()
+	{
+		if ( loader != null )
+			loader.shutdown();
+		server.stop();
+	}
+	
+	protected VirtualThreadTileLoader createLoader( final int maxInFlight )
+	{
+		final HttpTileClient client = new HttpTileClient();
+		client.setRateLimiter( null );
+		client.setMaxConnectionsPerHost( maxInFlight );
+		return new VirtualThreadTileLoader( maxInFlight, client );
+	}
+	
+	@Test
+	public void testRequestsInFlight() throws Exception
+	{
+		final int numRequests = 256;
+		loader = createLoader( 64 );
+		final Result[] results = new Result[ numRequests ];
+		final long t = System.currentTimeMillis();
+		for ( int i = 0; i < numRequests; ++i )
+		{
+			results[ i ] = new Result();
+			loader.submit( server.getBaseUrl() + "tile/" + i, RateLimiter.VISIBLE, results[ i ] );
+			assertTrue( loader.getInFlight() <= 64 );
+		}
+		for ( int i = 0; i < numRequests; ++i )
+		{
+			results[ i ].await();
+			assertNull( results[ i ].e );
+			assertArrayEquals( LocalHttpServer.tile( "/tile/" + i, tileSize ), results[ i ].bytes );
+		}
+		final long d = System.currentTimeMillis() - t;
+		
+		/* 256 requests of 100ms one by one take 25.6s, 64 in flight take 0.4s */
+		assertTrue( "requests must be loaded concurrently, took " + d + "ms", d < numRequests * latency / 4 );
+		assertTrue( server.getNumConnections() > 1 );
+		assertEquals( numRequests, loader.getRequests() );
+		assertEquals( 0, loader.getFailures() );
+		assertEquals( ( long )numRequests * tileSize, loader.getBytes() );
+	}
+	
+	@Test
+	public void testNotFound() throws Exception
+	{
+		loader = createLoader( 4 );
+		final Result result = new Result();
+		loader.submit( server.getBaseUrl() + "missing", RateLimiter.VISIBLE, result );
+		result.await();
+		assertTrue( result.e instanceof FileNotFoundException );
+		assertEquals( 1, loader.getFailures() );
+	}
+	
+	@Test
+	public void testShutdown() throws Exception
+	{
+		loader = createLoader( 4 );
+		loader.shutdown();
+		final Result result = new Result();
+		loader.submit( server.getBaseUrl() + "tile/0", RateLimiter.VISIBLE, result );
+		result.await();
+		assertTrue( result.e != null );
+		assertEquals( 0, loader.getInFlight() );
+	}
+}